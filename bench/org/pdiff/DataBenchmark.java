@@ -0,0 +1,93 @@
+/*
+ * Data Benchmark
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.pdiff;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.pdiff.Metric.ComparisonResult;
+
+/*
+ * Benchmarks loading the bundled data/ pairs and comparing them end to end. Run from the project directory so that
+ * the data/ paths resolve.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DataBenchmark {
+
+    // Held so that the level set in setup is not lost when the logger is garbage collected
+    private static final Logger PDIFF_LOGGER = Logger.getLogger("org.pdiff");
+
+    @Param({"alpha1.png:alpha2.png", "fish1.png:fish2.png", "Aqsis_vase_ref.png:Aqsis_vase.png" })
+    public String pair;
+
+    private final PerceptualDiffParameters params = new PerceptualDiffParameters();
+
+    private File fileA;
+
+    private File fileB;
+
+    private RGBAImage imageA;
+
+    private RGBAImage imageB;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        PDIFF_LOGGER.setLevel(java.util.logging.Level.WARNING);
+
+        String[] names = pair.split(":");
+
+        fileA = new File("data", names[0]);
+        fileB = new File("data", names[1]);
+
+        imageA = new RGBAImage(fileA);
+        imageB = new RGBAImage(fileB);
+    }
+
+    @Benchmark
+    public RGBAImage load(PixelCounter counter) throws IOException {
+        counter.pixels += (long) imageA.getWidth() * imageA.getHeight();
+
+        return new RGBAImage(fileA);
+    }
+
+    @Benchmark
+    public ComparisonResult yeeCompare(PixelCounter counter) {
+        counter.pixels += (long) imageA.getWidth() * imageA.getHeight();
+
+        return new MetricImpl().yeeCompare(imageA, imageB, params, null);
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Stage Benchmark
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.pdiff;
+
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.pdiff.Metric.ComparisonResult;
+
+/*
+ * Benchmarks each stage of a comparison, and the whole comparison, on synthetic square images of the given size.
+ * The inputs of each stage are built once in setup so that every benchmark measures its own stage only.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx12g" })
+public class StageBenchmark {
+
+    // Held so that the level set in setup is not lost when the logger is garbage collected
+    private static final Logger PDIFF_LOGGER = Logger.getLogger("org.pdiff");
+
+    @Param({"256", "1024", "4096", "8192" })
+    public int size;
+
+    private final PerceptualDiffParameters params = new PerceptualDiffParameters();
+
+    private RGBAImage imageA;
+
+    private RGBAImage imageB;
+
+    private ColourSpace colourSpace;
+
+    private LPyramid la;
+
+    private LPyramid lb;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        PDIFF_LOGGER.setLevel(java.util.logging.Level.WARNING);
+
+        imageA = SyntheticImages.reference(size);
+        imageB = SyntheticImages.candidate(size);
+
+        colourSpace = new ColourSpace(imageA, imageB, params.gamma, params.luminance);
+
+        LPyramid[] pyramids = LPyramid.pair(colourSpace.aLum, colourSpace.bLum, size, size, false, null);
+        la = pyramids[0];
+        lb = pyramids[1];
+    }
+
+    @Benchmark
+    public ColourSpace colourSpace(PixelCounter counter) {
+        counter.pixels += (long) size * size;
+
+        return new ColourSpace(imageA, imageB, params.gamma, params.luminance);
+    }
+
+    @Benchmark
+    public LPyramid[] pyramid(PixelCounter counter) {
+        counter.pixels += (long) size * size;
+
+        return LPyramid.pair(colourSpace.aLum, colourSpace.bLum, size, size, false, null);
+    }
+
+    @Benchmark
+    public ComparisonResult test(PixelCounter counter) {
+        counter.pixels += (long) size * size;
+
+        return MetricImpl.test(la, lb, colourSpace, params, null, size, size, null);
+    }
+
+    @Benchmark
+    public ComparisonResult yeeCompare(PixelCounter counter) {
+        counter.pixels += (long) size * size;
+
+        return new MetricImpl().yeeCompare(imageA, imageB, params, null);
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Synthetic Images
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.pdiff;
+
+import java.util.Random;
+
+/*
+ * Deterministic test images for the benchmarks: a pair of smooth gradients with noise, where the second image has a
+ * brightened disc so that the comparison finds a mixture of passing and failing pixels.
+ */
+final class SyntheticImages {
+
+    private static final long SEED = 0x5EEDL;
+
+    static RGBAImage reference(int size) {
+        RGBAImage image = new RGBAImage(size, size, "reference");
+        Random random = new Random(SEED);
+
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                int noise = random.nextInt(9) - 4;
+
+                int r = clamp(x * 255 / size + noise);
+                int g = clamp(y * 255 / size + noise);
+                int b = clamp((x + y) * 127 / size + noise);
+
+                image.set(r, g, b, 255, y * size + x);
+            }
+        }
+
+        return image;
+    }
+
+    static RGBAImage candidate(int size) {
+        RGBAImage image = reference(size);
+        int[] pixels = image.getPixels();
+
+        int centre = size / 2;
+        int radius = size / 8;
+
+        for (int y = centre - radius; y < centre + radius; y++) {
+            for (int x = centre - radius; x < centre + radius; x++) {
+                if ((x - centre) * (x - centre) + (y - centre) * (y - centre) < radius * radius) {
+                    int pixel = pixels[y * size + x];
+
+                    image.set(clamp((pixel >> 16 & 0xFF) + 24), clamp((pixel >> 8 & 0xFF) + 24),
+                            clamp((pixel & 0xFF) + 24), 255, y * size + x);
+                }
+            }
+        }
+
+        return image;
+    }
+
+    private static int clamp(int value) {
+        return Math.min(Math.max(value, 0), 255);
+    }
+
+    private SyntheticImages() {
+        // prevent instantiation
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * JFR Comparison Listener
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.pdiff;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/*
+ * Records every stage of every comparison as an org.pdiff.Stage event for Java Flight Recorder, so that a recording
+ * of a production JVM shows where each comparison spent its time. Events cost next to nothing while no recording is
+ * enabled for them.
+ *
+ * This class needs Java 11 or later and is compiled separately from the rest of the library, with
+ *
+ *     javac --release 11 -cp bin -d bin jfr/org/pdiff/JfrComparisonListener.java
+ *
+ * Instrumentation registers it when it is present.
+ */
+final class JfrComparisonListener implements ComparisonListener {
+
+    @Name("org.pdiff.Stage")
+    @Label("Comparison Stage")
+    @Category("PerceptualDiff")
+    @Description("A stage of an image comparison")
+    @StackTrace(false)
+    static final class StageEvent extends Event {
+        @Label("Stage")
+        String stage;
+
+        @Label("Width")
+        int width;
+
+        @Label("Height")
+        int height;
+
+        @Label("Pixels")
+        long pixels;
+
+        @Label("Stage Time")
+        @Description("The time spent in the stage, which for a streamed stage is spread over the event's duration")
+        @Timespan(Timespan.NANOSECONDS)
+        long stageNanos;
+    }
+
+    /*
+     * The event of the stage started but not yet completed on each thread; stages on one thread do not nest.
+     */
+    private final ThreadLocal<StageEvent> started = new ThreadLocal<>();
+
+    @Override
+    public void stageStarted(Stage stage, int width, int height) {
+        StageEvent event = new StageEvent();
+
+        if (event.isEnabled()) {
+            event.begin();
+            started.set(event);
+        }
+    }
+
+    @Override
+    public void stageCompleted(Stage stage, int width, int height, long nanos) {
+        StageEvent event = started.get();
+
+        if (event == null) {
+            // A streamed stage, reported only once it has finished
+            event = new StageEvent();
+
+            if (!event.isEnabled()) {
+                return;
+            }
+        } else {
+            started.remove();
+            event.end();
+        }
+
+        if (event.shouldCommit()) {
+            event.stage = stage.name();
+            event.width = width;
+            event.height = height;
+            event.pixels = (long) width * height;
+            event.stageNanos = nanos;
+            event.commit();
+        }
+    }
+
+}
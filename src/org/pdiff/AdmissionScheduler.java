@@ -0,0 +1,209 @@
+/*
+ * Admission Scheduler
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.pdiff;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/*
+ * Admits comparisons to run against a budget of bytes and a limit on how many run at once, in the order they were
+ * submitted except that a comparison that fits may overtake one that does not, so a few large images cannot hold up
+ * the small ones behind them. A waiting comparison that has been overtaken MAX_BYPASSED times holds back every one
+ * behind it until it fits, so large images are not starved either. A comparison larger than the whole budget is
+ * admitted once nothing else is running.
+ *
+ * The footprint of a comparison is estimated from the dimensions in the image file headers, before the images are
+ * decoded.
+ */
+final class AdmissionScheduler {
+
+    // How many later comparisons may overtake a waiting one before it is given priority
+    static final int MAX_BYPASSED = 16;
+
+    // How many waiting comparisons that do not fit are looked past for one that does
+    static final int MAX_LOOKAHEAD = 256;
+
+    /*
+     * Starts an admitted comparison, given how long it waited. It must not block.
+     */
+    interface Start {
+        void start(long waitNanos);
+    }
+
+    private static final class Ticket {
+        final long bytes;
+        final Start start;
+        final long submittedNanos = System.nanoTime();
+        int bypassed;
+
+        Ticket(long bytes, Start start) {
+            this.bytes = bytes;
+            this.start = start;
+        }
+    }
+
+    private final long budgetBytes;
+
+    private final int maxRunning;
+
+    private final List<Ticket> waiting = new ArrayList<>();
+
+    private long usedBytes;
+
+    private int running;
+
+    AdmissionScheduler(long budgetBytes, int maxRunning) {
+        this.budgetBytes = budgetBytes;
+        this.maxRunning = maxRunning;
+    }
+
+    /*
+     * The bytes of heap and off-heap memory that a comparison of images of the given numbers of pixels holds at its
+     * peak, i.e. both decoded images, the luminance planes and the pyramid levels, allowing for down-sampling and the
+     * decimated pyramid. The chroma is computed lazily and has no planes. This is about 72 bytes per pixel with the
+     * default parameters.
+     */
+    static long footprint(long pixelsA, long pixelsB, PerceptualDiffParameters params) {
+        long images = 4 * (pixelsA + pixelsB);
+        long pixels = Math.max(pixelsA, pixelsB) >> (2 * Math.min(params.downSample, 31));
+
+        // A luminance plane per image; seven blurred levels per image, or about a third of a plane if decimated
+        long planes = 2 * 4 * pixels + (params.decimatedPyramid ? 2 * 4 * pixels / 3 : 2 * 7 * 4 * pixels);
+
+        // The resampled copies of the images
+        long resampled = params.downSample > 0 || params.scale ? 2 * 4 * pixels : 0;
+
+        return images + planes + resampled;
+    }
+
+    /*
+     * The number of pixels of an image file as given by its header, read without decoding the image, or -1 if the
+     * file cannot be read or its format is not recognised.
+     */
+    static long pixels(File file) {
+        try (ImageInputStream in = ImageIO.createImageInputStream(file)) {
+            Iterator<ImageReader> readers = in == null ? null : ImageIO.getImageReaders(in);
+
+            if (readers == null || !readers.hasNext()) {
+                return -1;
+            }
+
+            ImageReader reader = readers.next();
+
+            try {
+                reader.setInput(in, true, true);
+
+                return (long) reader.getWidth(0) * reader.getHeight(0);
+            } finally {
+                reader.dispose();
+            }
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    /*
+     * Queues a comparison of the given footprint, starting it at once if it can be admitted.
+     */
+    void submit(long bytes, Start start) {
+        List<Ticket> admitted;
+
+        synchronized (this) {
+            waiting.add(new Ticket(bytes, start));
+            admitted = admit();
+        }
+
+        start(admitted);
+    }
+
+    /*
+     * Returns the memory of a comparison that has finished and admits any that now fit.
+     */
+    void release(long bytes) {
+        List<Ticket> admitted;
+
+        synchronized (this) {
+            usedBytes -= bytes;
+            running--;
+            admitted = admit();
+
+            notifyAll();
+        }
+
+        start(admitted);
+    }
+
+    /*
+     * Waits until every comparison submitted has finished.
+     */
+    synchronized void awaitIdle() throws InterruptedException {
+        while (running > 0 || !waiting.isEmpty()) {
+            wait();
+        }
+    }
+
+    synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    /*
+     * Removes the tickets that can now run from the queue, in order, overtaking those that do not fit until one of
+     * them has been overtaken too often.
+     */
+    private List<Ticket> admit() {
+        List<Ticket> admitted = new ArrayList<>();
+        List<Ticket> overtaken = new ArrayList<>();
+
+        boolean held = false;
+
+        for (Iterator<Ticket> it = waiting.iterator(); it.hasNext() && running < maxRunning && !held;) {
+            Ticket ticket = it.next();
+
+            if (running == 0 || usedBytes + ticket.bytes <= budgetBytes) {
+                it.remove();
+                usedBytes += ticket.bytes;
+                running++;
+                admitted.add(ticket);
+
+                for (Ticket waiter : overtaken) {
+                    held |= ++waiter.bypassed >= MAX_BYPASSED;
+                }
+            } else {
+                held = ticket.bypassed >= MAX_BYPASSED || overtaken.size() >= MAX_LOOKAHEAD;
+                overtaken.add(ticket);
+            }
+        }
+
+        return admitted;
+    }
+
+    private static void start(List<Ticket> admitted) {
+        long nowNanos = System.nanoTime();
+
+        for (Ticket ticket : admitted) {
+            ticket.start.start(nowNanos - ticket.submittedNanos);
+        }
+    }
+
+}
@@ -0,0 +1,532 @@
+/*
+ * Batch Runner
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.pdiff;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.imageio.ImageIO;
+
+import org.pdiff.Metric.ComparisonResult;
+
+/**
+ * Compares many pairs of images in one JVM as a pipeline of three stages: decoding on a pool of I/O threads, the
+ * comparison itself on a ForkJoinPool sized for the CPUs and writing of difference images on the I/O threads again.
+ * <p>
+ * At most maxPending pairs are between being decoded and being finished at any time, so decoding cannot run ahead of
+ * the comparisons and fill the heap with decoded images. Given a memory budget, pairs are also admitted only while the
+ * footprints of those in progress, estimated from the dimensions in the image headers before decoding, fit in it.
+ * Pairs are admitted in order, except that smaller pairs that fit may overtake a large one that does not, for a
+ * while. Each pair's result is written as a line of JSON or CSV as soon as it finishes, so results appear in
+ * completion order rather than input order, with the time the pair waited to be admitted apart from its compute
+ * time.
+ * @author Paul Parlett
+ */
+public final class BatchRunner {
+
+    private static final int EXIT_SUCCESS = 0;
+
+    private static final int EXIT_FAILURE = 1;
+
+    /**
+     * The format of the results written by a batch run.
+     */
+    public enum Format {
+        /** One JSON object per line. */
+        JSON_LINES,
+        /** Comma separated values with a header line. */
+        CSV
+    }
+
+    /**
+     * A pair of images to compare and, optionally, where to write their difference image.
+     */
+    public static final class Pair {
+
+        final File fileA;
+
+        final File fileB;
+
+        final File fileDifference;
+
+        /**
+         * @param fileA The first image to compare
+         * @param fileB The second image to compare
+         * @param fileDifference The PNG file to write the difference image to if the comparison fails, or null if not
+         *            required
+         */
+        public Pair(File fileA, File fileB, File fileDifference) {
+            this.fileA = fileA;
+            this.fileB = fileB;
+            this.fileDifference = fileDifference;
+        }
+    }
+
+    /*
+     * A decoded pair and, once compared, its result.
+     */
+    private static final class Job {
+        final Pair pair;
+
+        long bytes;
+
+        RGBAImage imageA;
+
+        RGBAImage imageB;
+
+        ComparisonResult result;
+
+        final StageTimer timer = new StageTimer();
+
+        Job(Pair pair) {
+            this.pair = pair;
+        }
+    }
+
+    private final int ioThreads;
+
+    private final ForkJoinPool computePool;
+
+    private final int maxPending;
+
+    private final long memoryBudget;
+
+    private final MetricImpl metric = new MetricImpl();
+
+    /**
+     * Creates a runner without a memory budget.
+     * @param ioThreads The number of threads that decode images and write difference images
+     * @param computePool The pool on which the comparisons are run, one pair per task
+     * @param maxPending The most pairs that may be decoded or in progress at once
+     */
+    public BatchRunner(int ioThreads, ForkJoinPool computePool, int maxPending) {
+        this(ioThreads, computePool, maxPending, Long.MAX_VALUE);
+    }
+
+    /**
+     * @param ioThreads The number of threads that decode images and write difference images
+     * @param computePool The pool on which the comparisons are run, one pair per task
+     * @param maxPending The most pairs that may be decoded or in progress at once
+     * @param memoryBudget The most bytes that the pairs in progress may use at once, as estimated from their
+     *            dimensions by AdmissionScheduler.footprint; a pair larger than the budget runs on its own
+     */
+    public BatchRunner(int ioThreads, ForkJoinPool computePool, int maxPending, long memoryBudget) {
+        if (ioThreads < 1 || maxPending < 1 || memoryBudget < 1) {
+            throw new IllegalArgumentException("ioThreads, maxPending and memoryBudget must be positive");
+        }
+
+        this.ioThreads = ioThreads;
+        this.computePool = computePool;
+        this.maxPending = maxPending;
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * Reads a manifest of pairs. Each line holds the first image, the second image and optionally the difference
+     * image, separated by tabs. Blank lines and lines starting with # are ignored, and relative paths are resolved
+     * against the directory of the manifest.
+     * @param manifest The manifest file
+     * @return The pairs in the order they are listed
+     * @throws IOException Thrown if there is an error reading the manifest or a line is malformed
+     */
+    public static List<Pair> readManifest(File manifest) throws IOException {
+        File base = manifest.getAbsoluteFile().getParentFile();
+
+        List<Pair> pairs = new ArrayList<>();
+
+        try (BufferedReader reader = Files.newBufferedReader(manifest.toPath(), StandardCharsets.UTF_8)) {
+            int lineNumber = 0;
+
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                lineNumber++;
+
+                if (line.trim().isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+
+                String[] fields = line.split("\t");
+
+                if (fields.length < 2 || fields.length > 3) {
+                    throw new IOException(manifest + ":" + lineNumber + ": expected 2 or 3 tab separated paths");
+                }
+
+                pairs.add(new Pair(resolve(base, fields[0]), resolve(base, fields[1]),
+                        fields.length == 3 ? resolve(base, fields[2]) : null));
+            }
+        }
+
+        return pairs;
+    }
+
+    private static File resolve(File base, String path) {
+        File file = new File(path);
+
+        return file.isAbsolute() ? file : new File(base, path);
+    }
+
+    /**
+     * Pairs every regular file under directory A with the file at the same relative path under directory B. A file
+     * missing from directory B is still paired, and is reported as an error when the batch is run.
+     * @param dirA The directory of first images
+     * @param dirB The directory of second images
+     * @param dirDifference The directory to write difference images to, at the same relative paths with a .png
+     *            extension, or null if not required
+     * @return The pairs in order of relative path
+     * @throws IOException Thrown if there is an error walking directory A
+     */
+    public static List<Pair> matchDirectories(File dirA, File dirB, File dirDifference) throws IOException {
+        Path rootA = dirA.toPath();
+
+        List<Path> paths;
+
+        try (Stream<Path> stream = Files.walk(rootA)) {
+            paths = stream.filter(Files::isRegularFile).map(rootA::relativize).sorted().collect(Collectors.toList());
+        }
+
+        List<Pair> pairs = new ArrayList<>(paths.size());
+
+        for (Path path : paths) {
+            String relative = path.toString();
+
+            File fileDifference = null;
+
+            if (dirDifference != null) {
+                int dot = relative.lastIndexOf('.');
+                int separator = relative.lastIndexOf(File.separatorChar);
+
+                fileDifference = new File(dirDifference,
+                        (dot > separator ? relative.substring(0, dot) : relative) + ".png");
+            }
+
+            pairs.add(new Pair(new File(dirA, relative), new File(dirB, relative), fileDifference));
+        }
+
+        return pairs;
+    }
+
+    /**
+     * Compares every pair and writes one result per pair to out as each finishes. An error reading or writing the
+     * images of a pair is reported in that pair's result and does not stop the batch.
+     * @param pairs The pairs to compare
+     * @param params The parameters for the comparison algorithm
+     * @param out Where to write the results
+     * @param format The format of the results
+     * @return The number of pairs that did not pass, including those with errors
+     * @throws IOException Thrown if there is an error writing the results
+     * @throws InterruptedException Thrown if interrupted while waiting for the pipeline
+     */
+    public int run(List<Pair> pairs, PerceptualDiffParameters params, Writer out, Format format)
+            throws IOException, InterruptedException {
+        ExecutorService ioPool = Executors.newFixedThreadPool(ioThreads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "pdiff-io-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        AdmissionScheduler scheduler = new AdmissionScheduler(memoryBudget, maxPending);
+        AtomicInteger failures = new AtomicInteger();
+        IOException[] outputError = new IOException[1];
+
+        try {
+            if (format == Format.CSV) {
+                out.write("fileA,fileB,status,pixelsFailed,errorSum,message,queueNanos,computeNanos\n");
+            }
+
+            for (Pair pair : pairs) {
+                Job job = new Job(pair);
+
+                // A file whose header cannot be read fails when it is decoded, so needs no memory
+                job.bytes = AdmissionScheduler.footprint(Math.max(AdmissionScheduler.pixels(pair.fileA), 0),
+                        Math.max(AdmissionScheduler.pixels(pair.fileB), 0), params);
+
+                scheduler.submit(job.bytes, waitNanos -> {
+                    job.timer.record(Stage.QUEUE, waitNanos);
+
+                    CompletableFuture.supplyAsync(() -> decode(job), ioPool)
+                            .thenApplyAsync(decoded -> compare(decoded, params), computePool)
+                            .thenApplyAsync(BatchRunner::writeDifference, ioPool)
+                            .whenComplete((done, error) -> {
+                                try {
+                                    if (error == null) {
+                                        job.timer.finish(job.result);
+                                    }
+
+                                    if (error != null || !job.result.passed) {
+                                        failures.incrementAndGet();
+                                    }
+
+                                    String line = format == Format.CSV ? csv(pair, job, error) : json(pair, job, error);
+
+                                    synchronized (out) {
+                                        out.write(line);
+                                        out.flush();
+                                    }
+                                } catch (IOException e) {
+                                    synchronized (outputError) {
+                                        outputError[0] = e;
+                                    }
+                                } finally {
+                                    scheduler.release(job.bytes);
+                                }
+                            });
+                });
+            }
+
+            // Wait for the pairs still in the pipeline
+            scheduler.awaitIdle();
+        } finally {
+            ioPool.shutdown();
+        }
+
+        synchronized (outputError) {
+            if (outputError[0] != null) {
+                throw outputError[0];
+            }
+        }
+
+        return failures.get();
+    }
+
+    private static Job decode(Job job) {
+        job.timer.start(Stage.DECODE);
+
+        try {
+            job.imageA = new RGBAImage(job.pair.fileA);
+            job.imageB = new RGBAImage(job.pair.fileB);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        job.timer.size(job.imageA.getWidth(), job.imageA.getHeight());
+        job.timer.stop(Stage.DECODE);
+
+        return job;
+    }
+
+    private Job compare(Job job, PerceptualDiffParameters params) {
+        job.result = metric.yeeCompare(job.imageA, job.imageB, params, null, job.timer);
+
+        // Release the decoded images as soon as possible
+        job.imageA = null;
+        job.imageB = null;
+
+        return job;
+    }
+
+    private static Job writeDifference(Job job) {
+        // Only failed comparisons have a difference image rendered from their failure mask
+        if (job.pair.fileDifference != null && !job.result.passed && job.result.failureMask != null) {
+            File parent = job.pair.fileDifference.getAbsoluteFile().getParentFile();
+
+            job.timer.start(Stage.DIFFERENCE_WRITE);
+
+            try {
+                if (parent != null) {
+                    Files.createDirectories(parent.toPath());
+                }
+
+                ImageIO.write(job.result.failureMask.toImage(), "PNG", job.pair.fileDifference);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+
+            job.timer.stop(Stage.DIFFERENCE_WRITE);
+        }
+
+        return job;
+    }
+
+    private static Throwable cause(Throwable error) {
+        Throwable cause = error;
+
+        while ((cause instanceof CompletionException || cause instanceof UncheckedIOException)
+                && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+
+        return cause;
+    }
+
+    private static String status(Job job, Throwable error) {
+        if (error != null) {
+            return "ERROR";
+        }
+
+        return job.result.passed ? "PASS" : "FAIL";
+    }
+
+    private static String message(Job job, Throwable error) {
+        if (error != null) {
+            return cause(error).toString();
+        }
+
+        return job.result.reason.replace('\n', ' ');
+    }
+
+    static String number(double value) {
+        return Double.isNaN(value) || Double.isInfinite(value) ? "null" : Double.toString(value);
+    }
+
+    static String json(Pair pair, Job job, Throwable error) {
+        StringBuilder sb = new StringBuilder();
+
+        sb.append("{\"fileA\":").append(jsonString(pair.fileA.getPath()));
+        sb.append(",\"fileB\":").append(jsonString(pair.fileB.getPath()));
+        sb.append(",\"status\":\"").append(status(job, error)).append('"');
+
+        if (error == null) {
+            sb.append(",\"pixelsFailed\":").append(job.result.pixelsFailed);
+            sb.append(",\"errorSum\":").append(number(job.result.errorSum));
+        }
+
+        sb.append(",\"message\":").append(jsonString(message(job, error)));
+
+        if (error == null) {
+            sb.append(",\"queueNanos\":").append(job.result.timings.getNanos(Stage.QUEUE));
+            sb.append(",\"computeNanos\":").append(job.result.timings.getTotalNanos());
+        }
+
+        sb.append("}\n");
+
+        return sb.toString();
+    }
+
+    static String jsonString(String value) {
+        StringBuilder sb = new StringBuilder("\"");
+
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format(Locale.ROOT, "\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+
+        return sb.append('"').toString();
+    }
+
+    static String csv(Pair pair, Job job, Throwable error) {
+        StringBuilder sb = new StringBuilder();
+
+        sb.append(csvField(pair.fileA.getPath())).append(',');
+        sb.append(csvField(pair.fileB.getPath())).append(',');
+        sb.append(status(job, error)).append(',');
+
+        if (error == null) {
+            sb.append(job.result.pixelsFailed).append(',');
+            sb.append(Double.toString(job.result.errorSum)).append(',');
+        } else {
+            sb.append(",,");
+        }
+
+        sb.append(csvField(message(job, error)));
+
+        if (error == null) {
+            sb.append(',').append(job.result.timings.getNanos(Stage.QUEUE));
+            sb.append(',').append(job.result.timings.getTotalNanos());
+        } else {
+            sb.append(",,");
+        }
+
+        sb.append('\n');
+
+        return sb.toString();
+    }
+
+    private static String csvField(String value) {
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0) {
+            return value;
+        }
+
+        return '"' + value.replace("\"", "\"\"") + '"';
+    }
+
+    /**
+     * Runs a batch from the command line, with the arguments either
+     * <p>
+     * {@code manifest results} or {@code dirA dirB results [dirDifference]}
+     * <p>
+     * The results are written as CSV if the results file name ends in .csv and as JSON Lines otherwise. The exit
+     * status is zero if every pair passed.
+     * @param mainArgs The program arguments
+     * @throws IOException Thrown if there is an error reading the pairs or writing the results
+     * @throws InterruptedException Thrown if interrupted while waiting for the pipeline
+     */
+    public static void main(String[] mainArgs) throws IOException, InterruptedException {
+        List<Pair> pairs;
+        File results;
+
+        if (mainArgs.length == 2) {
+            pairs = readManifest(new File(mainArgs[0]));
+            results = new File(mainArgs[1]);
+        } else if (mainArgs.length == 3 || mainArgs.length == 4) {
+            pairs = matchDirectories(new File(mainArgs[0]), new File(mainArgs[1]),
+                    mainArgs.length == 4 ? new File(mainArgs[3]) : null);
+            results = new File(mainArgs[2]);
+        } else {
+            System.err.println("usage: BatchRunner manifest results | dirA dirB results [dirDifference]");
+            System.exit(EXIT_FAILURE);
+            return;
+        }
+
+        Format format = results.getName().toLowerCase(Locale.ROOT).endsWith(".csv") ? Format.CSV : Format.JSON_LINES;
+
+        int processors = Runtime.getRuntime().availableProcessors();
+
+        // Leave a quarter of the heap for everything else
+        BatchRunner runner = new BatchRunner(Math.max(4, processors), new ForkJoinPool(processors),
+                2 * processors + 2, Runtime.getRuntime().maxMemory() / 4 * 3);
+
+        int failures;
+
+        try (Writer out = Files.newBufferedWriter(results.toPath(), StandardCharsets.UTF_8)) {
+            failures = runner.run(pairs, new PerceptualDiffParameters(), out, format);
+        }
+
+        System.out.println(pairs.size() + " pairs compared, " + failures + " did not pass");
+
+        System.exit(failures == 0 ? EXIT_SUCCESS : EXIT_FAILURE);
+    }
+
+}
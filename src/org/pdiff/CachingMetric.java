@@ -0,0 +1,411 @@
+/*
+ * Caching Metric
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.pdiff;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * A Metric that remembers the results of another, keyed by a hash of the pixels of both images and every comparison
+ * parameter, so that comparing the same pair with the same parameters again costs only the hashing of the pixels.
+ * <p>
+ * Results are kept in memory, least recently used first out once their failure masks and an overhead per entry exceed
+ * the given number of bytes. If a directory is given, every result is also written there with its failure mask,
+ * deflated, and results missing from memory are looked for there before comparing. Each file records its whole key and
+ * a format version, which is raised whenever a change to the metric changes its results.
+ * <p>
+ * Images of different sizes are passed straight to the underlying metric. A result returned from the cache has no
+ * stage timings, and the difference image, if one is given, is rendered from the cached failure mask.
+ * @author Paul Parlett
+ */
+public final class CachingMetric implements Metric {
+
+    private static final Logger LOGGER = Logger.getLogger(CachingMetric.class.getName());
+
+    private static final long MAGIC = 0x5044494646524553L;
+
+    private static final int VERSION = 2;
+
+    // The heap held by an entry besides its failure mask
+    private static final long ENTRY_BYTES = 256;
+
+    /*
+     * The hashes of both images and every parameter that can change the result.
+     */
+    static final class Key {
+        final PixelHash hashA;
+
+        final PixelHash hashB;
+
+        final boolean luminanceOnly;
+
+        final double fieldOfView;
+
+        final double gamma;
+
+        final double luminance;
+
+        final int thresholdPixels;
+
+        final double colorFactor;
+
+        final boolean decimatedPyramid;
+
+        final boolean verdictOnly;
+
+        final boolean recordErrors;
+
+        final int downSample;
+
+        final boolean scale;
+
+        Key(PixelHash hashA, PixelHash hashB, PerceptualDiffParameters params) {
+            this.hashA = hashA;
+            this.hashB = hashB;
+            this.luminanceOnly = params.luminanceOnly;
+            this.fieldOfView = params.fieldOfView;
+            this.gamma = params.gamma;
+            this.luminance = params.luminance;
+            this.thresholdPixels = params.thresholdPixels;
+            this.colorFactor = params.colorFactor;
+            this.decimatedPyramid = params.decimatedPyramid;
+            this.verdictOnly = params.verdictOnly;
+            this.recordErrors = params.recordErrors;
+            this.downSample = params.downSample;
+            this.scale = params.scale;
+        }
+
+        private Key(DataInputStream in) throws IOException {
+            hashA = new PixelHash(in.readLong(), in.readLong());
+            hashB = new PixelHash(in.readLong(), in.readLong());
+            luminanceOnly = in.readBoolean();
+            fieldOfView = in.readDouble();
+            gamma = in.readDouble();
+            luminance = in.readDouble();
+            thresholdPixels = in.readInt();
+            colorFactor = in.readDouble();
+            decimatedPyramid = in.readBoolean();
+            verdictOnly = in.readBoolean();
+            recordErrors = in.readBoolean();
+            downSample = in.readInt();
+            scale = in.readBoolean();
+        }
+
+        private void write(DataOutputStream out) throws IOException {
+            out.writeLong(hashA.high);
+            out.writeLong(hashA.low);
+            out.writeLong(hashB.high);
+            out.writeLong(hashB.low);
+            out.writeBoolean(luminanceOnly);
+            out.writeDouble(fieldOfView);
+            out.writeDouble(gamma);
+            out.writeDouble(luminance);
+            out.writeInt(thresholdPixels);
+            out.writeDouble(colorFactor);
+            out.writeBoolean(decimatedPyramid);
+            out.writeBoolean(verdictOnly);
+            out.writeBoolean(recordErrors);
+            out.writeInt(downSample);
+            out.writeBoolean(scale);
+        }
+
+        private long parametersHash() {
+            long h = (luminanceOnly ? 1 : 0) | (decimatedPyramid ? 2 : 0) | (verdictOnly ? 4 : 0)
+                    | (recordErrors ? 8 : 0) | (scale ? 16 : 0);
+
+            for (long bits : new long[] {Double.doubleToLongBits(fieldOfView), Double.doubleToLongBits(gamma),
+                Double.doubleToLongBits(luminance), thresholdPixels, Double.doubleToLongBits(colorFactor), downSample }) {
+                h = h * 0x9E3779B97F4A7C15L + bits;
+            }
+
+            return h ^ (h >>> 29);
+        }
+
+        /*
+         * The name of the key's file, which is recorded in the file too in case two sets of parameters hash alike.
+         */
+        String fileName() {
+            return hashA + "-" + hashB + "-" + String.format("%016x", parametersHash()) + ".pdr";
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+
+            Key other = (Key) obj;
+
+            return hashA.equals(other.hashA) && hashB.equals(other.hashB) && luminanceOnly == other.luminanceOnly
+                    && Double.compare(fieldOfView, other.fieldOfView) == 0 && Double.compare(gamma, other.gamma) == 0
+                    && Double.compare(luminance, other.luminance) == 0 && thresholdPixels == other.thresholdPixels
+                    && Double.compare(colorFactor, other.colorFactor) == 0
+                    && decimatedPyramid == other.decimatedPyramid && verdictOnly == other.verdictOnly
+                    && recordErrors == other.recordErrors && downSample == other.downSample
+                    && scale == other.scale;
+        }
+
+        @Override
+        public int hashCode() {
+            return hashA.hashCode() * 31 + hashB.hashCode() * 17 + (int) parametersHash();
+        }
+    }
+
+    private final Metric metric;
+
+    private final long maxBytes;
+
+    private final File directory;
+
+    // In access order, least recently used first
+    private final LinkedHashMap<Key, ComparisonResult> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long bytes;
+
+    private final AtomicLong memoryHits = new AtomicLong();
+
+    private final AtomicLong diskHits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Creates a cache in front of a metric.
+     * @param metric The metric whose results are cached
+     * @param maxBytes The most heap, approximately, held by the results kept in memory
+     * @param directory The directory in which to keep results on disk, which is created if need be, or null to keep
+     *            them in memory only
+     */
+    public CachingMetric(Metric metric, long maxBytes, File directory) {
+        this.metric = metric;
+        this.maxBytes = maxBytes;
+        this.directory = directory;
+    }
+
+    @Override
+    public ComparisonResult yeeCompare(RGBAImage imageA, RGBAImage imageB, PerceptualDiffParameters params,
+            RGBAImage imageDifference) {
+        if ((imageA.getWidth() != imageB.getWidth()) || (imageA.getHeight() != imageB.getHeight())) {
+            return metric.yeeCompare(imageA, imageB, params, imageDifference);
+        }
+
+        if (params.downSample > 0) {
+            // The failure mask of a down-sampled pair is rendered at its reduced size, hit or miss
+            int[] size = Resample.downSampledSize(imageA.getWidth(), imageA.getHeight(), params.downSample);
+
+            MetricImpl.checkDifferenceSize(imageDifference, size[0], size[1]);
+        }
+
+        Key key = new Key(PixelHash.of(imageA), PixelHash.of(imageB), params);
+
+        ComparisonResult cached = memory(key);
+
+        if (cached != null) {
+            memoryHits.incrementAndGet();
+        } else {
+            cached = disk(key);
+
+            if (cached != null) {
+                diskHits.incrementAndGet();
+                remember(key, cached);
+            }
+        }
+
+        if (cached != null) {
+            if (imageDifference != null && cached.failureMask != null) {
+                cached.failureMask.render(imageDifference);
+            }
+
+            return new ComparisonResult(cached.passed, cached.pixelsFailed, cached.errorSum, cached.reason,
+                    imageDifference, cached.failureMask, cached.lowerBound, cached.pixelsExamined);
+        }
+
+        misses.incrementAndGet();
+
+        ComparisonResult result = metric.yeeCompare(imageA, imageB, params, imageDifference);
+
+        // The cached copy does not hold on to the caller's difference image
+        ComparisonResult entry = new ComparisonResult(result.passed, result.pixelsFailed, result.errorSum,
+                result.reason, null, result.failureMask, result.lowerBound, result.pixelsExamined);
+
+        remember(key, entry);
+        save(key, entry);
+
+        return result;
+    }
+
+    private synchronized ComparisonResult memory(Key key) {
+        return entries.get(key);
+    }
+
+    private static long sizeInBytes(ComparisonResult result) {
+        return ENTRY_BYTES + (result.failureMask == null ? 0 : result.failureMask.sizeInBytes());
+    }
+
+    private synchronized void remember(Key key, ComparisonResult result) {
+        ComparisonResult previous = entries.put(key, result);
+
+        bytes += sizeInBytes(result) - (previous == null ? 0 : sizeInBytes(previous));
+
+        Iterator<Map.Entry<Key, ComparisonResult>> eldest = entries.entrySet().iterator();
+
+        while (bytes > maxBytes && eldest.hasNext()) {
+            bytes -= sizeInBytes(eldest.next().getValue());
+            eldest.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    /*
+     * Reads the result for the key from the directory, or returns null if it is not there or cannot be read.
+     */
+    private ComparisonResult disk(Key key) {
+        if (directory == null) {
+            return null;
+        }
+
+        File file = new File(directory, key.fileName());
+
+        try (InputStream stream = Files.newInputStream(file.toPath());
+                DataInputStream in = new DataInputStream(new BufferedInputStream(new InflaterInputStream(stream)))) {
+            if (in.readLong() != MAGIC || in.readInt() != VERSION || !key.equals(new Key(in))) {
+                return null;
+            }
+
+            boolean passed = in.readBoolean();
+            int pixelsFailed = in.readInt();
+            double errorSum = in.readDouble();
+            String reason = in.readUTF();
+            boolean lowerBound = in.readBoolean();
+            long pixelsExamined = in.readLong();
+            FailureMask failureMask = in.readBoolean() ? FailureMask.read(in) : null;
+
+            return new ComparisonResult(passed, pixelsFailed, errorSum, reason, null, failureMask, lowerBound,
+                    pixelsExamined);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Ignoring unreadable cached result " + file + ": " + e);
+
+            return null;
+        }
+    }
+
+    /*
+     * Writes the result for the key to the directory, through a temporary file so that readers never see part of it.
+     */
+    private void save(Key key, ComparisonResult result) {
+        if (directory == null) {
+            return;
+        }
+
+        File file = new File(directory, key.fileName());
+
+        try {
+            Files.createDirectories(directory.toPath());
+
+            File temporary = File.createTempFile(key.fileName(), ".tmp", directory);
+
+            try {
+                try (OutputStream stream = Files.newOutputStream(temporary.toPath());
+                        DataOutputStream out = new DataOutputStream(
+                                new BufferedOutputStream(new DeflaterOutputStream(stream)))) {
+                    out.writeLong(MAGIC);
+                    out.writeInt(VERSION);
+                    key.write(out);
+                    out.writeBoolean(result.passed);
+                    out.writeInt(result.pixelsFailed);
+                    out.writeDouble(result.errorSum);
+                    out.writeUTF(result.reason);
+                    out.writeBoolean(result.lowerBound);
+                    out.writeLong(result.pixelsExamined);
+                    out.writeBoolean(result.failureMask != null);
+
+                    if (result.failureMask != null) {
+                        result.failureMask.write(out);
+                    }
+                }
+
+                try {
+                    Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                            StandardCopyOption.ATOMIC_MOVE);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                }
+            } finally {
+                Files.deleteIfExists(temporary.toPath());
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not cache result in " + file + ": " + e);
+        }
+    }
+
+    /**
+     * @return The number of comparisons answered from memory
+     */
+    public long getMemoryHits() {
+        return memoryHits.get();
+    }
+
+    /**
+     * @return The number of comparisons answered from the directory
+     */
+    public long getDiskHits() {
+        return diskHits.get();
+    }
+
+    /**
+     * @return The number of comparisons passed to the underlying metric
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return The number of results dropped from memory to make room for others
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * @return The heap, approximately, held by the results in memory
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+}
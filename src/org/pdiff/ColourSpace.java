@@ -1,142 +1,335 @@
 package org.pdiff;
 
-import java.util.logging.Level;
-import java.util.logging.Logger;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
 
 import net.jafama.FastMath;
 
+/*
+ * Converts a pair of images to luminance and Lab chroma planes.
+ *
+ * The linearised value of an 8-bit channel depends only on the channel value, its alpha and the gamma, so those
+ * 65,536 values are computed once per gamma and looked up, and the Lab cube root uses FastMath.cbrt. The conversion
+ * allocates nothing per pixel.
+ *
+ * The chroma of a whole-image comparison is lazy: only the luminance planes are converted up front, and the Lab a and b
+ * of a pixel are computed from the images when the pixel is tested and the colour test applies to it. They are
+ * rounded to float exactly as the planes would hold them, so the result is the same as with chroma planes. Colour
+ * spaces made as rolling row buffers, as streaming and prepared comparisons use, keep chroma rows, which are not filled
+ * in luminance-only mode.
+ */
 class ColourSpace {
 
-    private static class XYZ {
-        double x;
-        double y;
-        double z;
-    }
+    // Adobe RGB (1998) to XYZ matrix for reference white D65, from http://www.brucelindbloom.com/
+    private static final double M00 = 0.576700;
+    private static final double M01 = 0.185556;
+    private static final double M02 = 0.188212;
+    private static final double M10 = 0.297361;
+    private static final double M11 = 0.627355;
+    private static final double M12 = 0.0752847;
+    private static final double M20 = 0.0270328;
+    private static final double M21 = 0.0706879;
+    private static final double M22 = 0.991248;
+
+    // XYZ of the global white, i.e. of RGB (1, 1, 1)
+    private static final double WHITE_X = M00 + M01 + M02;
+    private static final double WHITE_Y = M10 + M11 + M12;
+    private static final double WHITE_Z = M20 + M21 + M22;
 
-    /*
-     * Convert Adobe RGB (1998) with reference white D65 to XYZ.
-     */
-    private static XYZ adobeRgbToXyz(double r, double g, double b) {
-        final XYZ result = new XYZ();
+    private static final double EPSILON = 216.0 / 24389.0;
 
-        // matrix is from http://www.brucelindbloom.com/
-        result.x = r * 0.576700 + g * 0.185556 + b * 0.188212;
-        result.y = r * 0.297361 + g * 0.627355 + b * 0.0752847;
-        result.z = r * 0.0270328 + g * 0.0706879 + b * 0.991248;
+    private static final double KAPPA = 24389.0 / 27.0;
 
-        return result;
-    }
+    // The most linearisation tables cached, each of 512 KB
+    static final int MAX_CACHED_LINEAR = 8;
 
-    private static class White {
-        final XYZ xyz;
+    // The linearisation tables in access order, evicting the least recently used, so that a service whose clients
+    // ask for many gammas holds at most MAX_CACHED_LINEAR of them
+    private static final Map<Double, double[]> LINEAR_TABLES = new LinkedHashMap<Double, double[]>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
 
-        White() {
-            xyz = adobeRgbToXyz(1.0, 1.0, 1.0);
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Double, double[]> eldest) {
+            return size() > MAX_CACHED_LINEAR;
         }
-    }
-
-    private static final White GLOBAL_WHITE = new White();
-
-    private static class LAB {
-        @SuppressWarnings("unused") double l;
-        double a;
-        double b;
-    }
-
-    private static final double EPSILON = 216.0 / 24389.0;
-
-    private static final double KAPPA = 24389.0 / 27.0;
+    };
 
     /*
-     * Convert XYZ to LAB.
+     * Returns the table of pow(value / 255 * alpha / 255, gamma) indexed by (value << 8) | alpha.
      */
-    private static LAB xyzToLab(double x, double y, double z) {
-        LAB result = new LAB();
+    static double[] linearTable(double gamma) {
+        double[] table;
 
-        double[] r = {x / GLOBAL_WHITE.xyz.x, y / GLOBAL_WHITE.xyz.y, z / GLOBAL_WHITE.xyz.z };
+        synchronized (LINEAR_TABLES) {
+            table = LINEAR_TABLES.get(gamma);
+        }
 
-        double[] f = new double[3];
+        if (table != null) {
+            return table;
+        }
 
-        for (int i = 0; i < 3; i++) {
-            if (r[i] > EPSILON) {
-                f[i] = FastMath.pow(r[i], 1.0 / 3.0);
-            } else {
-                f[i] = (KAPPA * r[i] + 16.0) / 116.0;
+        // Built outside the lock, as the CSF tables of PixelTest are
+        table = new double[256 * 256];
+
+        for (int value = 0; value < 256; value++) {
+            for (int alpha = 0; alpha < 256; alpha++) {
+                /*
+                 * perceptualdiff used to use premultiplied alphas when loading
+                 * the image. This is no longer the case since the switch to
+                 * FreeImage. We need to do the multiplication here now. As was
+                 * the case with premultiplied alphas, differences in alphas
+                 * won't be detected where the color is black.
+                 */
+                table[(value << 8) | alpha] = FastMath.pow(value / 255.0 * (alpha / 255.0), gamma);
             }
         }
 
-        result.l = 116.0 * f[1] - 16.0;
-        result.a = 500.0 * (f[0] - f[1]);
-        result.b = 200.0 * (f[1] - f[2]);
+        synchronized (LINEAR_TABLES) {
+            double[] existing = LINEAR_TABLES.putIfAbsent(gamma, table);
 
-        return result;
+            return existing != null ? existing : table;
+        }
     }
 
-    private static final Logger LOGGER = Logger.getLogger(ColourSpace.class.getName());
+    /*
+     * The Lab companding function applied to an XYZ component relative to the white.
+     */
+    private static double labF(double r) {
+        return (r > EPSILON) ? FastMath.cbrt(r) : (KAPPA * r + 16.0) / 116.0;
+    }
 
     final float[] aLum;
     final float[] bLum;
 
+    // The chroma planes, which are null if the chroma is lazy
     final float[] aA;
     final float[] bA;
     final float[] aB;
     final float[] bB;
 
+    // The pixels from which lazy chroma is computed, indexed as the planes would be, or null if there are planes
+    private final int[] pixelsA;
+    private final int[] pixelsB;
+    private final double[] linear;
+
     ColourSpace(RGBAImage imageA, RGBAImage imageB, double gamma, double luminance) {
+        this(imageA, imageB, gamma, luminance, null);
+    }
+
+    /*
+     * Allocates planes of the given size to be filled by convert, e.g. as rolling row buffers, without chroma planes
+     * if chroma is false.
+     */
+    ColourSpace(int size, boolean chroma) {
+        aLum = new float[size];
+        bLum = new float[size];
+
+        aA = chroma ? new float[size] : null;
+        bA = chroma ? new float[size] : null;
+        aB = chroma ? new float[size] : null;
+        bB = chroma ? new float[size] : null;
+
+        pixelsA = null;
+        pixelsB = null;
+        linear = null;
+    }
+
+    /*
+     * Computes the chroma of the pixels of the images lazily, without luminance planes, for a test whose luminance is
+     * held elsewhere.
+     */
+    ColourSpace(RGBAImage imageA, RGBAImage imageB, double gamma) {
+        aLum = null;
+        bLum = null;
+
+        aA = null;
+        bA = null;
+        aB = null;
+        bB = null;
+
+        pixelsA = imageA.getPixels();
+        pixelsB = imageB.getPixels();
+        linear = linearTable(gamma);
+    }
+
+    /*
+     * Converts both images, splitting the rows into bands that are run on the given pool (null for serial).
+     */
+    ColourSpace(RGBAImage imageA, RGBAImage imageB, double gamma, double luminance, ForkJoinPool pool) {
+        this(imageA, imageB, gamma, luminance, pool, null);
+    }
+
+    /*
+     * Converts the luminance of both images into the planes of the given workspace, or into new planes if it is null,
+     * and computes their chroma lazily. Planes taken from a workspace may be longer than the image.
+     */
+    ColourSpace(RGBAImage imageA, RGBAImage imageB, double gamma, double luminance, ForkJoinPool pool,
+            ComparisonWorkspace workspace) {
         int w = imageA.getWidth();
         int h = imageA.getHeight();
         int dim = w * h;
 
-        long startMillis = System.currentTimeMillis();
+        aLum = ComparisonWorkspace.plane(workspace, 0, dim);
+        bLum = ComparisonWorkspace.plane(workspace, 1, dim);
 
-        aLum = new float[dim];
-        bLum = new float[dim];
+        aA = null;
+        bA = null;
+        aB = null;
+        bB = null;
 
-        aA = new float[dim];
-        bA = new float[dim];
-        aB = new float[dim];
-        bB = new float[dim];
+        pixelsA = imageA.getPixels();
+        pixelsB = imageB.getPixels();
+        linear = linearTable(gamma);
 
-        for (int y = 0; y < h; y++) {
-            for (int x = 0; x < w; x++) {
-                int i = x + y * w;
+        RowBands.run(pool, h, (band, y0, y1) -> {
+            convert(pixelsA, y0 * w, linear, luminance, aLum, y0 * w, (y1 - y0) * w);
+            convert(pixelsB, y0 * w, linear, luminance, bLum, y0 * w, (y1 - y0) * w);
+        });
+    }
 
-                /*
-                 * perceptualdiff used to use premultiplied alphas when loading
-                 * the image. This is no longer the case since the switch to
-                 * FreeImage. We need to do the multiplication here now. As was
-                 * the case with premultiplied alphas, differences in alphas
-                 * won't be detected where the color is black.
-                 */
+    /*
+     * Converts a single image into the given planes, in bands of rows on the given pool (null for serial). Only the
+     * luminance is converted if the chroma planes are null.
+     */
+    static void convert(RGBAImage image, double gamma, double luminance, float[] lum, float[] labA, float[] labB,
+            ForkJoinPool pool) {
+        int w = image.getWidth();
+        double[] linear = linearTable(gamma);
+
+        RowBands.run(pool, image.getHeight(), (band, y0, y1) -> {
+            if (labA == null) {
+                convert(image.getPixels(), y0 * w, linear, luminance, lum, y0 * w, (y1 - y0) * w);
+            } else {
+                convert(image.getPixels(), y0 * w, linear, luminance, lum, labA, labB, y0 * w, (y1 - y0) * w);
+            }
+        });
+    }
+
+    /*
+     * Converts a single image into the given off-heap planes a row at a time, in bands of rows on the given pool (null
+     * for serial). Only the luminance is converted if the chroma planes are null.
+     */
+    static void convert(RGBAImage image, double gamma, double luminance, Plane lum, Plane labA, Plane labB,
+            ForkJoinPool pool) {
+        int w = image.getWidth();
+        double[] linear = linearTable(gamma);
+
+        RowBands.run(pool, image.getHeight(), (band, y0, y1) -> {
+            float[] lumRow = new float[w];
+            float[] labARow = labA == null ? null : new float[w];
+            float[] labBRow = labA == null ? null : new float[w];
+
+            for (int y = y0; y < y1; y++) {
+                if (labA == null) {
+                    convert(image.getPixels(), y * w, linear, luminance, lumRow, 0, w);
+                } else {
+                    convert(image.getPixels(), y * w, linear, luminance, lumRow, labARow, labBRow, 0, w);
+
+                    labA.setRow(y, labARow, 0);
+                    labB.setRow(y, labBRow, 0);
+                }
+
+                lum.setRow(y, lumRow, 0);
+            }
+        });
+    }
+
+    /*
+     * Assuming the colorspace is Adobe RGB (1998), converts count pixels starting at pixels[from] to XYZ and stores
+     * the scaled Y in lum and the Lab a and b in labA and labB, starting at offset.
+     */
+    static void convert(int[] pixels, int from, double[] linear, double luminance, float[] lum, float[] labA,
+            float[] labB, int offset, int count) {
+        for (int j = 0; j < count; j++) {
+            int p = pixels[from + j];
+            int i = offset + j;
+            int alpha = p >>> 24;
+
+            // The channel order matches RGBAImage.getRed/getGreen/getBlue
+            double r = linear[((p & 0xFF) << 8) | alpha];
+            double g = linear[(p & 0xFF00) | alpha];
+            double b = linear[((p >> 8) & 0xFF00) | alpha];
+
+            double x = r * M00 + g * M01 + b * M02;
+            double y = r * M10 + g * M11 + b * M12;
+            double z = r * M20 + g * M21 + b * M22;
+
+            long lab = lab(x, y, z);
+
+            lum[i] = (float) (y * luminance);
+            labA[i] = Float.intBitsToFloat((int) (lab >>> 32));
+            labB[i] = Float.intBitsToFloat((int) lab);
+        }
+    }
 
-                double aAlpha = imageA.getAlpha(i) / 255.0;
-                double aColorR = FastMath.pow(imageA.getRed(i) / 255.0 * aAlpha, gamma);
-                double aColorG = FastMath.pow(imageA.getGreen(i) / 255.0 * aAlpha, gamma);
-                double aColorB = FastMath.pow(imageA.getBlue(i) / 255.0 * aAlpha, gamma);
+    /*
+     * Converts only the luminance of count pixels starting at pixels[from], storing it in lum starting at offset, with
+     * the same arithmetic as the full conversion.
+     */
+    static void convert(int[] pixels, int from, double[] linear, double luminance, float[] lum, int offset,
+            int count) {
+        for (int j = 0; j < count; j++) {
+            int p = pixels[from + j];
+            int alpha = p >>> 24;
 
-                XYZ a = adobeRgbToXyz(aColorR, aColorG, aColorB);
-                LAB lab = xyzToLab(a.x, a.y, a.z);
+            double r = linear[((p & 0xFF) << 8) | alpha];
+            double g = linear[(p & 0xFF00) | alpha];
+            double b = linear[((p >> 8) & 0xFF00) | alpha];
 
-                aA[i] = (float) lab.a;
-                aB[i] = (float) lab.b;
+            double y = r * M10 + g * M11 + b * M12;
 
-                double bAlpha = imageB.getAlpha(i) / 255.0;
-                double bColorR = FastMath.pow(imageB.getRed(i) / 255.0 * bAlpha, gamma);
-                double bColorG = FastMath.pow(imageB.getGreen(i) / 255.0 * bAlpha, gamma);
-                double bColorB = FastMath.pow(imageB.getBlue(i) / 255.0 * bAlpha, gamma);
+            lum[offset + j] = (float) (y * luminance);
+        }
+    }
 
-                XYZ b = adobeRgbToXyz(bColorR, bColorG, bColorB);
-                lab = xyzToLab(b.x, b.y, b.z);
+    /*
+     * The Lab a and b of an XYZ colour, rounded to float, as the bits of a in the high half and of b in the low half.
+     */
+    private static long lab(double x, double y, double z) {
+        double fx = labF(x / WHITE_X);
+        double fy = labF(y / WHITE_Y);
+        double fz = labF(z / WHITE_Z);
 
-                bA[i] = (float) lab.a;
-                bB[i] = (float) lab.b;
+        float labA = (float) (500.0 * (fx - fy));
+        float labB = (float) (200.0 * (fy - fz));
 
-                aLum[i] = (float) (a.y * luminance);
-                bLum[i] = (float) (b.y * luminance);
-            }
+        return ((long) Float.floatToRawIntBits(labA) << 32) | (Float.floatToRawIntBits(labB) & 0xFFFFFFFFL);
+    }
+
+    /*
+     * The Lab a and b of a packed pixel, as returned by lab.
+     */
+    private static long lab(int p, double[] linear) {
+        int alpha = p >>> 24;
+
+        double r = linear[((p & 0xFF) << 8) | alpha];
+        double g = linear[(p & 0xFF00) | alpha];
+        double b = linear[((p >> 8) & 0xFF00) | alpha];
+
+        return lab(r * M00 + g * M01 + b * M02, r * M10 + g * M11 + b * M12, r * M20 + g * M21 + b * M22);
+    }
+
+    /*
+     * The squared distance between the Lab chroma of the two images at the given index of the planes, computed from
+     * the pixels if the chroma is lazy.
+     */
+    double chromaDistance(int index) {
+        double da;
+        double db;
+
+        if (pixelsA == null) {
+            da = aA[index] - bA[index];
+            db = aB[index] - bB[index];
+        } else {
+            long labA = lab(pixelsA[index], linear);
+            long labB = lab(pixelsB[index], linear);
+
+            da = Float.intBitsToFloat((int) (labA >>> 32)) - Float.intBitsToFloat((int) (labB >>> 32));
+            db = Float.intBitsToFloat((int) labA) - Float.intBitsToFloat((int) labB);
         }
 
-        LOGGER.log(Level.FINE, "elapsedMillis = " + (System.currentTimeMillis() - startMillis));
+        return da * da + db * db;
     }
 
     void dump() {
@@ -149,6 +342,10 @@ class ColourSpace {
     }
 
     private static void dumpArray(float[] array) {
+        if (array == null) {
+            return;
+        }
+
         for (int i = 0; i < array.length; i++) {
             System.out.printf("%11f", array[i]);
 
@@ -31,7 +31,7 @@ class CompareArgs {
 
     final RGBAImage imageB;
 
-    final RGBAImage imageDifference;
+    final File fileDifference;    // Written only if the comparison fails
 
     final boolean verbose;
 
@@ -42,7 +42,7 @@ class CompareArgs {
     CompareArgs(String[] mainArgs) throws IOException {
         imageA = new RGBAImage(new File(mainArgs[0]));
         imageB = new RGBAImage(new File(mainArgs[1]));
-        imageDifference = new RGBAImage(imageA.getWidth(), imageA.getHeight(), "image_difference");
+        fileDifference = new File("image_difference.PNG");
 
         verbose = false;
         sumErrors = false;
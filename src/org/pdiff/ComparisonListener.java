@@ -0,0 +1,59 @@
+/*
+ * Comparison Listener
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.pdiff;
+
+/**
+ * Receives the timing of each stage of every comparison, e.g. to export throughput and latency histograms. Listeners
+ * are registered with {@link Instrumentation#addListener(ComparisonListener)} and are called on the thread that ran the
+ * stage, so they must be thread-safe and quick.
+ * @author Paul Parlett
+ */
+public interface ComparisonListener {
+
+    /**
+     * Called when a stage starts.
+     * @param stage The stage
+     * @param width The width of the images, or 0 if not yet known
+     * @param height The height of the images, or 0 if not yet known
+     */
+    default void stageStarted(Stage stage, int width, int height) {
+        // nothing by default
+    }
+
+    /**
+     * Called when a stage completes. A stage that is interleaved with another, as when streaming, is reported once
+     * with its total time.
+     * @param stage The stage
+     * @param width The width of the images
+     * @param height The height of the images
+     * @param nanos The time spent in the stage
+     */
+    void stageCompleted(Stage stage, int width, int height, long nanos);
+
+    /**
+     * Called when a comparison completes.
+     * @param width The width of the images
+     * @param height The height of the images
+     * @param passed True if the images are perceptually indistinguishable
+     * @param pixelsFailed The number of pixels that failed, or -1 if the images were identical or not comparable
+     * @param timings The time spent in each stage
+     */
+    default void comparisonCompleted(int width, int height, boolean passed, int pixelsFailed, StageTimings timings) {
+        // nothing by default
+    }
+
+}
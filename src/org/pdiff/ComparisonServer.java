@@ -0,0 +1,597 @@
+/*
+ * Comparison Server
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.pdiff;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.pdiff.Metric.ComparisonResult;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A resident comparison service on a local HTTP endpoint, so that comparisons run in a JVM whose JIT has already
+ * compiled the metric rather than paying for class loading and interpretation on every call.
+ * <p>
+ * {@code POST /compare?a=pathA&b=pathB} compares two image files on the server's file system, and
+ * {@code POST /compare?lengthA=n} compares two uploaded images sent one after the other as the request body, the first
+ * being n bytes long. The optional parameters thresholdPixels, fieldOfView, gamma, luminance, colorFactor,
+ * luminanceOnly, verdictOnly, downSample and scale override those of the comparison, and deadline overrides the
+ * server's deadline in milliseconds. The response is a JSON object with the status (PASS or FAIL), pixelsFailed,
+ * errorSum, a message and the nanoseconds spent in each stage, including the queue.
+ * <p>
+ * At most concurrency comparisons run at once and at most queueCapacity wait; further requests are refused with 503
+ * at once, before their bodies are read. An upload must give its Content-Length, of at most 256 MB, and is read into
+ * a single array only once it has been admitted, so at most concurrency + queueCapacity uploads are held at once. A
+ * request that has not finished by its deadline gets 504, and is dropped if it has not started, but a comparison
+ * already running is left to finish as its result is discarded, keeping its place until it does. Each comparison
+ * thread keeps a ComparisonWorkspace, so that comparisons of images no larger than the ones before allocate little.
+ * <p>
+ * {@code GET /ready} returns 200 once the warm-up has compared the pairs in the data directory the given number of
+ * times, so that the hot loops have been compiled, and 503 until then. It reports the time of the first and last
+ * warm-up rounds. If the warm-up fails or finds no pairs before finishing a round, the server never becomes ready and
+ * {@code /ready} keeps returning 503 with warmUpFailed set, although comparisons are still served.
+ * @author Paul Parlett
+ */
+public final class ComparisonServer {
+
+    private static final Logger LOGGER = Logger.getLogger(ComparisonServer.class.getName());
+
+    private static final int EXIT_FAILURE = 1;
+
+    // The largest request body accepted
+    private static final int MAX_UPLOAD_BYTES = 1 << 28;
+
+    private static final String[][] WARM_UP_PAIRS = {
+        {"alpha1.png", "alpha2.png" }, {"fish1.png", "fish2.png" }, {"Aqsis_vase_ref.png", "Aqsis_vase.png" } };
+
+    private final HttpServer server;
+
+    private final ExecutorService exchanges;
+
+    private final ThreadPoolExecutor comparisons;
+
+    // A permit for each request running or waiting, taken before the body of an upload is read
+    private final Semaphore admitted;
+
+    private final long deadlineMillis;
+
+    private final File warmUpDirectory;
+
+    private final int warmUpRounds;
+
+    // Each comparison thread keeps the buffers of its last comparison for the next
+    private final MetricImpl metric = new MetricImpl(null, ComparisonWorkspace.threadLocal());
+
+    private volatile int warmUpRoundsDone;
+
+    private volatile long firstRoundMillis = -1;
+
+    private volatile long lastRoundMillis = -1;
+
+    private volatile boolean ready;
+
+    private volatile boolean warmUpFailed;
+
+    /**
+     * Creates a server, which does not accept requests until started.
+     * @param address The address to listen on, normally a loopback address
+     * @param concurrency The most comparisons run at once
+     * @param queueCapacity The most requests waiting for a comparison to finish
+     * @param deadlineMillis The time within which a request must be answered unless it gives its own deadline
+     * @param warmUpDirectory The directory holding the warm-up pairs, i.e. the data directory of this project
+     * @param warmUpRounds The number of times the warm-up pairs are compared before the server is ready
+     * @throws IOException Thrown if the address cannot be bound
+     */
+    public ComparisonServer(InetSocketAddress address, int concurrency, int queueCapacity, long deadlineMillis,
+            File warmUpDirectory, int warmUpRounds) throws IOException {
+        this.deadlineMillis = deadlineMillis;
+        this.warmUpDirectory = warmUpDirectory;
+        this.warmUpRounds = warmUpRounds;
+
+        admitted = new Semaphore(concurrency + queueCapacity);
+        // The permits bound the queue, which also holds cancelled comparisons until a thread takes them
+        comparisons = new ThreadPoolExecutor(concurrency, concurrency, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), daemonThreads("pdiff-compare-"));
+        exchanges = Executors.newCachedThreadPool(daemonThreads("pdiff-http-"));
+
+        server = HttpServer.create(address, 0);
+        server.setExecutor(exchanges);
+        server.createContext("/compare", this::compare);
+        server.createContext("/ready", this::ready);
+    }
+
+    private static ThreadFactory daemonThreads(String prefix) {
+        AtomicInteger count = new AtomicInteger();
+
+        return r -> {
+            Thread thread = new Thread(r, prefix + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Starts accepting requests and warming up in the background.
+     */
+    public void start() {
+        server.start();
+
+        Thread warmUp = new Thread(this::warmUp, "pdiff-warm-up");
+        warmUp.setDaemon(true);
+        warmUp.start();
+    }
+
+    /**
+     * Stops accepting requests, waiting at most a second for exchanges in progress.
+     */
+    public void stop() {
+        server.stop(1);
+        comparisons.shutdownNow();
+        exchanges.shutdownNow();
+    }
+
+    /**
+     * @return The port the server is listening on
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * @return True once the warm-up is complete
+     */
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * @return True if the warm-up ended without finishing a round, in which case the server never becomes ready
+     */
+    public boolean isWarmUpFailed() {
+        return warmUpFailed;
+    }
+
+    private void warmUp() {
+        PerceptualDiffParameters params = new PerceptualDiffParameters();
+
+        try {
+            for (int round = 0; round < warmUpRounds; round++) {
+                long startNanos = System.nanoTime();
+                boolean compared = false;
+
+                for (String[] pair : WARM_UP_PAIRS) {
+                    File fileA = new File(warmUpDirectory, pair[0]);
+                    File fileB = new File(warmUpDirectory, pair[1]);
+
+                    if (fileA.isFile() && fileB.isFile()) {
+                        metric.yeeCompare(new RGBAImage(fileA), new RGBAImage(fileB), params, null);
+                        compared = true;
+                    }
+                }
+
+                if (!compared) {
+                    LOGGER.log(Level.WARNING, "No warm-up pairs in " + warmUpDirectory);
+                    break;
+                }
+
+                long millis = (System.nanoTime() - startNanos) / 1000000;
+
+                if (round == 0) {
+                    firstRoundMillis = millis;
+                }
+
+                lastRoundMillis = millis;
+                warmUpRoundsDone = round + 1;
+            }
+        } catch (IOException | RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Warm-up failed", e);
+        }
+
+        if (warmUpRounds > 0 && warmUpRoundsDone == 0) {
+            // Nothing has been compiled, so the server is not ready however long it runs
+            LOGGER.log(Level.WARNING, "Not ready, as no warm-up round finished");
+
+            warmUpFailed = true;
+            return;
+        }
+
+        LOGGER.log(Level.INFO, "Ready after " + warmUpRoundsDone + " warm-up rounds, the last taking "
+                + lastRoundMillis + " ms");
+
+        ready = true;
+    }
+
+    private void ready(HttpExchange exchange) throws IOException {
+        String json = "{\"ready\":" + ready + ",\"warmUpRounds\":" + warmUpRoundsDone + ",\"firstRoundMillis\":"
+                + firstRoundMillis + ",\"lastRoundMillis\":" + lastRoundMillis + ",\"warmUpFailed\":" + warmUpFailed
+                + "}\n";
+
+        respond(exchange, ready ? 200 : 503, json);
+    }
+
+    private void compare(HttpExchange exchange) throws IOException {
+        long startNanos = System.nanoTime();
+
+        try {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                exchange.getResponseHeaders().set("Allow", "POST");
+                respond(exchange, 405, error("use POST"));
+                return;
+            }
+
+            Map<String, String> query;
+            PerceptualDiffParameters params;
+            long deadline;
+            int uploadLength;
+
+            try {
+                query = query(exchange.getRequestURI().getRawQuery());
+                deadline = query.containsKey("deadline") ? Long.parseLong(query.get("deadline")) : deadlineMillis;
+                params = parameters(query);
+                uploadLength = query.containsKey("lengthA") ? uploadLength(exchange) : 0;
+            } catch (IllegalArgumentException | IOException e) {
+                respond(exchange, 400, error(e.toString()));
+                return;
+            }
+
+            if (!admitted.tryAcquire()) {
+                respond(exchange, 503, error("too many requests are waiting"));
+                return;
+            }
+
+            Slot slot = new Slot();
+
+            try {
+                compare(exchange, query, params, uploadLength, deadline, startNanos, slot);
+            } finally {
+                // A no-op if the comparison started, as it gives up the place when it finishes
+                slot.abandon();
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /*
+     * A place among the requests admitted, held from before the body is read until the comparison finishes, or until
+     * the request is abandoned if its comparison has not started.
+     */
+    private final class Slot {
+
+        private final AtomicBoolean claimed = new AtomicBoolean();
+
+        // Called as the comparison starts; false if the request has been abandoned, in which case it must not run
+        boolean start() {
+            return claimed.compareAndSet(false, true);
+        }
+
+        void finish() {
+            admitted.release();
+        }
+
+        void abandon() {
+            if (claimed.compareAndSet(false, true)) {
+                admitted.release();
+            }
+        }
+
+    }
+
+    private void compare(HttpExchange exchange, Map<String, String> query, PerceptualDiffParameters params,
+            int uploadLength, long deadline, long startNanos, Slot slot) throws IOException {
+        Callable<ComparisonResult> task;
+
+        try {
+            task = task(exchange, query, params, uploadLength);
+        } catch (IllegalArgumentException | IOException e) {
+            respond(exchange, 400, error(e.toString()));
+            return;
+        }
+
+        Future<ComparisonResult> future;
+
+        try {
+            future = comparisons.submit(() -> {
+                if (!slot.start()) {
+                    return null;
+                }
+
+                try {
+                    return task.call();
+                } finally {
+                    slot.finish();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            respond(exchange, 503, error("server is stopping"));
+            return;
+        }
+
+        ComparisonResult result;
+
+        try {
+            long remainingNanos = TimeUnit.MILLISECONDS.toNanos(deadline) - (System.nanoTime() - startNanos);
+
+            result = future.get(remainingNanos, TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            slot.abandon();
+            future.cancel(false);
+            respond(exchange, 504, error("deadline of " + deadline + " ms exceeded"));
+            return;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            int status = cause instanceof IOException || cause instanceof IllegalArgumentException ? 400 : 500;
+
+            respond(exchange, status, error(cause.toString()));
+            return;
+        } catch (InterruptedException | CancellationException e) {
+            slot.abandon();
+            future.cancel(false);
+            respond(exchange, 503, error("server is stopping"));
+            return;
+        }
+
+        respond(exchange, 200, json(result));
+    }
+
+    /*
+     * The declared length of an upload, checked against the limit and lengthA before any of it is read.
+     */
+    private static int uploadLength(HttpExchange exchange) {
+        String contentLength = exchange.getRequestHeaders().getFirst("Content-Length");
+
+        if (contentLength == null) {
+            throw new IllegalArgumentException("an upload must give its Content-Length");
+        }
+
+        long length = Long.parseLong(contentLength.trim());
+
+        if (length < 0 || length > MAX_UPLOAD_BYTES) {
+            throw new IllegalArgumentException("upload is larger than " + MAX_UPLOAD_BYTES + " bytes");
+        }
+
+        return (int) length;
+    }
+
+    /*
+     * Reads the images named or uploaded by the request and returns the comparison of them to run. The body of an
+     * upload is read on the exchange thread, once the request has been admitted and before it joins the queue, into
+     * a single array from which both images are decoded in place.
+     */
+    private Callable<ComparisonResult> task(HttpExchange exchange, Map<String, String> query,
+            PerceptualDiffParameters params, int uploadLength) throws IOException {
+        if (query.containsKey("lengthA")) {
+            int lengthA = Integer.parseInt(query.get("lengthA"));
+
+            if (lengthA < 0 || lengthA > uploadLength) {
+                throw new IllegalArgumentException("lengthA must be between 0 and the length of the body");
+            }
+
+            byte[] body = readBody(exchange.getRequestBody(), uploadLength);
+            int lengthB = uploadLength - lengthA;
+
+            long queuedNanos = System.nanoTime();
+
+            return () -> compare(() -> new RGBAImage(body, 0, lengthA, "a"),
+                    () -> new RGBAImage(body, lengthA, lengthB, "b"), params, queuedNanos);
+        }
+
+        String pathA = query.get("a");
+        String pathB = query.get("b");
+
+        if (pathA == null || pathB == null) {
+            throw new IllegalArgumentException("give either the paths a and b or lengthA and an upload");
+        }
+
+        long queuedNanos = System.nanoTime();
+
+        return () -> compare(() -> new RGBAImage(new File(pathA)), () -> new RGBAImage(new File(pathB)), params,
+                queuedNanos);
+    }
+
+    private interface Decoder {
+        RGBAImage decode() throws IOException;
+    }
+
+    /*
+     * Decodes and compares the images, recording the time since the request was queued as its queue stage.
+     */
+    private ComparisonResult compare(Decoder decoderA, Decoder decoderB, PerceptualDiffParameters params,
+            long queuedNanos) throws IOException {
+        StageTimer timer = new StageTimer();
+        timer.record(Stage.QUEUE, System.nanoTime() - queuedNanos);
+
+        timer.start(Stage.DECODE);
+        RGBAImage imageA = decoderA.decode();
+        RGBAImage imageB = decoderB.decode();
+        timer.size(imageA.getWidth(), imageA.getHeight());
+        timer.stop(Stage.DECODE);
+
+        return timer.finish(metric.yeeCompare(imageA, imageB, params, null, timer));
+    }
+
+    private static byte[] readBody(InputStream in, int length) throws IOException {
+        byte[] body = new byte[length];
+
+        for (int read = 0, n; read < length; read += n) {
+            n = in.read(body, read, length - read);
+
+            if (n < 0) {
+                throw new IOException("upload ended after " + read + " of " + length + " bytes");
+            }
+        }
+
+        return body;
+    }
+
+    private static Map<String, String> query(String rawQuery) throws UnsupportedEncodingException {
+        Map<String, String> query = new HashMap<>();
+
+        if (rawQuery != null) {
+            for (String parameter : rawQuery.split("&")) {
+                int equals = parameter.indexOf('=');
+
+                if (equals > 0) {
+                    query.put(URLDecoder.decode(parameter.substring(0, equals), "UTF-8"),
+                            URLDecoder.decode(parameter.substring(equals + 1), "UTF-8"));
+                }
+            }
+        }
+
+        return query;
+    }
+
+    /*
+     * The default parameters overridden by those in the query. NumberFormatException is an IllegalArgumentException.
+     */
+    static PerceptualDiffParameters parameters(Map<String, String> query) {
+        PerceptualDiffParameters params = new PerceptualDiffParameters();
+
+        for (Map.Entry<String, String> entry : query.entrySet()) {
+            String value = entry.getValue();
+
+            switch (entry.getKey()) {
+                case "thresholdPixels":
+                    params.thresholdPixels = Integer.parseInt(value);
+                    break;
+                case "fieldOfView":
+                    params.fieldOfView = Double.parseDouble(value);
+                    break;
+                case "gamma":
+                    params.gamma = Double.parseDouble(value);
+                    break;
+                case "luminance":
+                    params.luminance = Double.parseDouble(value);
+                    break;
+                case "colorFactor":
+                    params.colorFactor = Double.parseDouble(value);
+                    break;
+                case "luminanceOnly":
+                    params.luminanceOnly = Boolean.parseBoolean(value);
+                    break;
+                case "verdictOnly":
+                    params.verdictOnly = Boolean.parseBoolean(value);
+                    break;
+                case "downSample":
+                    params.downSample = Integer.parseInt(value);
+                    break;
+                case "scale":
+                    params.scale = Boolean.parseBoolean(value);
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        return params;
+    }
+
+    private static String json(ComparisonResult result) {
+        StringBuilder sb = new StringBuilder();
+
+        sb.append("{\"status\":\"").append(result.passed ? "PASS" : "FAIL").append('"');
+        sb.append(",\"pixelsFailed\":").append(result.pixelsFailed);
+        sb.append(",\"errorSum\":").append(BatchRunner.number(result.errorSum));
+        sb.append(",\"message\":").append(BatchRunner.jsonString(result.reason.replace('\n', ' ')));
+        sb.append(",\"stageNanos\":{");
+
+        for (Stage stage : Stage.values()) {
+            sb.append(stage.ordinal() == 0 ? "" : ",").append(BatchRunner.jsonString(
+                    stage.name().toLowerCase(Locale.ROOT))).append(':').append(result.timings.getNanos(stage));
+        }
+
+        sb.append("},\"bytesAllocated\":").append(result.timings.getBytesAllocated());
+
+        return sb.append("}\n").toString();
+    }
+
+    private static String error(String message) {
+        return "{\"status\":\"ERROR\",\"message\":" + BatchRunner.jsonString(message) + "}\n";
+    }
+
+    private static void respond(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] body = json.getBytes(StandardCharsets.UTF_8);
+
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, body.length);
+
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    /**
+     * Runs a server on the loopback interface until the JVM is stopped.
+     * @param mainArgs port [concurrency [queueCapacity [deadlineMillis [dataDirectory [warmUpRounds]]]]]
+     * @throws IOException Thrown if the port cannot be bound
+     */
+    public static void main(String[] mainArgs) throws IOException {
+        if (mainArgs.length < 1 || mainArgs.length > 6) {
+            System.err.println(
+                    "usage: ComparisonServer port [concurrency [queueCapacity [deadlineMillis [dataDirectory "
+                            + "[warmUpRounds]]]]]");
+            System.exit(EXIT_FAILURE);
+            return;
+        }
+
+        int processors = Runtime.getRuntime().availableProcessors();
+
+        int port = Integer.parseInt(mainArgs[0]);
+        int concurrency = mainArgs.length > 1 ? Integer.parseInt(mainArgs[1]) : processors;
+        int queueCapacity = mainArgs.length > 2 ? Integer.parseInt(mainArgs[2]) : 4 * concurrency;
+        long deadlineMillis = mainArgs.length > 3 ? Long.parseLong(mainArgs[3]) : 30000;
+        File dataDirectory = new File(mainArgs.length > 4 ? mainArgs[4] : "data");
+        int warmUpRounds = mainArgs.length > 5 ? Integer.parseInt(mainArgs[5]) : 20;
+
+        ComparisonServer server = new ComparisonServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), port),
+                concurrency, queueCapacity, deadlineMillis, dataDirectory, warmUpRounds);
+
+        server.start();
+
+        System.out.println("Listening on http://localhost:" + server.getPort() + "/");
+    }
+
+}
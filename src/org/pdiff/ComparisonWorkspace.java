@@ -0,0 +1,249 @@
+/*
+ * Comparison Workspace
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.pdiff;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The colour planes, pyramid levels and per-band working rows of a whole-image comparison, kept so that the next
+ * comparison of images of the same or a smaller size allocates none of them. The buffers grow when larger images are
+ * compared and are kept at their largest size until cleared.
+ * <p>
+ * A workspace is used by one comparison at a time. A MetricImpl created with a Pool takes a workspace from it for each
+ * comparison: a thread-local pool suits executors with a fixed set of threads, and a shared pool suits executors whose
+ * comparisons may run on any thread.
+ * @author Paul Parlett
+ */
+public final class ComparisonWorkspace {
+
+    /**
+     * A source of workspaces, one per comparison in progress.
+     */
+    public interface Pool {
+
+        /**
+         * @return A workspace that no other comparison is using
+         */
+        ComparisonWorkspace acquire();
+
+        /**
+         * @param workspace A workspace returned by acquire, which the caller no longer uses
+         */
+        void release(ComparisonWorkspace workspace);
+    }
+
+    /**
+     * @return A pool that keeps one workspace per thread, for as long as the thread lives
+     */
+    public static Pool threadLocal() {
+        ThreadLocal<ComparisonWorkspace> workspaces = ThreadLocal.withInitial(ComparisonWorkspace::new);
+
+        return new Pool() {
+            @Override
+            public ComparisonWorkspace acquire() {
+                ComparisonWorkspace workspace = workspaces.get();
+
+                // A comparison started within another on the same thread gets a workspace of its own
+                return workspace.inUse.get() ? new ComparisonWorkspace() : workspace;
+            }
+
+            @Override
+            public void release(ComparisonWorkspace workspace) {
+                // The workspace stays with its thread
+            }
+        };
+    }
+
+    /**
+     * @param maxIdle The most workspaces kept while no comparison is using them
+     * @return A pool shared by all threads, which creates workspaces as comparisons need them and keeps at most maxIdle
+     *         of them once they are released
+     */
+    public static Pool shared(int maxIdle) {
+        ConcurrentLinkedDeque<ComparisonWorkspace> idle = new ConcurrentLinkedDeque<>();
+        AtomicInteger idleCount = new AtomicInteger();
+
+        return new Pool() {
+            @Override
+            public ComparisonWorkspace acquire() {
+                ComparisonWorkspace workspace = idle.pollFirst();
+
+                if (workspace == null) {
+                    return new ComparisonWorkspace();
+                }
+
+                idleCount.decrementAndGet();
+
+                return workspace;
+            }
+
+            @Override
+            public void release(ComparisonWorkspace workspace) {
+                if (idleCount.incrementAndGet() <= maxIdle) {
+                    // The most recently used workspace is the likeliest to be large enough for the next comparison
+                    idle.offerFirst(workspace);
+                } else {
+                    idleCount.decrementAndGet();
+                }
+            }
+        };
+    }
+
+    // The six colour planes, of which a whole-image comparison uses only the luminance of A and B at 0 and 1 and a
+    // prepared comparison only that of B at 1, then the levels above level 0 of the pyramids of A and of B
+    static final int COLOUR_PLANES = 6;
+
+    static final int PLANES = COLOUR_PLANES + 2 * (LPyramid.MAX_PYR_LEVELS - 1);
+
+    private final AtomicBoolean inUse = new AtomicBoolean();
+
+    private final float[][] planes = new float[PLANES][];
+
+    private double[][] blurRows = new double[0][];
+
+    private PixelTest.Scratch[] scratches = new PixelTest.Scratch[0];
+
+    /**
+     * Creates an empty workspace, whose buffers are allocated by the first comparison that uses it.
+     */
+    public ComparisonWorkspace() {
+        super();
+    }
+
+    /**
+     * Drops the buffers, so that the next comparison allocates them again at its own size.
+     */
+    public void clear() {
+        checkIdle();
+
+        Arrays.fill(planes, null);
+        blurRows = new double[0][];
+        scratches = new PixelTest.Scratch[0];
+    }
+
+    /**
+     * @return The bytes held by the buffers
+     */
+    public long getBytes() {
+        long bytes = 0;
+
+        for (float[] plane : planes) {
+            bytes += plane == null ? 0 : 4L * plane.length;
+        }
+
+        for (double[] row : blurRows) {
+            bytes += row == null ? 0 : 8L * row.length;
+        }
+
+        for (PixelTest.Scratch scratch : scratches) {
+            // The adaptation, delta, masking factor, contrast sum and colour difference rows and a contrast row per
+            // band-pass level
+            bytes += scratch == null ? 0 : 8L * (5 + scratch.contrast.length) * scratch.delta.length;
+        }
+
+        return bytes;
+    }
+
+    private void checkIdle() {
+        if (inUse.get()) {
+            throw new IllegalStateException("the workspace is in use by a comparison");
+        }
+    }
+
+    /*
+     * Marks the workspace as used by a comparison, which must call end when done.
+     */
+    void begin() {
+        if (!inUse.compareAndSet(false, true)) {
+            throw new IllegalStateException("the workspace is already in use by another comparison");
+        }
+    }
+
+    void end() {
+        inUse.set(false);
+    }
+
+    /*
+     * Returns plane index of the workspace with room for at least size values, or a new plane if there is no
+     * workspace. The values of a reused plane are those left by the previous comparison.
+     */
+    static float[] plane(ComparisonWorkspace workspace, int index, int size) {
+        if (workspace == null) {
+            return new float[size];
+        }
+
+        if (workspace.planes[index] == null || workspace.planes[index].length < size) {
+            // Drop the old plane first, so that it can be collected if the new one needs the room
+            workspace.planes[index] = null;
+            workspace.planes[index] = new float[size];
+        }
+
+        return workspace.planes[index];
+    }
+
+    /*
+     * Returns one blur row of at least the given length per band, allocating them on the calling thread so that the
+     * bands may then each use their own row concurrently, or null if there is no workspace.
+     */
+    static double[][] blurRows(ComparisonWorkspace workspace, int bands, int length) {
+        if (workspace == null) {
+            return null;
+        }
+
+        if (workspace.blurRows.length < bands) {
+            workspace.blurRows = Arrays.copyOf(workspace.blurRows, bands);
+        }
+
+        for (int band = 0; band < bands; band++) {
+            double[] row = workspace.blurRows[band];
+
+            if (row == null || row.length < length) {
+                workspace.blurRows[band] = new double[length];
+            }
+        }
+
+        return workspace.blurRows;
+    }
+
+    /*
+     * Returns the test scratch rows for each band, for rows of at least the given width, allocated on the calling
+     * thread like blurRows, or null if there is no workspace.
+     */
+    static PixelTest.Scratch[] scratches(ComparisonWorkspace workspace, int bands, int width) {
+        if (workspace == null) {
+            return null;
+        }
+
+        if (workspace.scratches.length < bands) {
+            workspace.scratches = Arrays.copyOf(workspace.scratches, bands);
+        }
+
+        for (int band = 0; band < bands; band++) {
+            PixelTest.Scratch scratch = workspace.scratches[band];
+
+            if (scratch == null || scratch.delta.length < width) {
+                workspace.scratches[band] = new PixelTest.Scratch(width);
+            }
+        }
+
+        return workspace.scratches;
+    }
+
+}
@@ -0,0 +1,289 @@
+/*
+ * Dirty Regions
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.pdiff;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.pdiff.Metric.ComparisonResult;
+
+/*
+ * Compares only the parts of two images that are near pixels that differ.
+ *
+ * Every level of the pyramid is built by blurring the level below with a 5 x 5 filter, so a pyramid value depends only
+ * on the pixels within HALO of it. A pixel further than HALO from every differing pixel therefore has identical
+ * pyramid and chroma values in both images: it passes and adds exactly zero to errorSum. The tiles that contain
+ * differing pixels are grown by HALO and merged into disjoint regions, and only those regions are tested. Each region is
+ * converted and blurred on a crop grown by a further HALO, which gives exactly the values the whole image would have
+ * within the region. The regions are tested in the same bands of rows as MetricImpl, row by row from left to right, so
+ * pixelsFailed and errorSum are identical to those of a comparison of the whole image.
+ *
+ * IncrementalComparison finds regions in the same way around the pixels that changed since the previous pair of
+ * images, rather than around those that differ between the two images.
+ */
+final class DirtyRegions {
+
+    private static final Logger LOGGER = Logger.getLogger(DirtyRegions.class.getName());
+
+    static final int TILE_SIZE = 32;
+
+    // The distance over which the pyramid spreads a change
+    static final int HALO = 2 * (LPyramid.MAX_PYR_LEVELS - 1);
+
+    /*
+     * A region of pixels to test and the crop of the images from which its values are computed.
+     */
+    static final class Region {
+        final Rectangle tested;
+        final Rectangle crop;
+
+        Region(Rectangle tested, Rectangle crop) {
+            this.tested = tested;
+            this.crop = crop;
+        }
+    }
+
+    /*
+     * Finds the regions to test, in order of their left edge, or returns null if their crops would cover more than
+     * half of the image, when comparing the whole image is cheaper.
+     */
+    static List<Region> find(RGBAImage imageA, RGBAImage imageB) {
+        int w = imageA.getWidth();
+        int h = imageA.getHeight();
+        boolean[] dirty = new boolean[tilesX(w) * tilesY(h)];
+
+        mark(imageA.getPixels(), imageB.getPixels(), w, h, dirty);
+
+        return regions(dirty, w, h);
+    }
+
+    /*
+     * Finds the regions whose pyramid and chroma values may differ from those of the previous pair of images of the
+     * same size, i.e. those near a pixel of either image that has changed, or returns null as find does.
+     */
+    static List<Region> changed(RGBAImage previousA, RGBAImage imageA, RGBAImage previousB, RGBAImage imageB) {
+        int w = imageA.getWidth();
+        int h = imageA.getHeight();
+        boolean[] dirty = new boolean[tilesX(w) * tilesY(h)];
+
+        mark(previousA.getPixels(), imageA.getPixels(), w, h, dirty);
+        mark(previousB.getPixels(), imageB.getPixels(), w, h, dirty);
+
+        return regions(dirty, w, h);
+    }
+
+    private static int tilesX(int w) {
+        return (w + TILE_SIZE - 1) / TILE_SIZE;
+    }
+
+    private static int tilesY(int h) {
+        return (h + TILE_SIZE - 1) / TILE_SIZE;
+    }
+
+    /*
+     * Marks the tiles in which the pixels of the two images differ.
+     */
+    private static void mark(int[] pixelsA, int[] pixelsB, int w, int h, boolean[] dirty) {
+        int tilesX = tilesX(w);
+
+        for (int y = 0; y < h; y++) {
+            int row = (y / TILE_SIZE) * tilesX;
+
+            for (int x = 0; x < w; x++) {
+                int i = y * w + x;
+
+                if (pixelsA[i] != pixelsB[i]) {
+                    dirty[row + x / TILE_SIZE] = true;
+
+                    // The rest of this tile's row cannot change anything
+                    x = (x / TILE_SIZE + 1) * TILE_SIZE - 1;
+                }
+            }
+        }
+    }
+
+    /*
+     * Grows the dirty tiles into regions, or returns null if their crops would cover more than half of the image.
+     */
+    private static List<Region> regions(boolean[] dirty, int w, int h) {
+        int tilesX = tilesX(w);
+        int tilesY = tilesY(h);
+
+        Rectangle bounds = new Rectangle(0, 0, w, h);
+        List<Rectangle> tested = new ArrayList<>();
+
+        // Runs of dirty tiles along each row of tiles, grown by the halo
+        for (int ty = 0; ty < tilesY; ty++) {
+            for (int tx = 0; tx < tilesX; tx++) {
+                if (dirty[ty * tilesX + tx]) {
+                    int start = tx;
+
+                    while (tx + 1 < tilesX && dirty[ty * tilesX + tx + 1]) {
+                        tx++;
+                    }
+
+                    Rectangle run = new Rectangle(start * TILE_SIZE, ty * TILE_SIZE, (tx + 1 - start) * TILE_SIZE,
+                            TILE_SIZE);
+                    run.grow(HALO, HALO);
+
+                    tested.add(run.intersection(bounds));
+                }
+            }
+        }
+
+        merge(tested);
+
+        List<Region> regions = new ArrayList<>(tested.size());
+        long cropArea = 0;
+
+        for (Rectangle r : tested) {
+            Rectangle crop = new Rectangle(r);
+            crop.grow(HALO, HALO);
+            crop = crop.intersection(bounds);
+
+            cropArea += (long) crop.width * crop.height;
+
+            regions.add(new Region(r, crop));
+        }
+
+        if (2 * cropArea > (long) w * h) {
+            return null;
+        }
+
+        regions.sort(Comparator.comparingInt(region -> region.tested.x));
+
+        return regions;
+    }
+
+    /*
+     * Replaces any rectangles that overlap with their bounding rectangle until none overlap.
+     */
+    private static void merge(List<Rectangle> rectangles) {
+        boolean merged = true;
+
+        while (merged) {
+            merged = false;
+
+            for (int i = 0; i < rectangles.size(); i++) {
+                for (int j = rectangles.size() - 1; j > i; j--) {
+                    if (rectangles.get(i).intersects(rectangles.get(j))) {
+                        rectangles.set(i, rectangles.get(i).union(rectangles.remove(j)));
+                        merged = true;
+                    }
+                }
+            }
+        }
+    }
+
+    /*
+     * Compares the images within the regions, on the given pool (null for serial), timing the stages with the given
+     * timer. Pixels outside the regions pass.
+     */
+    static ComparisonResult compare(List<Region> regions, RGBAImage imageA, RGBAImage imageB,
+            PerceptualDiffParameters params, RGBAImage imageDifference, ForkJoinPool pool, StageTimer timer) {
+        int w = imageA.getWidth();
+        int h = imageA.getHeight();
+
+        LOGGER.log(Level.INFO, "Comparing " + regions.size() + " dirty regions");
+
+        int count = regions.size();
+        ColourSpace[] colourSpaces = new ColourSpace[count];
+        LPyramid[] pyramidsA = new LPyramid[count];
+        LPyramid[] pyramidsB = new LPyramid[count];
+
+        timer.start(Stage.COLOUR);
+
+        for (int i = 0; i < count; i++) {
+            Rectangle crop = regions.get(i).crop;
+
+            colourSpaces[i] = new ColourSpace(imageA.crop(crop.x, crop.y, crop.width, crop.height),
+                    imageB.crop(crop.x, crop.y, crop.width, crop.height), params.gamma, params.luminance, pool);
+        }
+
+        timer.stop(Stage.COLOUR);
+        timer.start(Stage.PYRAMID);
+
+        for (int i = 0; i < count; i++) {
+            Rectangle crop = regions.get(i).crop;
+
+            LPyramid[] pyramids = LPyramid.pair(colourSpaces[i].aLum, colourSpaces[i].bLum, crop.width, crop.height,
+                    false, pool);
+            pyramidsA[i] = pyramids[0];
+            pyramidsB[i] = pyramids[1];
+        }
+
+        timer.stop(Stage.PYRAMID);
+        timer.start(Stage.TEST);
+
+        // The pixels per degree depend on the width of the whole image, not of a region
+        PixelTest pixelTest = new PixelTest(params, w);
+        FailureMask failureMask = new FailureMask(w, h, params.recordErrors);
+
+        PixelTest.Sums[] bandSums = new PixelTest.Sums[RowBands.count(h)];
+
+        RowBands.run(pool, h, (band, y0, y1) -> {
+            float[][] rowsA = new float[LPyramid.MAX_PYR_LEVELS][];
+            float[][] rowsB = new float[LPyramid.MAX_PYR_LEVELS][];
+            PixelTest.Sums sums = new PixelTest.Sums();
+            PixelTest.Scratch scratch = new PixelTest.Scratch(w);
+
+            for (int y = y0; y < y1; y++) {
+                for (int i = 0; i < count; i++) {
+                    Rectangle tested = regions.get(i).tested;
+                    Rectangle crop = regions.get(i).crop;
+
+                    if (y < tested.y || y >= tested.y + tested.height) {
+                        continue;
+                    }
+
+                    int cy = y - crop.y;
+                    int offset = pyramidsA[i].rows(cy, rowsA) + tested.x - crop.x;
+                    pyramidsB[i].rows(cy, rowsB);
+
+                    pixelTest.testRow(rowsA, rowsB, offset, colourSpaces[i], offset, tested.width, failureMask,
+                            tested.x, y, sums, scratch);
+                }
+            }
+
+            bandSums[band] = sums;
+        });
+
+        int pixelsFailed = 0;
+        double errorSum = 0.0;
+
+        for (PixelTest.Sums sums : bandSums) {
+            pixelsFailed += sums.pixelsFailed;
+            errorSum += sums.errorSum;
+        }
+
+        ComparisonResult result = MetricImpl.result(pixelsFailed, errorSum, params, imageDifference, failureMask,
+                false, (long) w * h);
+
+        timer.stop(Stage.TEST);
+
+        return result;
+    }
+
+    private DirtyRegions() {
+        // prevent instantiation
+    }
+}
@@ -0,0 +1,300 @@
+/*
+ * Failure Mask
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.pdiff;
+
+import java.awt.image.BufferedImage;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * The pixels that failed a comparison, held as one bit per pixel in rows that are only allocated once a pixel in them
+ * has failed, and optionally the error of every pixel tested. Difference images and heat maps are rendered from it on
+ * demand, so a comparison that is not looked at does no image work.
+ * <p>
+ * Each row is written by a single thread, so the rows of different bands may be filled concurrently.
+ * @author Paul Parlett
+ */
+public final class FailureMask {
+
+    private static final int PASS = 0xFF000000;
+
+    private static final int FAIL = 0xFFFF0000;
+
+    private static final int ROW_FAILED = 1;
+
+    private static final int ROW_ERRORS = 2;
+
+    private final int width;
+
+    private final int height;
+
+    private final int wordsPerRow;
+
+    private final long[][] rows;
+
+    private final float[][] errors;
+
+    FailureMask(int width, int height, boolean recordErrors) {
+        this.width = width;
+        this.height = height;
+        this.wordsPerRow = (width + 63) >>> 6;
+        this.rows = new long[height][];
+        this.errors = recordErrors ? new float[height][] : null;
+    }
+
+    void fail(int x, int y) {
+        long[] row = rows[y];
+
+        if (row == null) {
+            row = new long[wordsPerRow];
+            rows[y] = row;
+        }
+
+        row[x >>> 6] |= 1L << x;
+    }
+
+    boolean isRecordingErrors() {
+        return errors != null;
+    }
+
+    void error(int x, int y, double error) {
+        float[] row = errors[y];
+
+        if (row == null) {
+            row = new float[width];
+            errors[y] = row;
+        }
+
+        row[x] = (float) error;
+    }
+
+    /**
+     * @return The width of the compared images
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * @return The height of the compared images
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @param x The column of the pixel
+     * @param y The row of the pixel
+     * @return True if the pixel failed
+     */
+    public boolean isFailed(int x, int y) {
+        long[] row = rows[y];
+
+        return row != null && (row[x >>> 6] & (1L << x)) != 0;
+    }
+
+    /**
+     * @return The number of pixels that failed
+     */
+    public int cardinality() {
+        int count = 0;
+
+        for (long[] row : rows) {
+            if (row != null) {
+                for (long word : row) {
+                    count += Long.bitCount(word);
+                }
+            }
+        }
+
+        return count;
+    }
+
+    /*
+     * An estimate of the heap held by the mask.
+     */
+    long sizeInBytes() {
+        long size = 64 + 16L * height * (errors == null ? 1 : 2);
+
+        for (int y = 0; y < height; y++) {
+            size += rows[y] == null ? 0 : 8L * wordsPerRow;
+            size += errors == null || errors[y] == null ? 0 : 4L * width;
+        }
+
+        return size;
+    }
+
+    /*
+     * Writes the mask as its dimensions, whether errors are recorded and, for each row, flags saying which of its
+     * failure bits and errors follow.
+     */
+    void write(DataOutput out) throws IOException {
+        out.writeInt(width);
+        out.writeInt(height);
+        out.writeBoolean(errors != null);
+
+        for (int y = 0; y < height; y++) {
+            boolean rowErrors = errors != null && errors[y] != null;
+
+            out.writeByte((rows[y] != null ? ROW_FAILED : 0) | (rowErrors ? ROW_ERRORS : 0));
+
+            if (rows[y] != null) {
+                for (long word : rows[y]) {
+                    out.writeLong(word);
+                }
+            }
+
+            if (rowErrors) {
+                for (float error : errors[y]) {
+                    out.writeFloat(error);
+                }
+            }
+        }
+    }
+
+    /*
+     * Reads a mask written by write.
+     */
+    static FailureMask read(DataInput in) throws IOException {
+        int width = in.readInt();
+        int height = in.readInt();
+
+        if (width < 0 || height < 0 || (long) width * height > Integer.MAX_VALUE) {
+            throw new IOException("invalid failure mask dimensions " + width + "x" + height);
+        }
+
+        FailureMask mask = new FailureMask(width, height, in.readBoolean());
+
+        for (int y = 0; y < height; y++) {
+            int flags = in.readByte();
+
+            if ((flags & ROW_FAILED) != 0) {
+                mask.rows[y] = new long[mask.wordsPerRow];
+
+                for (int word = 0; word < mask.wordsPerRow; word++) {
+                    mask.rows[y][word] = in.readLong();
+                }
+            }
+
+            if ((flags & ROW_ERRORS) != 0) {
+                if (mask.errors == null) {
+                    throw new IOException("failure mask has errors it did not record");
+                }
+
+                mask.errors[y] = new float[width];
+
+                for (int x = 0; x < width; x++) {
+                    mask.errors[y][x] = in.readFloat();
+                }
+            }
+        }
+
+        return mask;
+    }
+
+    /*
+     * Paints the image, which must be the same size, red where pixels failed and black elsewhere.
+     */
+    void render(RGBAImage image) {
+        int[] pixels = image.getPixels();
+
+        Arrays.fill(pixels, PASS);
+
+        for (int y = 0; y < height; y++) {
+            long[] row = rows[y];
+
+            if (row == null) {
+                continue;
+            }
+
+            for (int word = 0; word < wordsPerRow; word++) {
+                for (long bits = row[word]; bits != 0; bits &= bits - 1) {
+                    pixels[y * width + (word << 6) + Long.numberOfTrailingZeros(bits)] = FAIL;
+                }
+            }
+        }
+    }
+
+    /**
+     * Renders the difference image, in which failed pixels are red and the others black.
+     * @return The difference image
+     */
+    public BufferedImage toImage() {
+        RGBAImage image = new RGBAImage(width, height, "image_difference");
+
+        render(image);
+
+        return image.toBufferedImage();
+    }
+
+    /**
+     * Renders a heat map of the per-pixel error, i.e. the luminance difference plus the weighted colour difference,
+     * running from black through red and yellow to white at the largest error. The errors are only kept if
+     * recordErrors was set in the parameters of the comparison.
+     * @return The heat map
+     * @throws IllegalStateException Thrown if the errors were not recorded
+     */
+    public BufferedImage toHeatMap() {
+        if (errors == null) {
+            throw new IllegalStateException("per-pixel errors were not recorded");
+        }
+
+        float max = 0.0f;
+
+        for (float[] row : errors) {
+            if (row != null) {
+                for (float error : row) {
+                    max = Math.max(max, error);
+                }
+            }
+        }
+
+        RGBAImage image = new RGBAImage(width, height, "heat_map");
+        int[] pixels = image.getPixels();
+
+        Arrays.fill(pixels, PASS);
+
+        if (max > 0.0f) {
+            for (int y = 0; y < height; y++) {
+                float[] row = errors[y];
+
+                if (row == null) {
+                    continue;
+                }
+
+                for (int x = 0; x < width; x++) {
+                    float t = 3.0f * row[x] / max;
+
+                    int r = ramp(t);
+                    int g = ramp(t - 1.0f);
+                    int b = ramp(t - 2.0f);
+
+                    pixels[y * width + x] = PASS | (r << 16) | (g << 8) | b;
+                }
+            }
+        }
+
+        return image.toBufferedImage();
+    }
+
+    private static int ramp(float t) {
+        return Math.round(255.0f * Math.min(Math.max(t, 0.0f), 1.0f));
+    }
+
+}
@@ -0,0 +1,481 @@
+/*
+ * Frame Sequence
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.pdiff;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import javax.imageio.ImageIO;
+
+import org.pdiff.Metric.ComparisonResult;
+
+/**
+ * Compares two sequences of frames, such as a rendered animation and its reference, frame by frame.
+ * <p>
+ * The next pair of frames is decoded on a background thread while the current pair is compared. A pair that is
+ * identical to the previous pair is not compared again. Otherwise only the pixels near those that changed since the
+ * previous pair are retested, with the buffers of the previous comparison, unless the changes cover most of the
+ * frame. The result of every frame is identical to that of comparing the pair on its own with MetricImpl, and is
+ * passed to a listener as soon as it is known.
+ * <p>
+ * Frames compared with the decimated pyramid, verdictOnly or offHeap are compared whole by MetricImpl instead of
+ * incrementally, so that those parameters take effect, and only identical consecutive pairs are skipped.
+ * @author Paul Parlett
+ */
+public final class FrameSequence {
+
+    /**
+     * Supplies the frames of a sequence in order.
+     */
+    public interface Source {
+
+        /**
+         * @return The next frame, or null if there are no more
+         * @throws IOException Thrown if the frame cannot be read
+         */
+        RGBAImage next() throws IOException;
+    }
+
+    /**
+     * How a pair of frames was compared.
+     */
+    public enum Kind {
+        /** The pair was identical to the previous pair, whose result was reused. */
+        SKIPPED,
+        /** Only the pixels near those that changed since the previous pair were retested. */
+        INCREMENTAL,
+        /** Every pixel was tested. */
+        FULL
+    }
+
+    /**
+     * The result of comparing one pair of frames.
+     */
+    public static final class Frame {
+
+        final int index;
+
+        final ComparisonResult result;
+
+        final Kind kind;
+
+        final long pixelsRetested;
+
+        final long waitNanos;
+
+        Frame(int index, ComparisonResult result, Kind kind, long pixelsRetested, long waitNanos) {
+            this.index = index;
+            this.result = result;
+            this.kind = kind;
+            this.pixelsRetested = pixelsRetested;
+            this.waitNanos = waitNanos;
+        }
+
+        /**
+         * @return The index of the frame in both sequences, from 0
+         */
+        public int getIndex() {
+            return index;
+        }
+
+        /**
+         * @return The result of the comparison, with the timings of its stages
+         */
+        public ComparisonResult getResult() {
+            return result;
+        }
+
+        /**
+         * @return How the pair was compared
+         */
+        public Kind getKind() {
+            return kind;
+        }
+
+        /**
+         * @return The number of pixels put through the perceptual test for this frame
+         */
+        public long getPixelsRetested() {
+            return pixelsRetested;
+        }
+
+        /**
+         * @return The time the comparison waited for the pair to be decoded
+         */
+        public long getWaitNanos() {
+            return waitNanos;
+        }
+    }
+
+    /**
+     * Receives the result of each frame, in order, on the thread that called compare.
+     */
+    public interface Listener {
+
+        /**
+         * @param frame The result of the frame
+         */
+        void frameCompared(Frame frame);
+    }
+
+    /**
+     * The statistics of a whole sequence.
+     */
+    public static final class Summary {
+
+        int frames;
+
+        int framesFailed;
+
+        int framesSkipped;
+
+        int framesIncremental;
+
+        long pixelsFailed;
+
+        int maxPixelsFailed;
+
+        int worstFrame = -1;
+
+        double errorSum;
+
+        long decodeNanos;
+
+        long waitNanos;
+
+        long computeNanos;
+
+        boolean lengthsMatch = true;
+
+        /**
+         * @return True if the sequences have the same number of frames and every pair passed
+         */
+        public boolean isPassed() {
+            return lengthsMatch && framesFailed == 0;
+        }
+
+        /**
+         * @return The number of pairs compared, i.e. the length of the shorter sequence
+         */
+        public int getFrames() {
+            return frames;
+        }
+
+        /**
+         * @return The number of pairs that are visibly different or not comparable
+         */
+        public int getFramesFailed() {
+            return framesFailed;
+        }
+
+        /**
+         * @return The number of pairs identical to the previous pair
+         */
+        public int getFramesSkipped() {
+            return framesSkipped;
+        }
+
+        /**
+         * @return The number of pairs of which only part was retested
+         */
+        public int getFramesIncremental() {
+            return framesIncremental;
+        }
+
+        /**
+         * @return The number of pixels that failed, summed over all frames
+         */
+        public long getPixelsFailed() {
+            return pixelsFailed;
+        }
+
+        /**
+         * @return The most pixels that failed in one frame
+         */
+        public int getMaxPixelsFailed() {
+            return maxPixelsFailed;
+        }
+
+        /**
+         * @return The index of the first frame in which the most pixels failed, or -1 if no pixel failed
+         */
+        public int getWorstFrame() {
+            return worstFrame;
+        }
+
+        /**
+         * @return The error summed over all frames
+         */
+        public double getErrorSum() {
+            return errorSum;
+        }
+
+        /**
+         * @return The mean error per frame
+         */
+        public double getMeanErrorSum() {
+            return frames == 0 ? 0.0 : errorSum / frames;
+        }
+
+        /**
+         * @return The total time spent decoding frames, most of it while earlier frames were compared
+         */
+        public long getDecodeNanos() {
+            return decodeNanos;
+        }
+
+        /**
+         * @return The total time the comparisons waited for frames to be decoded
+         */
+        public long getWaitNanos() {
+            return waitNanos;
+        }
+
+        /**
+         * @return The total time spent comparing frames, apart from decoding them
+         */
+        public long getComputeNanos() {
+            return computeNanos;
+        }
+
+        /**
+         * @return True if both sequences have the same number of frames
+         */
+        public boolean isLengthsMatch() {
+            return lengthsMatch;
+        }
+
+        void add(Frame frame) {
+            ComparisonResult result = frame.result;
+
+            frames++;
+            framesFailed += result.passed ? 0 : 1;
+            framesSkipped += frame.kind == Kind.SKIPPED ? 1 : 0;
+            framesIncremental += frame.kind == Kind.INCREMENTAL ? 1 : 0;
+
+            // Identical and incomparable pairs report -1 pixels failed
+            pixelsFailed += Math.max(result.pixelsFailed, 0);
+            errorSum += result.errorSum;
+
+            if (result.pixelsFailed > maxPixelsFailed) {
+                maxPixelsFailed = result.pixelsFailed;
+                worstFrame = frame.index;
+            }
+
+            decodeNanos += result.timings.getNanos(Stage.DECODE);
+            waitNanos += frame.waitNanos;
+            computeNanos += result.timings.getTotalNanos() - result.timings.getNanos(Stage.DECODE);
+        }
+    }
+
+    /*
+     * A pair of decoded frames, either of which is null at the end of its sequence.
+     */
+    private static final class Pair {
+        final RGBAImage imageA;
+
+        final RGBAImage imageB;
+
+        final long decodeNanos;
+
+        Pair(RGBAImage imageA, RGBAImage imageB, long decodeNanos) {
+            this.imageA = imageA;
+            this.imageB = imageB;
+            this.decodeNanos = decodeNanos;
+        }
+    }
+
+    private final ForkJoinPool pool;
+
+    /**
+     * Creates a comparison of sequences whose frames are compared in bands of rows on the given pool.
+     * @param pool The pool to run on, or null to run on the calling thread
+     */
+    public FrameSequence(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * @param files The image files of the frames, in order
+     * @return A source that decodes the files one at a time
+     */
+    public static Source files(List<File> files) {
+        Iterator<File> it = new ArrayList<>(files).iterator();
+
+        return () -> it.hasNext() ? new RGBAImage(it.next()) : null;
+    }
+
+    /**
+     * @param directory A directory of image files whose names sort in frame order, e.g. frame0001.png
+     * @return A source that decodes the image files of the directory in order of name
+     * @throws IOException Thrown if the directory cannot be listed
+     */
+    public static Source directory(File directory) throws IOException {
+        List<String> suffixes = Arrays.asList(ImageIO.getReaderFileSuffixes());
+
+        File[] files = directory.listFiles(file -> {
+            String name = file.getName();
+            int dot = name.lastIndexOf('.');
+
+            return file.isFile() && dot >= 0 && suffixes.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+        });
+
+        if (files == null) {
+            throw new IOException("cannot list " + directory);
+        }
+
+        Arrays.sort(files);
+
+        return files(Arrays.asList(files));
+    }
+
+    /**
+     * Compares the sequences frame by frame until either ends.
+     * @param sourceA The frames of the first sequence
+     * @param sourceB The frames of the second sequence
+     * @param params The parameters for the comparison algorithm
+     * @param listener The listener to pass the result of each frame to, or null if not required
+     * @return The statistics of the whole sequence
+     * @throws IOException Thrown if a frame cannot be read
+     */
+    public Summary compare(Source sourceA, Source sourceB, PerceptualDiffParameters params, Listener listener)
+            throws IOException {
+        ExecutorService decoder = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "pdiff-frame-decoder");
+            thread.setDaemon(true);
+
+            return thread;
+        });
+
+        IncrementalComparison incremental = IncrementalComparison.supports(params)
+                ? new IncrementalComparison(params, pool) : null;
+        MetricImpl metric = new MetricImpl(pool);
+        ComparisonWorkspace workspace = new ComparisonWorkspace();
+
+        Summary summary = new Summary();
+
+        try {
+            Future<Pair> next = decoder.submit(() -> decode(sourceA, sourceB));
+
+            RGBAImage previousA = null;
+            RGBAImage previousB = null;
+            ComparisonResult previous = null;
+
+            for (int index = 0;; index++) {
+                long waitStart = System.nanoTime();
+                Pair pair = get(next);
+                long waitNanos = System.nanoTime() - waitStart;
+
+                if (pair.imageA == null || pair.imageB == null) {
+                    summary.lengthsMatch = pair.imageA == pair.imageB;
+
+                    break;
+                }
+
+                // Decode the next pair while this one is compared
+                next = decoder.submit(() -> decode(sourceA, sourceB));
+
+                StageTimer timer = new StageTimer();
+                timer.record(Stage.DECODE, pair.decodeNanos);
+
+                Frame frame;
+
+                if (previous != null && Arrays.equals(previousA.getPixels(), pair.imageA.getPixels())
+                        && Arrays.equals(previousB.getPixels(), pair.imageB.getPixels())
+                        && previousA.getWidth() == pair.imageA.getWidth()
+                        && previousB.getWidth() == pair.imageB.getWidth()) {
+                    timer.size(pair.imageA.getWidth(), pair.imageA.getHeight());
+
+                    ComparisonResult result = timer.finish(new ComparisonResult(previous.passed, previous.pixelsFailed,
+                            previous.errorSum, previous.reason, null, previous.failureMask, previous.lowerBound,
+                            previous.pixelsExamined));
+
+                    frame = new Frame(index, result, Kind.SKIPPED, 0, waitNanos);
+                } else if (incremental == null) {
+                    ComparisonResult result = timer.finish(metric.yeeCompare(pair.imageA, pair.imageB, params, null,
+                            timer, workspace));
+
+                    frame = new Frame(index, result, Kind.FULL, result.pixelsExamined, waitNanos);
+                } else {
+                    ComparisonResult result = timer.finish(incremental.compare(pair.imageA, pair.imageB, timer));
+                    long retested = incremental.getPixelsRetested();
+                    long pixels = (long) pair.imageA.getWidth() * pair.imageA.getHeight();
+
+                    frame = new Frame(index, result, retested < pixels ? Kind.INCREMENTAL : Kind.FULL, retested,
+                            waitNanos);
+                }
+
+                previousA = pair.imageA;
+                previousB = pair.imageB;
+                previous = frame.result;
+
+                summary.add(frame);
+
+                if (listener != null) {
+                    listener.frameCompared(frame);
+                }
+            }
+        } finally {
+            decoder.shutdownNow();
+        }
+
+        return summary;
+    }
+
+    private static Pair decode(Source sourceA, Source sourceB) throws IOException {
+        long startNanos = System.nanoTime();
+
+        RGBAImage imageA = sourceA.next();
+        RGBAImage imageB = sourceB.next();
+
+        return new Pair(imageA, imageB, System.nanoTime() - startNanos);
+    }
+
+    private static Pair get(Future<Pair> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+
+            throw new IOException("interrupted while decoding frames", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) cause).getCause();
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+
+            throw new IOException("failed to decode frames", cause);
+        }
+    }
+
+}
@@ -0,0 +1,115 @@
+/*
+ * Image Reader Source
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.pdiff;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/*
+ * Reads an image file in bands of rows through an ImageReader source region, so that only one band is decoded and
+ * held at a time. Readers for formats that cannot seek to a row, such as PNG, decode from the start of the image data
+ * for every band, which is why the bands are fairly tall.
+ */
+final class ImageReaderSource implements ScanlineSource {
+
+    private static final int BAND_ROWS = 256;
+
+    private final ImageInputStream stream;
+
+    private final ImageReader reader;
+
+    private final int width;
+
+    private final int height;
+
+    private int[] band;
+
+    private int bandStart;
+
+    private int bandRows;
+
+    private int next;
+
+    ImageReaderSource(File file) throws IOException {
+        stream = ImageIO.createImageInputStream(file);
+
+        if (stream == null) {
+            throw new IOException("failed to read image from file " + file);
+        }
+
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+
+        if (!readers.hasNext()) {
+            stream.close();
+            throw new IOException("failed to read image from file, unsupported image format");
+        }
+
+        reader = readers.next();
+        reader.setInput(stream, false, true);
+
+        width = reader.getWidth(0);
+        height = reader.getHeight(0);
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public void nextRow(int[] dst) throws IOException {
+        if (next >= bandStart + bandRows) {
+            readBand();
+        }
+
+        System.arraycopy(band, (next - bandStart) * width, dst, 0, width);
+        next++;
+    }
+
+    private void readBand() throws IOException {
+        int rows = Math.min(BAND_ROWS, height - next);
+
+        ImageReadParam param = reader.getDefaultReadParam();
+        param.setSourceRegion(new Rectangle(0, next, width, rows));
+
+        BufferedImage image = reader.read(0, param);
+
+        band = image.getRGB(0, 0, width, rows, band, 0, width);
+        bandStart = next;
+        bandRows = rows;
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.dispose();
+        stream.close();
+    }
+
+}
@@ -0,0 +1,302 @@
+/*
+ * Incremental Comparison
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.pdiff;
+
+import java.awt.Rectangle;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.pdiff.Metric.ComparisonResult;
+
+/*
+ * Compares a series of pairs of images of the same size, such as the frames of two animations, retesting only the
+ * pixels whose result may have changed since the previous pair.
+ *
+ * The luminance difference, colour difference and verdict of every pixel of the previous pair are kept. As in
+ * DirtyRegions, the result of a pixel depends only on the pixels of both images within HALO of it, so only the regions
+ * around the tiles in which either image changed are converted, blurred and retested, each on a crop grown by a
+ * further HALO. The first pair, and a pair after one of another size, starts from the state of two identical images,
+ * in which every pixel passes with no error, and retests the regions around the pixels in which the images differ.
+ * When the regions would cover more than half of the image the whole image is retested instead.
+ *
+ * pixelsFailed and errorSum are then summed over the kept values in the bands and the order in which MetricImpl sums
+ * them, so they are identical to those of a comparison of the pair on its own. The kept values take 17 bytes per
+ * pixel.
+ */
+final class IncrementalComparison {
+
+    private static final Logger LOGGER = Logger.getLogger(IncrementalComparison.class.getName());
+
+    private final PerceptualDiffParameters params;
+
+    private final ForkJoinPool pool;
+
+    private final ComparisonWorkspace workspace = new ComparisonWorkspace();
+
+    private RGBAImage previousA;
+
+    private RGBAImage previousB;
+
+    private double[] delta;
+
+    private double[] deltaE;
+
+    private boolean[] failed;
+
+    private long pixelsRetested;
+
+    /*
+     * Prepares to compare pairs with the given parameters, which it must support, in bands of rows on the given pool
+     * (null for serial).
+     */
+    IncrementalComparison(PerceptualDiffParameters params, ForkJoinPool pool) {
+        if (!supports(params)) {
+            throw new IllegalArgumentException(
+                    "incremental comparison does not support the decimated pyramid, verdictOnly or offHeap");
+        }
+
+        this.params = params;
+        this.pool = pool;
+    }
+
+    /*
+     * Whether pairs can be compared incrementally with the given parameters. The decimated pyramid spreads a change
+     * further than the tiles allow for, a verdict-only comparison stops at a lower bound rather than keep every
+     * pixel's values, and off-heap planes are meant for pairs too large to keep 17 bytes per pixel of on the heap.
+     */
+    static boolean supports(PerceptualDiffParameters params) {
+        return !params.decimatedPyramid && !params.verdictOnly && !params.offHeap;
+    }
+
+    /*
+     * The number of pixels retested by the last comparison.
+     */
+    long getPixelsRetested() {
+        return pixelsRetested;
+    }
+
+    /*
+     * Compares the next pair, timing its stages with the given timer, which the caller finishes.
+     */
+    ComparisonResult compare(RGBAImage imageA, RGBAImage imageB, StageTimer timer) {
+        pixelsRetested = 0;
+
+        if (params.downSample > 0 || params.scale) {
+            timer.start(Stage.RESAMPLE);
+            RGBAImage[] images = Resample.apply(imageA, imageB, params);
+            timer.stop(Stage.RESAMPLE);
+
+            imageA = images[0];
+            imageB = images[1];
+        }
+
+        if ((imageA.getWidth() != imageB.getWidth()) || (imageA.getHeight() != imageB.getHeight())) {
+            previousA = null;
+            previousB = null;
+
+            return new ComparisonResult(false, "Image dimensions do not match");
+        }
+
+        int w = imageA.getWidth();
+        int h = imageA.getHeight();
+
+        timer.size(w, h);
+
+        List<DirtyRegions.Region> regions;
+
+        if (previousA == null || previousA.getWidth() != w || previousA.getHeight() != h) {
+            reset(w * h);
+
+            regions = DirtyRegions.find(imageA, imageB);
+        } else {
+            regions = DirtyRegions.changed(previousA, imageA, previousB, imageB);
+        }
+
+        if (regions == null) {
+            Rectangle bounds = new Rectangle(0, 0, w, h);
+
+            regions = Collections.singletonList(new DirtyRegions.Region(bounds, bounds));
+        }
+
+        previousA = imageA;
+        previousB = imageB;
+
+        LOGGER.log(Level.INFO, "Retesting " + regions.size() + " regions");
+
+        // The pixels per degree depend on the width of the whole image, not of a region
+        PixelTest pixelTest = new PixelTest(params, w);
+
+        for (DirtyRegions.Region region : regions) {
+            retest(region, imageA, imageB, pixelTest, w, h, timer);
+
+            pixelsRetested += (long) region.tested.width * region.tested.height;
+        }
+
+        timer.report(Stage.COLOUR);
+        timer.report(Stage.PYRAMID);
+
+        if (Arrays.equals(imageA.getPixels(), imageB.getPixels())) {
+            // The kept values are all zero, as the regions cover every pixel at which the images differed before
+            timer.report(Stage.TEST);
+
+            return new ComparisonResult(true, "Images are binary identical");
+        }
+
+        timer.resume(Stage.TEST);
+        ComparisonResult result = sum(w, h);
+        timer.pause(Stage.TEST);
+        timer.report(Stage.TEST);
+
+        return result;
+    }
+
+    /*
+     * Starts from the state of two identical images of the given number of pixels.
+     */
+    private void reset(int dim) {
+        if (delta == null || delta.length != dim) {
+            delta = null;
+            deltaE = null;
+            failed = null;
+
+            delta = new double[dim];
+            deltaE = new double[dim];
+            failed = new boolean[dim];
+        } else {
+            Arrays.fill(delta, 0.0);
+            Arrays.fill(deltaE, 0.0);
+            Arrays.fill(failed, false);
+        }
+    }
+
+    /*
+     * Converts and blurs the crop of the region in the workspace and retests the pixels of the region, replacing
+     * their kept values.
+     */
+    private void retest(DirtyRegions.Region region, RGBAImage imageA, RGBAImage imageB, PixelTest pixelTest, int w,
+            int h, StageTimer timer) {
+        Rectangle tested = region.tested;
+        Rectangle crop = region.crop;
+
+        boolean whole = crop.width == w && crop.height == h;
+
+        timer.resume(Stage.COLOUR);
+        RGBAImage cropA = whole ? imageA : imageA.crop(crop.x, crop.y, crop.width, crop.height);
+        RGBAImage cropB = whole ? imageB : imageB.crop(crop.x, crop.y, crop.width, crop.height);
+
+        ColourSpace colourSpace = new ColourSpace(cropA, cropB, params.gamma, params.luminance, pool, workspace);
+        timer.pause(Stage.COLOUR);
+
+        timer.resume(Stage.PYRAMID);
+        LPyramid[] pyramids = LPyramid.pair(colourSpace.aLum, colourSpace.bLum, crop.width, crop.height, false, pool,
+                workspace);
+        timer.pause(Stage.PYRAMID);
+
+        timer.resume(Stage.TEST);
+
+        // Only the failures of the retested pixels are marked, and they are copied into the kept verdicts
+        FailureMask failureMask = new FailureMask(w, h, false);
+
+        int bands = RowBands.count(tested.height);
+        PixelTest.Scratch[] scratches = ComparisonWorkspace.scratches(workspace, bands, tested.width);
+
+        RowBands.run(pool, tested.height, (band, r0, r1) -> {
+            float[][] rowsA = new float[LPyramid.MAX_PYR_LEVELS][];
+            float[][] rowsB = new float[LPyramid.MAX_PYR_LEVELS][];
+            PixelTest.Sums sums = new PixelTest.Sums();
+            PixelTest.Scratch scratch = scratches[band];
+
+            for (int y = tested.y + r0; y < tested.y + r1; y++) {
+                int cy = y - crop.y;
+                int offset = pyramids[0].rows(cy, rowsA) + tested.x - crop.x;
+                pyramids[1].rows(cy, rowsB);
+
+                pixelTest.testRow(rowsA, rowsB, offset, colourSpace, offset, tested.width, failureMask, tested.x, y,
+                        sums, scratch);
+
+                int i = y * w + tested.x;
+
+                System.arraycopy(scratch.delta, 0, delta, i, tested.width);
+                System.arraycopy(scratch.deltaE, 0, deltaE, i, tested.width);
+
+                for (int x = 0; x < tested.width; x++) {
+                    failed[i + x] = failureMask.isFailed(tested.x + x, y);
+                }
+            }
+        });
+
+        timer.pause(Stage.TEST);
+    }
+
+    /*
+     * Sums the kept values into the result, in the same bands and order as MetricImpl.
+     */
+    private ComparisonResult sum(int w, int h) {
+        FailureMask failureMask = new FailureMask(w, h, params.recordErrors);
+
+        boolean luminanceOnly = params.luminanceOnly;
+        boolean recordErrors = params.recordErrors;
+
+        PixelTest.Sums[] bandSums = new PixelTest.Sums[RowBands.count(h)];
+
+        RowBands.run(pool, h, (band, y0, y1) -> {
+            int pixelsFailed = 0;
+            double errorSum = 0.0;
+
+            for (int y = y0; y < y1; y++) {
+                for (int x = 0, i = y * w; x < w; x++, i++) {
+                    errorSum += delta[i];
+
+                    if (!luminanceOnly) {
+                        errorSum += deltaE[i];
+                    }
+
+                    if (failed[i]) {
+                        pixelsFailed++;
+
+                        failureMask.fail(x, y);
+                    }
+
+                    if (recordErrors) {
+                        failureMask.error(x, y, delta[i] + deltaE[i]);
+                    }
+                }
+            }
+
+            PixelTest.Sums sums = new PixelTest.Sums();
+            sums.pixelsFailed = pixelsFailed;
+            sums.errorSum = errorSum;
+
+            bandSums[band] = sums;
+        });
+
+        int pixelsFailed = 0;
+        double errorSum = 0.0;
+
+        for (PixelTest.Sums sums : bandSums) {
+            pixelsFailed += sums.pixelsFailed;
+            errorSum += sums.errorSum;
+        }
+
+        return MetricImpl.result(pixelsFailed, errorSum, params, null, failureMask, false, (long) w * h);
+    }
+
+}
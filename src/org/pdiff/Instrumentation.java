@@ -0,0 +1,70 @@
+/*
+ * Instrumentation
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.pdiff;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The registry of ComparisonListeners.
+ * <p>
+ * When the JFR listener, which needs Java 11 or later and is compiled separately, is on the class path it is registered
+ * at start-up, so that every stage is also recorded as an org.pdiff.Stage event by Java Flight Recorder. Setting the
+ * system property pdiff.jfr to "false" prevents this.
+ * @author Paul Parlett
+ */
+public final class Instrumentation {
+
+    private static final Logger LOGGER = Logger.getLogger(Instrumentation.class.getName());
+
+    private static final CopyOnWriteArrayList<ComparisonListener> LISTENERS = new CopyOnWriteArrayList<>();
+
+    static {
+        if (!"false".equals(System.getProperty("pdiff.jfr"))) {
+            try {
+                LISTENERS.add((ComparisonListener) Class.forName("org.pdiff.JfrComparisonListener").newInstance());
+            } catch (ReflectiveOperationException | LinkageError e) {
+                LOGGER.log(Level.CONFIG, "JFR events unavailable: " + e);
+            }
+        }
+    }
+
+    /**
+     * Registers a listener for the stages of every comparison.
+     * @param listener The listener
+     */
+    public static void addListener(ComparisonListener listener) {
+        LISTENERS.add(listener);
+    }
+
+    /**
+     * Removes a listener.
+     * @param listener The listener
+     */
+    public static void removeListener(ComparisonListener listener) {
+        LISTENERS.remove(listener);
+    }
+
+    static ComparisonListener[] listeners() {
+        return LISTENERS.toArray(new ComparisonListener[0]);
+    }
+
+    private Instrumentation() {
+        // prevent instantiation
+    }
+}
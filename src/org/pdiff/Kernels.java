@@ -0,0 +1,86 @@
+/*
+ * Kernels
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.pdiff;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/*
+ * The arithmetic inner loops of the pyramid blur and the per-pixel test, which may be run by a scalar or a SIMD
+ * backend.
+ *
+ * Each backend performs the same IEEE operations in the same order on every pixel, without fused multiply-adds, so
+ * they produce identical pyramids and contrasts and therefore identical pixelsFailed and errorSum. The transcendental
+ * functions of the test stay in PixelTest and are not part of a backend.
+ *
+ * The Vector API backend, VectorKernels, is compiled separately for Java 16 or later. It is used if its class is on
+ * the class path and the jdk.incubator.vector module is present (--add-modules jdk.incubator.vector), unless the system
+ * property pdiff.kernels is set to "scalar".
+ */
+abstract class Kernels {
+
+    private static final Logger LOGGER = Logger.getLogger(Kernels.class.getName());
+
+    // The backend in use; only replaced by tests
+    static Kernels current = select();
+
+    private static Kernels select() {
+        Kernels kernels = "scalar".equals(System.getProperty("pdiff.kernels")) ? null : vector();
+
+        if (kernels == null) {
+            kernels = new ScalarKernels();
+        }
+
+        LOGGER.log(Level.CONFIG, "Using " + kernels);
+
+        return kernels;
+    }
+
+    /*
+     * The Vector API backend, or null if it is not available in this JVM.
+     */
+    static Kernels vector() {
+        try {
+            return (Kernels) Class.forName("org.pdiff.VectorKernels").newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            LOGGER.log(Level.CONFIG, "Vector kernels unavailable: " + e);
+
+            return null;
+        }
+    }
+
+    /*
+     * Applies the vertical pass of the filter kernel to the five rows of image b that start at r0 to r4, storing the
+     * result in row[2, width + 2).
+     */
+    abstract void blurColumns(float[] b, int r0, int r1, int r2, int r3, int r4, int width, double[] row);
+
+    /*
+     * Applies the horizontal pass of the filter kernel to row, whose pixel x is at row[x + 2], storing the result in
+     * a[dst, dst + width).
+     */
+    abstract void blurRow(double[] row, float[] a, int dst, int width);
+
+    /*
+     * Computes, for pixel x of a row of w pixels that starts at offset in the pyramid levels, the adaptation luminance
+     * into adapt[x], the band contrast of each of the first MAX_PYR_LEVELS - 2 levels into contrast[level][x] and the
+     * luminance difference into delta[x].
+     */
+    abstract void contrast(float[][] la, float[][] lb, int offset, int w, int adaptationLevel, double[] adapt,
+            double[][] contrast, double[] delta);
+
+}
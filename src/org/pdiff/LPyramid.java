@@ -18,51 +18,225 @@
  */
 package org.pdiff;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.logging.Level;
-import java.util.logging.Logger;
+import java.util.concurrent.ForkJoinPool;
 
+/*
+ * The blur is the separable 5-tap kernel {0.05, 0.25, 0.4, 0.25, 0.05} applied as a vertical pass into a padded double
+ * row followed by a horizontal pass, with the mirrored borders resolved once per row rather than once per tap. Compared
+ * with the direct 5x5 convolution that this replaces, the factored sums round differently, so each level can differ by
+ * a few float ulps; over all levels the relative difference stays below 1e-6 (see LPyramidTest).
+ */
 class LPyramid {
 
-    private static final Logger LOGGER = Logger.getLogger(LPyramid.class.getName());
+    static final int MAX_PYR_LEVELS = 8;
 
-    private static List<float[]> createList(int size) {
-        List<float[]> result = new ArrayList<>(size);
+    static final double K0 = 0.05;
 
-        for (int i = 0; i < size; i++) {
-            result.add(null);
-        }
+    static final double K1 = 0.25;
 
-        return result;
-    }
+    static final double K2 = 0.4;
 
-    static final int MAX_PYR_LEVELS = 8;
+    private final int width;
 
-    private int width;
+    private final int height;
 
-    private int height;
+    private final boolean decimated;
 
     // Successively blurred versions of the original image
-    private List<float[]> levels = createList(MAX_PYR_LEVELS);
+    private final float[][] levels = new float[MAX_PYR_LEVELS][];
+
+    // Dimensions of each level, and the power of two by which it has been down-sampled
+    private final int[] levelWidth = new int[MAX_PYR_LEVELS];
+
+    private final int[] levelHeight = new int[MAX_PYR_LEVELS];
+
+    private final int[] levelShift = new int[MAX_PYR_LEVELS];
+
+    /*
+     * Builds the pyramid, blurring each level in bands of rows on the given pool (null for serial).
+     */
+    LPyramid(float[] image, int width, int height, boolean decimated, ForkJoinPool pool) {
+        this(image, width, height, decimated, pool, null);
+    }
+
+    /*
+     * Builds the pyramid of image B of a comparison into the levels of the given workspace, or into new levels if it
+     * is null.
+     */
+    LPyramid(float[] image, int width, int height, boolean decimated, ForkJoinPool pool,
+            ComparisonWorkspace workspace) {
+        this(image, width, height, decimated);
+
+        build(pool, workspace, 1, this);
+    }
 
-    LPyramid(float[] image, int width, int height) {
+    private LPyramid(float[] image, int width, int height, boolean decimated) {
         this.width = width;
         this.height = height;
+        this.decimated = decimated;
+
+        levels[0] = image;
 
-        long startMillis = System.currentTimeMillis();
+        shape(width, height, decimated, levelWidth, levelHeight, levelShift);
+    }
 
-        // Make the Laplacian pyramid by successively copying the earlier levels and blurring them
-        for (int i = 0; i < MAX_PYR_LEVELS; i++) {
-            if (i == 0 || width * height <= 1) {
-                levels.set(i, image);
-            } else {
-                levels.set(i, new float[width * height]);
-                convolve(levels.get(i), levels.get(i - 1));
+    /*
+     * Fills in the width, height and down-sampling shift of each level of a pyramid of an image of the given size.
+     */
+    static void shape(int width, int height, boolean decimated, int[] levelWidth, int[] levelHeight,
+            int[] levelShift) {
+        levelWidth[0] = width;
+        levelHeight[0] = height;
+        levelShift[0] = 0;
+
+        for (int i = 1; i < MAX_PYR_LEVELS; i++) {
+            int srcWidth = levelWidth[i - 1];
+            int srcHeight = levelHeight[i - 1];
+
+            // A single pixel is not blurred any further; its level is shared with the one before
+            boolean shared = srcWidth * srcHeight <= 1;
+
+            levelWidth[i] = (decimated && !shared) ? (srcWidth + 1) / 2 : srcWidth;
+            levelHeight[i] = (decimated && !shared) ? (srcHeight + 1) / 2 : srcHeight;
+            levelShift[i] = (decimated && !shared) ? levelShift[i - 1] + 1 : levelShift[i - 1];
+        }
+    }
+
+    /*
+     * Builds the pyramids of two images of the same size in one sweep, so each band of rows is blurred for both
+     * images in turn with a shared scratch row.
+     */
+    static LPyramid[] pair(float[] imageA, float[] imageB, int width, int height, boolean decimated,
+            ForkJoinPool pool) {
+        return pair(imageA, imageB, width, height, decimated, pool, null);
+    }
+
+    /*
+     * Builds the pyramids of two images into the levels of the given workspace, or into new levels if it is null.
+     */
+    static LPyramid[] pair(float[] imageA, float[] imageB, int width, int height, boolean decimated,
+            ForkJoinPool pool, ComparisonWorkspace workspace) {
+        LPyramid la = new LPyramid(imageA, width, height, decimated);
+        LPyramid lb = new LPyramid(imageB, width, height, decimated);
+
+        build(pool, workspace, 0, la, lb);
+
+        return new LPyramid[] {la, lb };
+    }
+
+    /*
+     * Make the Laplacian pyramids by successively copying the earlier levels and blurring them. In decimated mode
+     * each blurred level keeps only every other row and column of the previous one. The levels and blur rows are
+     * taken from the workspace, if there is one, with the levels of pyramids[p] in those of image first + p.
+     */
+    private static void build(ForkJoinPool pool, ComparisonWorkspace workspace, int first, LPyramid... pyramids) {
+        LPyramid top = pyramids[0];
+        double[][] rows = ComparisonWorkspace.blurRows(workspace, RowBands.count(top.height), top.width + 4);
+
+        for (int i = 1; i < MAX_PYR_LEVELS; i++) {
+            int srcWidth = top.levelWidth[i - 1];
+            int srcHeight = top.levelHeight[i - 1];
+
+            if (srcWidth * srcHeight <= 1) {
+                for (LPyramid pyramid : pyramids) {
+                    pyramid.levels[i] = pyramid.levels[i - 1];
+                }
+
+                continue;
+            }
+
+            boolean decimate = top.decimated;
+            int dstHeight = top.levelHeight[i];
+
+            for (int p = 0; p < pyramids.length; p++) {
+                pyramids[p].levels[i] = ComparisonWorkspace.plane(workspace, ComparisonWorkspace.COLOUR_PLANES
+                        + (first + p) * (MAX_PYR_LEVELS - 1) + i - 1, pyramids[p].levelWidth[i] * dstHeight);
             }
+
+            int level = i;
+
+            RowBands.run(pool, dstHeight, (band, y0, y1) -> {
+                double[] row = rows == null ? new double[srcWidth + 4] : rows[band];
+
+                for (int y = y0; y < y1; y++) {
+                    for (LPyramid pyramid : pyramids) {
+                        if (decimate) {
+                            blurDecimateRow(pyramid.levels[level], pyramid.levels[level - 1], srcWidth, srcHeight, y,
+                                    row);
+                        } else {
+                            blurRow(pyramid.levels[level], pyramid.levels[level - 1], srcWidth, srcHeight, y, row);
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    /*
+     * Builds the levels of a full-resolution pyramid whose level 0 is the given off-heap plane, allocating the others
+     * in the arena, and blurring each level in bands of rows on the given pool (null for serial). Each row is blurred
+     * from a ring of the five source rows around it, so only those rows of a level are held on the heap at once.
+     */
+    static Plane[] levels(Plane image, PlaneArena arena, ForkJoinPool pool) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+
+        Plane[] levels = new Plane[MAX_PYR_LEVELS];
+        levels[0] = image;
+
+        for (int i = 1; i < MAX_PYR_LEVELS; i++) {
+            if ((long) width * height <= 1) {
+                levels[i] = levels[i - 1];
+
+                continue;
+            }
+
+            Plane src = levels[i - 1];
+            Plane dst = arena.allocate(width, height);
+
+            RowBands.run(pool, height, (band, y0, y1) -> {
+                float[] ring = new float[5 * width];
+                int[] held = {-1, -1, -1, -1, -1 };
+                float[] out = new float[width];
+                double[] row = new double[width + 4];
+
+                for (int y = y0; y < y1; y++) {
+                    blurRow(out, 0, ring, ringRow(src, mirror(y - 2, height), ring, held),
+                            ringRow(src, mirror(y - 1, height), ring, held), ringRow(src, y, ring, held),
+                            ringRow(src, mirror(y + 1, height), ring, held),
+                            ringRow(src, mirror(y + 2, height), ring, held), width, row);
+
+                    dst.setRow(y, out, 0);
+                }
+            });
+
+            levels[i] = dst;
         }
 
-        LOGGER.log(Level.FINE, "elapsedMillis = " + (System.currentTimeMillis() - startMillis));
+        return levels;
+    }
+
+    /*
+     * Returns the offset in ring of row y of the plane, reading it into slot y % 5 unless it is already there. The
+     * mirrored neighbours of a row are all within two rows of it, so the five rows of a blur never share a slot.
+     */
+    private static int ringRow(Plane plane, int y, float[] ring, int[] held) {
+        int slot = y % 5;
+        int offset = slot * plane.getWidth();
+
+        if (held[slot] != y) {
+            plane.getRow(y, ring, offset);
+            held[slot] = y;
+        }
+
+        return offset;
+    }
+
+    /*
+     * The level itself, not a copy. Levels of a single-pixel image may be shared with the level before.
+     */
+    float[] getLevel(int level) {
+        return levels[level];
     }
 
     void dump() {
@@ -80,49 +254,140 @@ class LPyramid {
     }
 
     double getValue(int x, int y, int level) {
-        int index = x + y * width;
-
         assert (level < MAX_PYR_LEVELS);
 
-        return levels.get(level)[index];
+        if (decimated) {
+            // Sample the level at the coarse pixel nearest to (x, y)
+            int shift = levelShift[level];
+            int half = (1 << shift) >> 1;
+
+            x = Math.min((x + half) >> shift, levelWidth[level] - 1);
+            y = Math.min((y + half) >> shift, levelHeight[level] - 1);
+        }
+
+        return levels[level][x + y * levelWidth[level]];
     }
 
     /*
-     *  Convolves image b with the filter kernel and stores it in a.
+     * Fills rows[level] so that pixel x of row y of each level is at rows[level][offset + x] and returns the offset.
+     * Full-resolution levels are returned as they are; decimated levels are sampled at the nearest coarse pixel into a
+     * scratch row of rows[level], which is allocated on first use.
      */
-    private void convolve(float[] a, float[] b) {
-        assert (a.length > 1);
-        assert (b.length > 1);
+    int rows(int y, float[][] rows) {
+        if (!decimated) {
+            System.arraycopy(levels, 0, rows, 0, MAX_PYR_LEVELS);
 
-        double[] kernel = {0.05, 0.25, 0.4, 0.25, 0.05 };
+            return y * width;
+        }
 
-        for (int y = 0; y < height; y++) {
-            for (int x = 0; x < width; x++) {
-                int index = y * width + x;
-                double result = 0.0f;
+        for (int level = 0; level < MAX_PYR_LEVELS; level++) {
+            if (rows[level] == null) {
+                rows[level] = new float[width];
+            }
 
-                for (int i = -2; i <= 2; i++) {
-                    for (int j = -2; j <= 2; j++) {
-                        int nx = x + i;
-                        int ny = y + j;
+            int shift = levelShift[level];
+            int offset = sourceRow(y, shift, levelHeight[level]) * levelWidth[level];
 
-                        nx = Math.max(nx, -nx);
-                        ny = Math.max(ny, -ny);
+            sampleRow(levels[level], offset, levelWidth[level], shift, rows[level], width);
+        }
 
-                        if (nx >= width) {
-                            nx = 2 * width - nx - 1;
-                        }
+        return 0;
+    }
 
-                        if (ny >= height) {
-                            ny = 2 * height - ny - 1;
-                        }
+    /*
+     * Copies row y of each level into rows[level][0, width), sampling decimated levels as rows does, for a test whose
+     * other pyramid's rows are copies too.
+     */
+    void copyRows(int y, float[][] rows) {
+        if (!decimated) {
+            for (int level = 0; level < MAX_PYR_LEVELS; level++) {
+                System.arraycopy(levels[level], y * width, rows[level], 0, width);
+            }
+        } else {
+            rows(y, rows);
+        }
+    }
 
-                        result += kernel[i + 2] * kernel[j + 2] * b[ny * width + nx];
-                    }
-                }
+    /*
+     * The row of a level down-sampled by the given shift, of the given height, nearest to row y of the image.
+     */
+    static int sourceRow(int y, int shift, int levelHeight) {
+        return Math.min((y + ((1 << shift) >> 1)) >> shift, levelHeight - 1);
+    }
 
-                a[index] = (float) result;
-            }
+    /*
+     * Samples the row of a level down-sampled by the given shift that starts at src[offset] at the coarse pixel
+     * nearest to each of the width pixels of row.
+     */
+    static void sampleRow(float[] src, int offset, int levelWidth, int shift, float[] row, int width) {
+        int half = (1 << shift) >> 1;
+
+        for (int x = 0; x < width; x++) {
+            row[x] = src[offset + Math.min((x + half) >> shift, levelWidth - 1)];
+        }
+    }
+
+    /*
+     * Reflects a coordinate that is up to two pixels outside [0, size) back inside, as the original convolution did.
+     */
+    static int mirror(int n, int size) {
+        n = Math.max(n, -n);
+
+        if (n >= size) {
+            n = 2 * size - n - 1;
+        }
+
+        return Math.min(Math.max(n, 0), size - 1);
+    }
+
+    /*
+     * Applies the vertical pass of the filter kernel to the five rows of image b that start at r0 to r4, storing the
+     * result in row[2, w + 2) with the mirrored columns copied into the two cells either side.
+     */
+    private static void blurColumns(float[] b, int r0, int r1, int r2, int r3, int r4, int width, double[] row) {
+        Kernels.current.blurColumns(b, r0, r1, r2, r3, r4, width, row);
+
+        row[0] = row[mirror(-2, width) + 2];
+        row[1] = row[mirror(-1, width) + 2];
+        row[width + 2] = row[mirror(width, width) + 2];
+        row[width + 3] = row[mirror(width + 1, width) + 2];
+    }
+
+    /*
+     * Convolves the row of image b that starts at r2, whose neighbours (mirrored at the edges) start at r0, r1, r3
+     * and r4, with the filter kernel and stores it at offset dst in a.
+     */
+    static void blurRow(float[] a, int dst, float[] b, int r0, int r1, int r2, int r3, int r4, int width,
+            double[] row) {
+        blurColumns(b, r0, r1, r2, r3, r4, width, row);
+
+        Kernels.current.blurRow(row, a, dst, width);
+    }
+
+    /*
+     * Convolves row y of image b with the filter kernel and stores it in a.
+     */
+    static void blurRow(float[] a, float[] b, int width, int height, int y, double[] row) {
+        blurRow(a, y * width, b, mirror(y - 2, height) * width, mirror(y - 1, height) * width, y * width,
+                mirror(y + 1, height) * width, mirror(y + 2, height) * width, width, row);
+    }
+
+    /*
+     * Convolves row 2 * y of image b with the filter kernel and stores every other pixel of it as row y of a, which
+     * is half the width and height of b, rounded up.
+     */
+    static void blurDecimateRow(float[] a, float[] b, int width, int height, int y, double[] row) {
+        int sy = 2 * y;
+
+        blurColumns(b, mirror(sy - 2, height) * width, mirror(sy - 1, height) * width, sy * width,
+                mirror(sy + 1, height) * width, mirror(sy + 2, height) * width, width, row);
+
+        int dstWidth = (width + 1) / 2;
+        int r = y * dstWidth;
+
+        for (int x = 0; x < dstWidth; x++) {
+            int sx = 2 * x;
+            a[r + x] = (float) (K0 * (row[sx] + row[sx + 4]) + K1 * (row[sx + 1] + row[sx + 3]) + K2 * row[sx + 2]);
         }
     }
 
@@ -0,0 +1,105 @@
+/*
+ * Log Table
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.pdiff;
+
+import java.util.function.DoubleUnaryOperator;
+
+/*
+ * A function of a positive double tabulated at points spaced evenly in each binade, with linear interpolation between
+ * them.
+ *
+ * The table is indexed by the exponent and the top BITS bits of the mantissa of the argument, which is a piecewise
+ * linear approximation of its logarithm, so no logarithm is computed and the relative spacing of the points is at most
+ * 2^-BITS. The low mantissa bits are the interpolation weight. Arguments outside [min, max), and those in segments that
+ * contain a breakpoint at which the function is not smooth, are passed to the function itself.
+ */
+final class LogTable {
+
+    // Mantissa bits used to index the table, i.e. log2 of the number of segments per binade
+    static final int BITS = 10;
+
+    private static final int SHIFT = 52 - BITS;
+
+    private static final double WEIGHT_SCALE = 1.0 / (1L << SHIFT);
+
+    private final DoubleUnaryOperator function;
+
+    private final double min;
+
+    private final double max;
+
+    private final long base;
+
+    private final double[] values;
+
+    private final boolean[] direct;
+
+    /*
+     * Tabulates the function over [min, max), which are rounded out to powers of two, computing it directly in any
+     * segment that contains one of the breakpoints.
+     */
+    LogTable(DoubleUnaryOperator function, double min, double max, double... breakpoints) {
+        this.function = function;
+        this.min = Math.scalb(1.0, Math.getExponent(min));
+        this.max = Math.scalb(1.0, Math.getExponent(max) + 1);
+
+        base = Double.doubleToRawLongBits(this.min) >>> SHIFT;
+
+        int segments = (int) ((Double.doubleToRawLongBits(this.max) >>> SHIFT) - base);
+
+        values = new double[segments + 1];
+        direct = new boolean[segments];
+
+        for (int i = 0; i <= segments; i++) {
+            values[i] = function.applyAsDouble(Double.longBitsToDouble((base + i) << SHIFT));
+        }
+
+        // The neighbouring segments too, in case the function switches a rounding error away from the breakpoint
+        for (double breakpoint : breakpoints) {
+            if (breakpoint >= this.min && breakpoint < this.max) {
+                int i = index(breakpoint);
+
+                for (int j = Math.max(i - 1, 0); j <= Math.min(i + 1, segments - 1); j++) {
+                    direct[j] = true;
+                }
+            }
+        }
+    }
+
+    private int index(double x) {
+        return (int) ((Double.doubleToRawLongBits(x) >>> SHIFT) - base);
+    }
+
+    double get(double x) {
+        if (!(x >= min && x < max)) {
+            return function.applyAsDouble(x);
+        }
+
+        long bits = Double.doubleToRawLongBits(x);
+        int i = (int) ((bits >>> SHIFT) - base);
+
+        if (direct[i]) {
+            return function.applyAsDouble(x);
+        }
+
+        double weight = (bits & ((1L << SHIFT) - 1)) * WEIGHT_SCALE;
+        double v0 = values[i];
+
+        return v0 + (values[i + 1] - v0) * weight;
+    }
+
+}
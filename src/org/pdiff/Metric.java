@@ -36,17 +36,43 @@ public interface Metric {
         final String reason;
         final RGBAImage imageDifference;
 
+        /**
+         * The pixels that failed, from which the difference image can be rendered, or null if the images were
+         * identical or not comparable.
+         */
+        final FailureMask failureMask;
+
+        /**
+         * True if the comparison stopped once failure was certain, so that pixelsFailed and errorSum only cover the
+         * pixels examined.
+         */
+        final boolean lowerBound;
+
+        /**
+         * The number of pixels that were put through the perceptual test.
+         */
+        final long pixelsExamined;
+
+        /**
+         * The time spent in each stage of the comparison and the bytes allocated by it.
+         */
+        StageTimings timings = new StageTimings();
+
         ComparisonResult(boolean passed, String reason) {
-            this(passed, -1, 0.0, reason, null);
+            this(passed, -1, 0.0, reason, null, null, false, 0);
         }
 
-        ComparisonResult(boolean passed, int pixelsFailed, double errorSum, String reason, RGBAImage imageDifference) {
+        ComparisonResult(boolean passed, int pixelsFailed, double errorSum, String reason, RGBAImage imageDifference,
+                FailureMask failureMask, boolean lowerBound, long pixelsExamined) {
             super();
             this.passed = passed;
             this.pixelsFailed = pixelsFailed;
             this.errorSum = errorSum;
             this.reason = reason;
             this.imageDifference = imageDifference;
+            this.failureMask = failureMask;
+            this.lowerBound = lowerBound;
+            this.pixelsExamined = pixelsExamined;
         }
     }
 
@@ -57,7 +83,8 @@ public interface Metric {
      * @param imageA The first image to compare
      * @param imageB The second image to compare
      * @param params The parameters for the comparison algorithm
-     * @param imageDifference The difference between the two images as a new image
+     * @param imageDifference The image into which to render the difference between the two images, or null if it is
+     *            not required; it can instead be rendered later from the failure mask of the result
      * @return The result of the comparison as a ComparisonResult
      */
     ComparisonResult yeeCompare(RGBAImage imageA, RGBAImage imageB, PerceptualDiffParameters params, RGBAImage imageDifference);
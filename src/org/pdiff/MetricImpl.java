@@ -18,86 +18,139 @@
  */
 package org.pdiff;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import net.jafama.FastMath;
-
 /**
  * Default implementation of the Metric interface.
+ * <p>
+ * By default each comparison runs on the calling thread. An instance created with a ForkJoinPool splits the colour
+ * conversion, the pyramid construction and the per-pixel test into bands of rows that are run on that pool. The
+ * per-band partial results are always reduced in band order, so pixelsFailed and errorSum do not depend on whether a
+ * pool is used or on its parallelism.
+ * <p>
+ * When the images differ only in small areas, only the tiles around the differing pixels are converted, blurred and
+ * tested, with exactly the same result as a comparison of the whole image. Otherwise, in verdict-only mode the colour
+ * conversion, pyramids and test are instead run together a row at a time on the calling thread, and the comparison
+ * stops as soon as thresholdPixels pixels have failed.
  * @author Paul Parlett
  */
 public final class MetricImpl implements Metric {
 
     private static final Logger LOGGER = Logger.getLogger(MetricImpl.class.getName());
 
-    private static int adaptation(double numOneDegreePixels) {
-        double numPixels = 1.0;
-        int adaptationLevel = 0;
+    private final ForkJoinPool pool;
 
-        for (int i = 0; i < LPyramid.MAX_PYR_LEVELS; i++) {
-            adaptationLevel = i;
-            if (numPixels > numOneDegreePixels) {
-                break;
-            }
-            numPixels *= 2;
-        }
+    private final ComparisonWorkspace.Pool workspaces;
 
-        return adaptationLevel;
+    /**
+     * Creates a metric that runs every comparison on the calling thread.
+     */
+    public MetricImpl() {
+        this(null);
     }
 
-    /*
-     * Computes the contrast sensitivity function (Barten SPIE 1989) given the
-     * cycles per degree (cpd) and luminance (lum).
+    /**
+     * Creates a metric that runs the stages of every comparison in bands of rows on the given pool.
+     * @param pool The pool to run on, or null to run on the calling thread
+     */
+    public MetricImpl(ForkJoinPool pool) {
+        this(pool, null);
+    }
+
+    /**
+     * Creates a metric that runs the stages of every comparison in bands of rows on the given pool, and keeps the
+     * buffers of each comparison in a workspace from the given pool of workspaces for the next one.
+     * @param pool The pool to run on, or null to run on the calling thread
+     * @param workspaces The workspaces to use, or null to allocate the buffers of each comparison afresh
+     */
+    public MetricImpl(ForkJoinPool pool, ComparisonWorkspace.Pool workspaces) {
+        this.pool = pool;
+        this.workspaces = workspaces;
+    }
+
+    @Override
+    public ComparisonResult yeeCompare(
+            RGBAImage imageA, RGBAImage imageB, PerceptualDiffParameters params, RGBAImage imageDifference) {
+        StageTimer timer = new StageTimer();
+
+        return timer.finish(yeeCompare(imageA, imageB, params, imageDifference, timer));
+    }
+
+    /**
+     * Compares two images using the buffers of the given workspace, which no other comparison may use until this one
+     * returns.
+     * @param imageA The first image to compare
+     * @param imageB The second image to compare
+     * @param params The parameters for the comparison algorithm
+     * @param imageDifference The difference image, or null if not required
+     * @param workspace The workspace whose buffers to use and grow as needed
+     * @return The result of the comparison as a ComparisonResult
+     * @throws IllegalStateException Thrown if the workspace is in use by another comparison
      */
-    private static double csf(double cpd, double lum) {
-        double a = 440.0 * FastMath.pow((1.0 + 0.7 / lum), -0.2);
-        double b = 0.3 * FastMath.pow((1.0 + 100.0 / lum), 0.15);
+    public ComparisonResult yeeCompare(RGBAImage imageA, RGBAImage imageB, PerceptualDiffParameters params,
+            RGBAImage imageDifference, ComparisonWorkspace workspace) {
+        StageTimer timer = new StageTimer();
 
-        return a * cpd * FastMath.exp(-b * cpd) * FastMath.sqrt(1.0 + 0.06 * FastMath.exp(b * cpd));
+        return timer.finish(yeeCompare(imageA, imageB, params, imageDifference, timer, workspace));
     }
 
     /*
-     * Visual Masking Function from Daly 1993.
+     * Compares the images, timing the colour, pyramid and test stages with the given timer, which the caller
+     * finishes once any later stages are done, in a workspace from the metric's pool if it has one.
      */
-    private static double mask(double contrast) {
-        double a = FastMath.pow(392.498 * contrast, 0.7);
-        double b = FastMath.pow(0.0153 * a, 4.0);
-        return FastMath.pow(1.0 + b, 0.25);
+    ComparisonResult yeeCompare(RGBAImage imageA, RGBAImage imageB, PerceptualDiffParameters params,
+            RGBAImage imageDifference, StageTimer timer) {
+        if (workspaces == null) {
+            return yeeCompare(imageA, imageB, params, imageDifference, timer, null);
+        }
+
+        ComparisonWorkspace workspace = workspaces.acquire();
+
+        try {
+            return yeeCompare(imageA, imageB, params, imageDifference, timer, workspace);
+        } finally {
+            workspaces.release(workspace);
+        }
     }
 
     /*
-     * Given the adaptation luminance, this function returns the threshold of
-     * visibility in cd per m^2.
-     *
-     * TVI means Threshold vs Intensity function. This version comes from Ward
-     * Larson Siggraph 1997.
-     *
-     * Returns the threshold luminance given the adaptation luminance. Units are
-     * candelas per meter squared.
+     * Compares the images in the given workspace, or with new buffers if it is null, timing the stages with the given
+     * timer, which the caller finishes.
      */
-    private static double tvi(double adaptationLuminance) {
-        double logA = FastMath.log10(adaptationLuminance);
-
-        double r;
-        if (logA < -3.94) {
-            r = -2.86;
-        } else if (logA < -1.44) {
-            r = FastMath.pow(0.405 * logA + 1.6, 2.18) - 2.86;
-        } else if (logA < -0.0184) {
-            r = logA - 0.395;
-        } else if (logA < 1.9) {
-            r = FastMath.pow(0.249 * logA + 0.65, 2.7) - 0.72;
-        } else {
-            r = logA - 1.255;
+    ComparisonResult yeeCompare(RGBAImage imageA, RGBAImage imageB, PerceptualDiffParameters params,
+            RGBAImage imageDifference, StageTimer timer, ComparisonWorkspace workspace) {
+        if (workspace == null) {
+            return compare(imageA, imageB, params, imageDifference, timer, null);
         }
 
-        return FastMath.pow(10.0, r);
+        workspace.begin();
+
+        try {
+            return compare(imageA, imageB, params, imageDifference, timer, workspace);
+        } finally {
+            workspace.end();
+        }
     }
 
-    @Override
-    public ComparisonResult yeeCompare(
-            RGBAImage imageA, RGBAImage imageB, PerceptualDiffParameters params, RGBAImage imageDifference) {
+    private ComparisonResult compare(RGBAImage imageA, RGBAImage imageB, PerceptualDiffParameters params,
+            RGBAImage imageDifference, StageTimer timer, ComparisonWorkspace workspace) {
+
+        if (params.downSample > 0 || params.scale) {
+            timer.start(Stage.RESAMPLE);
+            RGBAImage[] images = Resample.apply(imageA, imageB, params);
+            timer.stop(Stage.RESAMPLE);
+
+            imageA = images[0];
+            imageB = images[1];
+
+            checkDifferenceSize(imageDifference, imageA.getWidth(), imageA.getHeight());
+        }
 
         if ((imageA.getWidth() != imageB.getWidth()) || (imageA.getHeight() != imageB.getHeight())) {
             return new ComparisonResult(false, "Image dimensions do not match");
@@ -105,24 +158,37 @@ public final class MetricImpl implements Metric {
 
         int w = imageA.getWidth();
         int h = imageA.getHeight();
-        int dim = w * h;
+
+        timer.size(w, h);
 
         if (LOGGER.isLoggable(Level.FINEST)) {
             imageA.dumpImage();
             imageB.dumpImage();
         }
 
-        boolean identical = true;
+        if (Arrays.equals(imageA.getPixels(), imageB.getPixels())) {
+            return new ComparisonResult(true, "Images are binary identical");
+        }
+
+        if (!params.decimatedPyramid) {
+            List<DirtyRegions.Region> regions = DirtyRegions.find(imageA, imageB);
 
-        for (int i = 0; i < dim; i++) {
-            if (imageA.get(i) != imageB.get(i)) {
-                identical = false;
-                break;
+            if (regions != null) {
+                return DirtyRegions.compare(regions, imageA, imageB, params, imageDifference, pool, timer);
             }
         }
 
-        if (identical) {
-            return new ComparisonResult(true, "Images are binary identical");
+        if (params.verdictOnly && !params.decimatedPyramid) {
+            // The colour conversion and pyramids are interleaved with the test, so are timed as part of it
+            timer.start(Stage.TEST);
+            ComparisonResult result = verdict(imageA, imageB, params, imageDifference);
+            timer.stop(Stage.TEST);
+
+            return result;
+        }
+
+        if (params.offHeap && !params.decimatedPyramid) {
+            return offHeap(imageA, imageB, params, imageDifference, timer);
         }
 
         /*
@@ -131,7 +197,9 @@ public final class MetricImpl implements Metric {
 
         LOGGER.log(Level.INFO, "Converting RGB to XYZ");
 
-        ColourSpace colourSpace = new ColourSpace(imageA, imageB, params.gamma, params.luminance);
+        timer.start(Stage.COLOUR);
+        ColourSpace colourSpace = new ColourSpace(imageA, imageB, params.gamma, params.luminance, pool, workspace);
+        timer.stop(Stage.COLOUR);
 
         if (LOGGER.isLoggable(Level.FINEST)) {
             colourSpace.dump();
@@ -139,129 +207,400 @@ public final class MetricImpl implements Metric {
 
         LOGGER.log(Level.INFO, "Constructing Laplacian Pyramids");
 
-        LPyramid la = new LPyramid(colourSpace.aLum, w, h);
-        LPyramid lb = new LPyramid(colourSpace.bLum, w, h);
+        timer.start(Stage.PYRAMID);
+        LPyramid[] pyramids = LPyramid.pair(colourSpace.aLum, colourSpace.bLum, w, h, params.decimatedPyramid,
+                pool, workspace);
+        timer.stop(Stage.PYRAMID);
+
+        LPyramid la = pyramids[0];
+        LPyramid lb = pyramids[1];
 
         if (LOGGER.isLoggable(Level.FINEST)) {
             la.dump();
             lb.dump();
         }
 
-        double numOneDegreePixels = (double) Math.toDegrees(2 * Math.tan(params.fieldOfView * Math.toRadians(0.5)));
-        double pixelsPerDegree = w / numOneDegreePixels;
+        timer.start(Stage.TEST);
+        ComparisonResult result = test(la, lb, colourSpace, params, imageDifference, w, h, pool, workspace);
+        timer.stop(Stage.TEST);
 
-        LOGGER.log(Level.INFO, "Performing test");
+        return result;
+    }
+
+    /*
+     * Compares the images as the whole-image path below does, but with the colour planes and pyramid levels held off
+     * the heap in an arena that is freed as soon as the test is done.
+     */
+    private ComparisonResult offHeap(RGBAImage imageA, RGBAImage imageB, PerceptualDiffParameters params,
+            RGBAImage imageDifference, StageTimer timer) {
+        int w = imageA.getWidth();
+        int h = imageA.getHeight();
+
+        PlaneArena arena;
+
+        try {
+            arena = new PlaneArena(params.planeDirectory);
+        } catch (IOException e) {
+            throw new UncheckedIOException("failed to create off-heap planes in " + params.planeDirectory, e);
+        }
 
-        long startMillis = System.currentTimeMillis();
+        boolean completed = false;
 
-        int adaptationLevel = adaptation(numOneDegreePixels);
+        try {
+            LOGGER.log(Level.INFO, "Converting RGB to XYZ off-heap");
 
-        double[] cpd = new double[LPyramid.MAX_PYR_LEVELS];
-        cpd[0] = 0.5 * pixelsPerDegree;
+            // Only the luminance has planes; the chroma is computed from the images as the test needs it
+            timer.start(Stage.COLOUR);
+            Plane lumA = arena.allocate(w, h);
+            Plane lumB = arena.allocate(w, h);
 
-        for (int i = 1; i < LPyramid.MAX_PYR_LEVELS; i++) {
-            cpd[i] = 0.5 * cpd[i - 1];
+            ColourSpace.convert(imageA, params.gamma, params.luminance, lumA, null, null, pool);
+            ColourSpace.convert(imageB, params.gamma, params.luminance, lumB, null, null, pool);
+            timer.stop(Stage.COLOUR);
+
+            LOGGER.log(Level.INFO, "Constructing Laplacian Pyramids off-heap");
+
+            timer.start(Stage.PYRAMID);
+            Plane[] la = LPyramid.levels(lumA, arena, pool);
+            Plane[] lb = LPyramid.levels(lumB, arena, pool);
+            timer.stop(Stage.PYRAMID);
+
+            LOGGER.log(Level.FINE, "offHeapBytes = " + arena.getBytes());
+
+            timer.start(Stage.TEST);
+            ComparisonResult result = test(la, lb, new ColourSpace(imageA, imageB, params.gamma), params,
+                    imageDifference, w, h, pool);
+            timer.stop(Stage.TEST);
+
+            completed = true;
+
+            return result;
+        } finally {
+            if (completed) {
+                arena.close();
+            } else {
+                arena.abandon();
+            }
         }
+    }
 
-        double csfMax = csf(3.248, 100.0);
+    /**
+     * Converts a reference image and builds its pyramid once, so that many candidates can be compared against it.
+     * @param reference The reference image
+     * @param params The parameters for the comparison algorithm; the gamma, luminance and pyramid mode are fixed into
+     *            the prepared reference
+     * @return The prepared reference
+     * @throws IllegalArgumentException Thrown if the parameters ask for down-sampling or scaling
+     */
+    public PreparedReference prepare(RGBAImage reference, PerceptualDiffParameters params) {
+        PreparedReference.checkSupported(params);
 
-        // assert (LPyramid.MAX_PYR_LEVELS > 2) : "MAX_PYR_LEVELS must be greater than 2";
+        int w = reference.getWidth();
+        int h = reference.getHeight();
+        int dim = w * h;
 
-        double[] fFreq = new double[LPyramid.MAX_PYR_LEVELS - 2];
+        LOGGER.log(Level.INFO, "Preparing reference");
 
-        for (int i = 0; i < LPyramid.MAX_PYR_LEVELS - 2; i++) {
-            fFreq[i] = csfMax / csf(cpd[i], 100.0);
+        float[] lum = new float[dim];
+        float[] labA = new float[dim];
+        float[] labB = new float[dim];
+
+        ColourSpace.convert(reference, params.gamma, params.luminance, lum, labA, labB, pool);
+
+        LPyramid pyramid = new LPyramid(lum, w, h, params.decimatedPyramid, pool);
+
+        return PreparedReference.wrap(w, h, params.gamma, params.luminance, params.decimatedPyramid,
+                PixelHash.of(reference), pyramid, labA, labB);
+    }
+
+    /**
+     * Compares a candidate image against a prepared reference, converting and building the pyramid of the candidate
+     * only. The result is the same as that of comparing the reference image itself, except that verdict-only mode is
+     * not applied.
+     * @param reference The prepared reference, used as image A
+     * @param candidate The image to compare against it, used as image B
+     * @param params The parameters for the comparison algorithm, whose gamma, luminance and pyramid mode must match
+     *            those the reference was prepared with
+     * @param imageDifference The difference image, or null if not required
+     * @return The result of the comparison as a ComparisonResult
+     * @throws IllegalArgumentException Thrown if the reference was prepared with different parameters
+     */
+    public ComparisonResult yeeCompare(PreparedReference reference, RGBAImage candidate,
+            PerceptualDiffParameters params, RGBAImage imageDifference) {
+        reference.checkParameters(params);
+
+        if (workspaces == null) {
+            return compare(reference, candidate, params, imageDifference, null);
         }
 
-        int pixelsFailed = 0;
-        double errorSum = 0.0;
+        ComparisonWorkspace workspace = workspaces.acquire();
 
-        for (int y = 0; y < h; y++) {
-            for (int x = 0; x < w; x++) {
-                int index = y * w + x;
+        try {
+            // A workspace already in use is returned to the pool, but left to the comparison that is using it
+            workspace.begin();
 
-                double adapt = Math.max((la.getValue(x, y, adaptationLevel) + lb.getValue(x, y, adaptationLevel)) * 0.5, 1e-5);
+            try {
+                return compare(reference, candidate, params, imageDifference, workspace);
+            } finally {
+                workspace.end();
+            }
+        } finally {
+            workspaces.release(workspace);
+        }
+    }
 
-                double sumContrast = 0.0;
-                double factor = 0.0;
+    /*
+     * Compares a candidate against a prepared reference, converting the candidate into the given workspace, or into
+     * new buffers if it is null.
+     */
+    private ComparisonResult compare(PreparedReference reference, RGBAImage candidate, PerceptualDiffParameters params,
+            RGBAImage imageDifference, ComparisonWorkspace workspace) {
+        StageTimer timer = new StageTimer();
 
-                for (int i = 0; i < LPyramid.MAX_PYR_LEVELS - 2; i++) {
-                    double n1 = Math.abs(la.getValue(x, y, i) - la.getValue(x, y, i + 1));
-                    double n2 = Math.abs(lb.getValue(x, y, i) - lb.getValue(x, y, i + 1));
+        if ((reference.width != candidate.getWidth()) || (reference.height != candidate.getHeight())) {
+            return timer.finish(new ComparisonResult(false, "Image dimensions do not match"));
+        }
 
-                    double numerator = Math.max(n1, n2);
+        int w = reference.width;
+        int h = reference.height;
 
-                    double d1 = Math.abs(la.getValue(x, y, i + 2));
-                    double d2 = Math.abs(lb.getValue(x, y, i + 2));
+        timer.size(w, h);
 
-                    double denominator = Math.max(Math.max(d1, d2), 1e-5);
-                    double contrast = numerator / denominator;
-                    double fMask = mask(contrast * csf(cpd[i], adapt));
+        if (reference.pixelHash.equals(PixelHash.of(candidate))) {
+            return timer.finish(new ComparisonResult(true, "Images are binary identical"));
+        }
 
-                    factor += contrast * fFreq[i] * fMask;
-                    sumContrast += contrast;
-                }
+        LOGGER.log(Level.INFO, "Converting RGB to XYZ");
+
+        // Only the luminance of the candidate has a plane; its chroma is converted a row at a time by the test
+        timer.start(Stage.COLOUR);
+        float[] lum = ComparisonWorkspace.plane(workspace, 1, w * h);
+        ColourSpace.convert(candidate, params.gamma, params.luminance, lum, null, null, pool);
+        timer.stop(Stage.COLOUR);
 
-                sumContrast = Math.max(sumContrast, 1e-5);
-                factor /= sumContrast;
-                factor = Math.min(Math.max(factor, 1.0), 10.0);
+        LOGGER.log(Level.INFO, "Constructing Laplacian Pyramids");
 
-                double delta = Math.abs(la.getValue(x, y, 0) - lb.getValue(x, y, 0));
+        timer.start(Stage.PYRAMID);
+        Plane[] la = reference.levels(pool);
+        LPyramid lb = new LPyramid(lum, w, h, params.decimatedPyramid, pool, workspace);
+        timer.stop(Stage.PYRAMID);
 
-                errorSum += delta;
+        timer.start(Stage.TEST);
+        ComparisonResult result = test(reference, la, lb, candidate, params, imageDifference, w, h, workspace);
+        timer.stop(Stage.TEST);
 
-                boolean pass = true;
+        return timer.finish(result);
+    }
 
-                // Pure luminance test.
-                if (delta > factor * tvi(adapt)) {
-                    pass = false;
-                }
+    /*
+     * Runs the per-pixel test of a candidate against the planes of a prepared reference, which may be mapped from its
+     * file, copying the rows of the reference's levels and chroma and of the candidate's pyramid into heap rows as the
+     * test reaches them. The chroma of the candidate is converted a row at a time, and only if the test weighs it.
+     */
+    private ComparisonResult test(PreparedReference reference, Plane[] la, LPyramid lb, RGBAImage candidate,
+            PerceptualDiffParameters params, RGBAImage imageDifference, int w, int h, ComparisonWorkspace workspace) {
+        LOGGER.log(Level.INFO, "Performing test");
+
+        PixelTest pixelTest = new PixelTest(params, w);
+        FailureMask failureMask = new FailureMask(w, h, params.recordErrors);
+
+        boolean chroma = !params.luminanceOnly && params.colorFactor != 0.0;
+        double[] linear = ColourSpace.linearTable(params.gamma);
 
-                if (!params.luminanceOnly) {
-                    // CIE delta E test with modifications
-                    double colorScale = params.colorFactor;
+        int bands = RowBands.count(h);
+        PixelTest.Sums[] bandSums = new PixelTest.Sums[bands];
+        PixelTest.Scratch[] scratches = ComparisonWorkspace.scratches(workspace, bands, w);
 
-                    // Ramp down the color test in scotopic regions
-                    if (adapt < 10.0) {
-                        // Don't do color test at all
-                        colorScale = 0.0;
-                    }
+        RowBands.run(pool, h, (band, y0, y1) -> {
+            float[][] rowsA = new float[LPyramid.MAX_PYR_LEVELS][w];
+            float[][] rowsB = new float[LPyramid.MAX_PYR_LEVELS][w];
+            float[] levelRow = new float[w];
+            ColourSpace rows = new ColourSpace(w, chroma);
+            PixelTest.Sums sums = new PixelTest.Sums();
+            PixelTest.Scratch scratch = scratches == null ? new PixelTest.Scratch(w) : scratches[band];
 
-                    double da = colourSpace.aA[index] - colourSpace.bA[index];
-                    double db = colourSpace.aB[index] - colourSpace.bB[index];
-                    double deltaE = (da * da + db * db) * colorScale;
+            for (int y = y0; y < y1; y++) {
+                reference.rows(la, y, rowsA, levelRow);
+                lb.copyRows(y, rowsB);
 
-                    errorSum += deltaE;
+                if (chroma) {
+                    reference.labA.getRow(y, rows.aA, 0);
+                    reference.labB.getRow(y, rows.aB, 0);
 
-                    if (deltaE > factor) {
-                        pass = false;
-                    }
+                    ColourSpace.convert(candidate.getPixels(), y * w, linear, params.luminance, rows.bLum, rows.bA,
+                            rows.bB, 0, w);
                 }
 
-                if (pass) {
-                    if (imageDifference != null) {
-                        imageDifference.set(0, 0, 0, 255, index);
-                    }
-                } else {
-                    pixelsFailed++;
+                pixelTest.testRow(rowsA, rowsB, 0, rows, 0, w, failureMask, 0, y, sums, scratch);
+            }
+
+            bandSums[band] = sums;
+        });
+
+        int pixelsFailed = 0;
+        double errorSum = 0.0;
+
+        for (PixelTest.Sums sums : bandSums) {
+            pixelsFailed += sums.pixelsFailed;
+            errorSum += sums.errorSum;
+        }
+
+        return result(pixelsFailed, errorSum, params, imageDifference, failureMask, false, (long) w * h);
+    }
+
+    /*
+     * Runs the per-pixel test over the pyramids and chroma planes of both images in bands of rows on the given pool
+     * (null for serial) and reduces the band totals in order.
+     */
+    static ComparisonResult test(LPyramid la, LPyramid lb, ColourSpace colourSpace, PerceptualDiffParameters params,
+            RGBAImage imageDifference, int w, int h, ForkJoinPool pool) {
+        return test(la, lb, colourSpace, params, imageDifference, w, h, pool, null);
+    }
+
+    /*
+     * Runs the test with the scratch rows of the given workspace, or with new ones if it is null.
+     */
+    static ComparisonResult test(LPyramid la, LPyramid lb, ColourSpace colourSpace, PerceptualDiffParameters params,
+            RGBAImage imageDifference, int w, int h, ForkJoinPool pool, ComparisonWorkspace workspace) {
+        LOGGER.log(Level.INFO, "Performing test");
+
+        PixelTest pixelTest = new PixelTest(params, w);
+        FailureMask failureMask = new FailureMask(w, h, params.recordErrors);
+
+        int bands = RowBands.count(h);
+        PixelTest.Sums[] bandSums = new PixelTest.Sums[bands];
+        PixelTest.Scratch[] scratches = ComparisonWorkspace.scratches(workspace, bands, w);
+
+        RowBands.run(pool, h, (band, y0, y1) -> {
+            float[][] rowsA = new float[LPyramid.MAX_PYR_LEVELS][];
+            float[][] rowsB = new float[LPyramid.MAX_PYR_LEVELS][];
+            PixelTest.Sums sums = new PixelTest.Sums();
+            PixelTest.Scratch scratch = scratches == null ? new PixelTest.Scratch(w) : scratches[band];
+
+            for (int y = y0; y < y1; y++) {
+                int offset = la.rows(y, rowsA);
+                lb.rows(y, rowsB);
+
+                pixelTest.testRow(rowsA, rowsB, offset, colourSpace, y * w, w, failureMask, 0, y, sums, scratch);
+            }
+
+            bandSums[band] = sums;
+        });
+
+        int pixelsFailed = 0;
+        double errorSum = 0.0;
 
-                    if (imageDifference != null) {
-                        imageDifference.set(255, 0, 0, 255, index);
-                    }
+        for (PixelTest.Sums sums : bandSums) {
+            pixelsFailed += sums.pixelsFailed;
+            errorSum += sums.errorSum;
+        }
+
+        return result(pixelsFailed, errorSum, params, imageDifference, failureMask, false, (long) w * h);
+    }
+
+    /*
+     * Runs the per-pixel test over off-heap pyramids, copying the rows of each level into heap rows as the test
+     * reaches them, with chroma indexed as the pixels of the images.
+     */
+    static ComparisonResult test(Plane[] la, Plane[] lb, ColourSpace chroma, PerceptualDiffParameters params,
+            RGBAImage imageDifference, int w, int h, ForkJoinPool pool) {
+        LOGGER.log(Level.INFO, "Performing test");
+
+        PixelTest pixelTest = new PixelTest(params, w);
+        FailureMask failureMask = new FailureMask(w, h, params.recordErrors);
+
+        int bands = RowBands.count(h);
+        PixelTest.Sums[] bandSums = new PixelTest.Sums[bands];
+
+        RowBands.run(pool, h, (band, y0, y1) -> {
+            float[][] rowsA = new float[LPyramid.MAX_PYR_LEVELS][w];
+            float[][] rowsB = new float[LPyramid.MAX_PYR_LEVELS][w];
+            PixelTest.Sums sums = new PixelTest.Sums();
+            PixelTest.Scratch scratch = new PixelTest.Scratch(w);
+
+            for (int y = y0; y < y1; y++) {
+                for (int level = 0; level < LPyramid.MAX_PYR_LEVELS; level++) {
+                    la[level].getRow(y, rowsA[level], 0);
+                    lb[level].getRow(y, rowsB[level], 0);
                 }
+
+                pixelTest.testRow(rowsA, rowsB, 0, chroma, y * w, w, failureMask, 0, y, sums, scratch);
             }
+
+            bandSums[band] = sums;
+        });
+
+        int pixelsFailed = 0;
+        double errorSum = 0.0;
+
+        for (PixelTest.Sums sums : bandSums) {
+            pixelsFailed += sums.pixelsFailed;
+            errorSum += sums.errorSum;
         }
 
-        LOGGER.log(Level.FINE, "elapsedMillis = " + (System.currentTimeMillis() - startMillis));
+        return result(pixelsFailed, errorSum, params, imageDifference, failureMask, false, (long) w * h);
+    }
+
+    /*
+     * Compares the images a row at a time, building the colour and pyramid rows only as the test reaches them, and
+     * stops as soon as enough pixels have failed to decide the verdict.
+     */
+    private static ComparisonResult verdict(RGBAImage imageA, RGBAImage imageB, PerceptualDiffParameters params,
+            RGBAImage imageDifference) {
+        int w = imageA.getWidth();
+        int h = imageA.getHeight();
+
+        LOGGER.log(Level.INFO, "Performing verdict-only test");
+
+        RollingComparison comparison = new RollingComparison(w, h, params, failureLimit(params));
+
+        for (int y = 0; y < h && !comparison.isDecided(); y++) {
+            comparison.push(imageA.getPixels(), y * w, imageB.getPixels(), y * w);
+        }
+
+        return result(comparison, params, imageDifference);
+    }
+
+    /*
+     * Rejects a difference image that is not the size of the resampled images, into which the failures are rendered.
+     */
+    static void checkDifferenceSize(RGBAImage imageDifference, int width, int height) {
+        if (imageDifference != null && (imageDifference.getWidth() != width || imageDifference.getHeight() != height)) {
+            throw new IllegalArgumentException("the difference image must be the size of the resampled images");
+        }
+    }
+
+    /*
+     * The number of failed pixels at which a verdict-only comparison can stop.
+     */
+    static long failureLimit(PerceptualDiffParameters params) {
+        return params.verdictOnly ? Math.max(params.thresholdPixels, 1) : Long.MAX_VALUE;
+    }
+
+    static ComparisonResult result(RollingComparison comparison, PerceptualDiffParameters params,
+            RGBAImage imageDifference) {
+        return result(comparison.getPixelsFailed(), comparison.getErrorSum(), params, imageDifference,
+                comparison.getFailureMask(), !comparison.isComplete(), comparison.getPixelsExamined());
+    }
+
+    /*
+     * Builds the result of a comparison, rendering the failure mask into imageDifference if one was given.
+     */
+    static ComparisonResult result(int pixelsFailed, double errorSum, PerceptualDiffParameters params,
+            RGBAImage imageDifference, FailureMask failureMask, boolean lowerBound, long pixelsExamined) {
+        if (imageDifference != null) {
+            failureMask.render(imageDifference);
+        }
 
-        String different = pixelsFailed + " pixels are different";
+        String different = (lowerBound ? "at least " : "") + pixelsFailed + " pixels are different";
 
         boolean passed = pixelsFailed < params.thresholdPixels;
 
         String reason = passed ? ("Images are perceptually indistinguishable\n" + different)
                 : ("Images are visibly different\n" + different);
 
-        return new ComparisonResult(passed, pixelsFailed, errorSum, reason, imageDifference);
+        return new ComparisonResult(passed, pixelsFailed, errorSum, reason, imageDifference, failureMask, lowerBound,
+                pixelsExamined);
     }
 
 }
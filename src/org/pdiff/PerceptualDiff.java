@@ -22,6 +22,8 @@ package org.pdiff;
 
 import java.io.IOException;
 
+import javax.imageio.ImageIO;
+
 /**
  * The main class for the PerceptualDiff program.
  * @author Paul Parlett
@@ -38,18 +40,20 @@ public final class PerceptualDiff {
      * @throws IOException Thrown if there is an error reading or writing an image file
      */
     public static void main(String[] mainArgs) throws IOException {
+        StageTimer timer = new StageTimer();
+
+        // The images are decoded as the arguments are parsed
+        timer.start(Stage.DECODE);
         CompareArgs args = new CompareArgs(mainArgs);
+        timer.size(args.imageA.getWidth(), args.imageA.getHeight());
+        timer.stop(Stage.DECODE);
 
         if (args.verbose) {
             args.printArgs();
         }
 
-        long startMillis = System.currentTimeMillis();
-
         Metric.ComparisonResult result =
-                new MetricImpl().yeeCompare(args.imageA, args.imageB, args.params, args.imageDifference);
-
-        System.out.println("elapsedMillis = " + (System.currentTimeMillis() - startMillis));
+                new MetricImpl().yeeCompare(args.imageA, args.imageB, args.params, null, timer);
 
         if (result.passed) {
             if (args.verbose) {
@@ -66,11 +70,17 @@ public final class PerceptualDiff {
             System.out.println(normalized + " normalzied error sum");
         }
 
-        if (args.imageDifference != null) {
-            args.imageDifference.writeToFile();
-            System.err.println("Wrote difference image to " + args.imageDifference.getName());
+        if (!result.passed && result.failureMask != null && args.fileDifference != null) {
+            timer.start(Stage.DIFFERENCE_WRITE);
+            ImageIO.write(result.failureMask.toImage(), "PNG", args.fileDifference);
+            timer.stop(Stage.DIFFERENCE_WRITE);
+            System.err.println("Wrote difference image to " + args.fileDifference);
         }
 
+        timer.finish(result);
+
+        System.out.println("timings: " + result.timings);
+
         System.exit(result.passed ? EXIT_SUCCESS : EXIT_FAILURE);
     }
 
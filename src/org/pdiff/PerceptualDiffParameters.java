@@ -18,6 +18,8 @@
  */
 package org.pdiff;
 
+import java.io.File;
+
 /**
  * Parameters for the Yee image comparison algorithm.
  * @author Paul Parlett
@@ -54,6 +56,54 @@ public class PerceptualDiffParameters {
      */
     double colorFactor;
 
+    /**
+     * Halve the resolution of each successive pyramid level instead of keeping every level at full resolution. The
+     * pyramids then take about a sixth of the memory and a small fraction of the convolution work, but each level is
+     * a coarser band than in the reference pyramid and is sampled at the nearest coarse pixel, so the result only
+     * approximates the reference metric (see the README).
+     */
+    boolean decimatedPyramid;
+
+    /**
+     * Stop as soon as thresholdPixels pixels have failed, since the verdict can no longer change. The pixel count and
+     * error sum of a comparison that stops early are then lower bounds. Ignored with decimatedPyramid.
+     */
+    boolean verdictOnly;
+
+    /**
+     * Keep the error of every pixel tested in the failure mask of the result, so that it can be rendered as a heat map.
+     * This costs a float per pixel of every row tested.
+     */
+    boolean recordErrors;
+
+    /**
+     * How many times to halve both images before comparing them, as with the --down-sample option of the C++
+     * program. Each step averages 2x2 blocks and drops an odd last row or column, and stops early once an image is a
+     * single pixel wide or high. The field of view still covers the whole image, so the pixels per degree fall with
+     * the resolution. The failure mask of the result is at the reduced resolution.
+     */
+    int downSample;
+
+    /**
+     * When the images differ in size, scale both to the smaller width and the smaller height by area averaging,
+     * after any down-sampling, as with the --scale option of the C++ program.
+     */
+    boolean scale;
+
+    /**
+     * Hold the colour planes and pyramid levels of a whole-image comparison outside the Java heap, in memory that is
+     * freed as soon as the comparison finishes, so that very large images neither need a heap several times their size
+     * nor cause long garbage collections. The result is the same. Ignored with decimatedPyramid, in verdict-only mode
+     * and when only a few small regions differ, which need little memory anyway, and by prepared references.
+     */
+    boolean offHeap;
+
+    /**
+     * The directory of the temporary file in which off-heap planes are memory-mapped, or null to allocate them in
+     * direct memory, which is limited by -XX:MaxDirectMemorySize.
+     */
+    File planeDirectory;
+
     PerceptualDiffParameters() {
         luminanceOnly = false;
         fieldOfView = 45.0;
@@ -61,5 +111,12 @@ public class PerceptualDiffParameters {
         luminance = 100.0;
         thresholdPixels = 100;
         colorFactor = 1.0;
+        decimatedPyramid = false;
+        verdictOnly = false;
+        recordErrors = false;
+        downSample = 0;
+        scale = false;
+        offHeap = false;
+        planeDirectory = null;
     }
 }
@@ -0,0 +1,107 @@
+/*
+ * Pixel Hash
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.pdiff;
+
+/*
+ * A 128-bit hash of an image's dimensions and packed pixels, made of two multiply-rotate lanes over pairs of pixels.
+ * It is fast and non-cryptographic: the lanes do not mix with each other within a block and the hash is not keyed, so
+ * collisions are negligible for non-adversarial input but can be constructed deliberately.
+ */
+final class PixelHash {
+
+    private static final long C1 = 0x87C37B91114253D5L;
+    private static final long C2 = 0x4CF5AD432745937FL;
+    private static final long C3 = 0x9E3779B97F4A7C15L;
+    private static final long C4 = 0xC2B2AE3D27D4EB4FL;
+
+    final long high;
+
+    final long low;
+
+    PixelHash(long high, long low) {
+        this.high = high;
+        this.low = low;
+    }
+
+    static PixelHash of(RGBAImage image) {
+        int[] pixels = image.getPixels();
+        long h1 = image.getWidth() * C3;
+        long h2 = image.getHeight() * C4;
+
+        int i = 0;
+
+        for (; i + 1 < pixels.length; i += 2) {
+            long k = (pixels[i] & 0xFFFFFFFFL) | ((long) pixels[i + 1] << 32);
+
+            h1 = Long.rotateLeft(h1 ^ (Long.rotateLeft(k * C1, 31) * C2), 27) * 5 + 0x52DCE729;
+            h2 = Long.rotateLeft(h2 ^ (Long.rotateLeft(k * C3, 33) * C4), 31) * 5 + 0x38495AB5;
+        }
+
+        if (i < pixels.length) {
+            long k = pixels[i] & 0xFFFFFFFFL;
+
+            h1 ^= Long.rotateLeft(k * C1, 31) * C2;
+            h2 ^= Long.rotateLeft(k * C3, 33) * C4;
+        }
+
+        h1 ^= pixels.length;
+        h2 ^= pixels.length;
+
+        h1 += h2;
+        h2 += h1;
+
+        h1 = mix(h1);
+        h2 = mix(h2);
+
+        h1 += h2;
+        h2 += h1;
+
+        return new PixelHash(h1, h2);
+    }
+
+    private static long mix(long k) {
+        k ^= k >>> 33;
+        k *= 0xFF51AFD7ED558CCDL;
+        k ^= k >>> 33;
+        k *= 0xC4CEB9FE1A85EC53L;
+        k ^= k >>> 33;
+
+        return k;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof PixelHash)) {
+            return false;
+        }
+
+        PixelHash other = (PixelHash) obj;
+
+        return high == other.high && low == other.low;
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) low;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%016x%016x", high, low);
+    }
+
+}
@@ -0,0 +1,349 @@
+/*
+ * Pixel Test
+ * Copyright (C) 2006-2011 Yangli Hector Yee
+ * Copyright (C) 2011-2016 Steven Myint, Jeff Terrace
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.pdiff;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import net.jafama.FastMath;
+
+/*
+ * The per-pixel part of Yee's test, applied a row at a time to pyramid levels and chroma planes that may be whole
+ * images or rolling row buffers. Every engine runs the same arithmetic in the same order, so they all produce the same
+ * pixelsFailed and errorSum.
+ */
+final class PixelTest {
+
+    /*
+     * Running totals for a band of rows.
+     */
+    static final class Sums {
+        int pixelsFailed;
+        double errorSum;
+    }
+
+    /*
+     * Working rows for testRow, one set per thread.
+     */
+    static final class Scratch {
+        final double[] adapt;
+        final double[][] contrast;
+        final double[] delta;
+
+        final double[] factor;
+
+        final double[] sumContrast;
+
+        // The colour difference of each pixel of the last row tested, kept for IncrementalComparison
+        final double[] deltaE;
+
+        Scratch(int width) {
+            adapt = new double[width];
+            contrast = new double[LPyramid.MAX_PYR_LEVELS - 2][width];
+            delta = new double[width];
+            factor = new double[width];
+            sumContrast = new double[width];
+            deltaE = new double[width];
+        }
+    }
+
+    private static int adaptation(double numOneDegreePixels) {
+        double numPixels = 1.0;
+        int adaptationLevel = 0;
+
+        for (int i = 0; i < LPyramid.MAX_PYR_LEVELS; i++) {
+            adaptationLevel = i;
+            if (numPixels > numOneDegreePixels) {
+                break;
+            }
+            numPixels *= 2;
+        }
+
+        return adaptationLevel;
+    }
+
+    /*
+     * Computes the contrast sensitivity function (Barten SPIE 1989) given the
+     * cycles per degree (cpd) and luminance (lum).
+     */
+    static double csf(double cpd, double lum) {
+        double a = 440.0 * FastMath.pow((1.0 + 0.7 / lum), -0.2);
+        double b = 0.3 * FastMath.pow((1.0 + 100.0 / lum), 0.15);
+
+        return a * cpd * FastMath.exp(-b * cpd) * FastMath.sqrt(1.0 + 0.06 * FastMath.exp(b * cpd));
+    }
+
+    /*
+     * Visual Masking Function from Daly 1993.
+     */
+    static double mask(double contrast) {
+        double a = FastMath.pow(392.498 * contrast, 0.7);
+        double b = FastMath.pow(0.0153 * a, 4.0);
+        return FastMath.pow(1.0 + b, 0.25);
+    }
+
+    /*
+     * Given the adaptation luminance, this function returns the threshold of
+     * visibility in cd per m^2.
+     *
+     * TVI means Threshold vs Intensity function. This version comes from Ward
+     * Larson Siggraph 1997.
+     *
+     * Returns the threshold luminance given the adaptation luminance. Units are
+     * candelas per meter squared.
+     */
+    static double tvi(double adaptationLuminance) {
+        double logA = FastMath.log10(adaptationLuminance);
+
+        double r;
+        if (logA < -3.94) {
+            r = -2.86;
+        } else if (logA < -1.44) {
+            r = FastMath.pow(0.405 * logA + 1.6, 2.18) - 2.86;
+        } else if (logA < -0.0184) {
+            r = logA - 0.395;
+        } else if (logA < 1.9) {
+            r = FastMath.pow(0.249 * logA + 0.65, 2.7) - 0.72;
+        } else {
+            r = logA - 1.255;
+        }
+
+        return FastMath.pow(10.0, r);
+    }
+
+    /*
+     * The CSF of each level, the masking function and the TVI are looked up in LogTables rather than computed for
+     * every pixel. Measured over the tabulated ranges, the relative error of the TVI table is below 2e-8 and that of
+     * the masking table below 5e-8. The relative error of a CSF table is below 3e-7 up to 8 cycles per degree and
+     * grows with the square of the frequency, to 6e-6 at 32 and 1e-4 at 128 cycles per degree. 128 cycles per degree is
+     * the level 0 frequency of an image about 12000 pixels wide at the default field of view, and there the CSF is so
+     * small that the masking function is nearly 1. Outside the tabulated ranges the functions are computed directly.
+     *
+     * A CSF table takes about 300 KB. The 64 most recently used are kept, about 19 MB, which holds the six tables of
+     * each of ten image widths, so a service that mixes a few widths builds each table once.
+     */
+
+    // The range of adaptation luminance and of masking function arguments that are tabulated
+    private static final double MIN_ADAPT = 1e-5;
+
+    private static final double MAX_ADAPT = 1e6;
+
+    private static final double MIN_MASK = 0x1p-30;
+
+    private static final double MAX_MASK = 0x1p30;
+
+    // The most CSF tables cached, each of about 300 KB
+    static final int MAX_CACHED_CSF = 64;
+
+    private static final LogTable TVI_TABLE = new LogTable(PixelTest::tvi, MIN_ADAPT, MAX_ADAPT,
+            Math.pow(10.0, -3.94), Math.pow(10.0, -1.44), Math.pow(10.0, -0.0184), Math.pow(10.0, 1.9));
+
+    private static final LogTable MASK_TABLE = new LogTable(PixelTest::mask, MIN_MASK, MAX_MASK);
+
+    // The CSF tables in access order, evicting the least recently used
+    private static final Map<Double, LogTable> CSF_TABLES = new LinkedHashMap<Double, LogTable>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Double, LogTable> eldest) {
+            return size() > MAX_CACHED_CSF;
+        }
+    };
+
+    /*
+     * The contrast sensitivity function at the given cycles per degree as a table of the adaptation luminance, built on
+     * first use and shared by all comparisons whose pyramid levels have that frequency while it is cached.
+     */
+    static LogTable csfTable(double cpd) {
+        LogTable table;
+
+        synchronized (CSF_TABLES) {
+            table = CSF_TABLES.get(cpd);
+        }
+
+        if (table != null) {
+            return table;
+        }
+
+        // Built outside the lock, so that comparisons needing other tables are not held up; a table built twice at
+        // once is kept only once
+        table = new LogTable(lum -> csf(cpd, lum), MIN_ADAPT, MAX_ADAPT);
+
+        synchronized (CSF_TABLES) {
+            LogTable existing = CSF_TABLES.putIfAbsent(cpd, table);
+
+            return existing != null ? existing : table;
+        }
+    }
+
+    private final boolean luminanceOnly;
+
+    private final double colorFactor;
+
+    private final int adaptationLevel;
+
+    private final double[] cpd = new double[LPyramid.MAX_PYR_LEVELS];
+
+    private final double[] fFreq = new double[LPyramid.MAX_PYR_LEVELS - 2];
+
+    private final LogTable[] csfTables = new LogTable[LPyramid.MAX_PYR_LEVELS - 2];
+
+    PixelTest(PerceptualDiffParameters params, int width) {
+        luminanceOnly = params.luminanceOnly;
+        colorFactor = params.colorFactor;
+
+        double numOneDegreePixels = (double) Math.toDegrees(2 * Math.tan(params.fieldOfView * Math.toRadians(0.5)));
+        double pixelsPerDegree = width / numOneDegreePixels;
+
+        adaptationLevel = adaptation(numOneDegreePixels);
+
+        cpd[0] = 0.5 * pixelsPerDegree;
+
+        for (int i = 1; i < LPyramid.MAX_PYR_LEVELS; i++) {
+            cpd[i] = 0.5 * cpd[i - 1];
+        }
+
+        double csfMax = csf(3.248, 100.0);
+
+        // assert (LPyramid.MAX_PYR_LEVELS > 2) : "MAX_PYR_LEVELS must be greater than 2";
+
+        for (int i = 0; i < LPyramid.MAX_PYR_LEVELS - 2; i++) {
+            fFreq[i] = csfMax / csf(cpd[i], 100.0);
+            csfTables[i] = csfTable(cpd[i]);
+        }
+    }
+
+    /*
+     * Tests one row of w pixels and adds its failures and errors to the band's running sums. Pixel x of the row is at
+     * la[level][offset + x] and lb[level][offset + x] in the pyramid levels, at chromaOffset + x in the chroma planes
+     * and at (x0 + x, y) in the failure mask.
+     *
+     * The masking factor is accumulated a level at a time across the row, so that the CSF table, frequency weight and
+     * contrast row of each level are loaded once per row rather than once per pixel. Each pixel still adds up its
+     * levels in the same order, so the result is unchanged.
+     */
+    void testRow(float[][] la, float[][] lb, int offset, ColourSpace colourSpace, int chromaOffset, int w,
+            FailureMask failureMask, int x0, int y, Sums sums, Scratch scratch) {
+        double[] adapt = scratch.adapt;
+        double[] factor = scratch.factor;
+        double[] sumContrast = scratch.sumContrast;
+
+        Kernels.current.contrast(la, lb, offset, w, adaptationLevel, adapt, scratch.contrast, scratch.delta);
+
+        Arrays.fill(factor, 0, w, 0.0);
+        Arrays.fill(sumContrast, 0, w, 0.0);
+
+        LogTable maskTable = MASK_TABLE;
+
+        for (int i = 0; i < LPyramid.MAX_PYR_LEVELS - 2; i++) {
+            double[] contrastRow = scratch.contrast[i];
+            LogTable csfTable = csfTables[i];
+            double freq = fFreq[i];
+
+            for (int x = 0; x < w; x++) {
+                double contrast = contrastRow[x];
+                double fMask = maskTable.get(contrast * csfTable.get(adapt[x]));
+
+                factor[x] += contrast * freq * fMask;
+                sumContrast[x] += contrast;
+            }
+        }
+
+        testPixels(colourSpace, chromaOffset, w, failureMask, x0, y, sums, scratch);
+    }
+
+    /*
+     * Applies the luminance and colour tests to the pixels of a row whose adaptation, masking factor and luminance
+     * difference are in the scratch rows.
+     */
+    private void testPixels(ColourSpace colourSpace, int chromaOffset, int w, FailureMask failureMask, int x0, int y,
+            Sums sums, Scratch scratch) {
+        int pixelsFailed = sums.pixelsFailed;
+        double errorSum = sums.errorSum;
+
+        boolean recordErrors = failureMask.isRecordingErrors();
+
+        double[] adaptRow = scratch.adapt;
+        double[] factorRow = scratch.factor;
+        double[] sumContrastRow = scratch.sumContrast;
+        double[] deltaRow = scratch.delta;
+        double[] deltaERow = scratch.deltaE;
+
+        LogTable tviTable = TVI_TABLE;
+
+        for (int x = 0; x < w; x++) {
+            double adapt = adaptRow[x];
+
+            double sumContrast = Math.max(sumContrastRow[x], 1e-5);
+            double factor = factorRow[x] / sumContrast;
+            factor = Math.min(Math.max(factor, 1.0), 10.0);
+
+            double delta = deltaRow[x];
+
+            errorSum += delta;
+
+            double deltaE = 0.0;
+
+            boolean pass = true;
+
+            // Pure luminance test.
+            if (delta > factor * tviTable.get(adapt)) {
+                pass = false;
+            }
+
+            if (!luminanceOnly) {
+                // CIE delta E test with modifications
+                double colorScale = colorFactor;
+
+                // Ramp down the color test in scotopic regions
+                if (adapt < 10.0) {
+                    // Don't do color test at all
+                    colorScale = 0.0;
+                }
+
+                // The chroma is only looked up, or computed if lazy, where it is weighted; elsewhere deltaE is 0
+                if (colorScale != 0.0) {
+                    deltaE = colourSpace.chromaDistance(chromaOffset + x) * colorScale;
+                }
+
+                errorSum += deltaE;
+
+                if (deltaE > factor) {
+                    pass = false;
+                }
+            }
+
+            deltaERow[x] = deltaE;
+
+            if (!pass) {
+                pixelsFailed++;
+
+                failureMask.fail(x0 + x, y);
+            }
+
+            if (recordErrors) {
+                failureMask.error(x0 + x, y, delta + deltaE);
+            }
+        }
+
+        sums.pixelsFailed = pixelsFailed;
+        sums.errorSum = errorSum;
+    }
+}
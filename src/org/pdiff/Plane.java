@@ -0,0 +1,125 @@
+/*
+ * Plane
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.pdiff;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+
+/*
+ * A width x height plane of floats held outside the Java heap by a PlaneArena, in chunks of whole rows so that the
+ * plane as a whole may hold more than Integer.MAX_VALUE values. It is read and written a row at a time into float
+ * arrays, so the row kernels of ColourSpace, LPyramid and PixelTest work on it unchanged. A plane may also wrap a float
+ * array on the heap, or map a region of a file read-only, as those of a PreparedReference do.
+ *
+ * Rows may be read and written by several threads at once, as long as no two write the same row. A plane must not be
+ * used once its arena is closed.
+ */
+final class Plane {
+
+    private final int width;
+
+    private final int height;
+
+    private final int rowsPerChunk;
+
+    private final FloatBuffer[] chunks;
+
+    /*
+     * Wraps the chunk buffers, each of which holds rowsPerChunk rows except perhaps the last.
+     */
+    Plane(int width, int height, int rowsPerChunk, ByteBuffer[] chunks) {
+        this(width, height, rowsPerChunk, new FloatBuffer[chunks.length]);
+
+        for (int i = 0; i < chunks.length; i++) {
+            this.chunks[i] = chunks[i].asFloatBuffer();
+        }
+    }
+
+    private Plane(int width, int height, int rowsPerChunk, FloatBuffer[] chunks) {
+        this.width = width;
+        this.height = height;
+        this.rowsPerChunk = rowsPerChunk;
+        this.chunks = chunks;
+    }
+
+    /*
+     * Wraps the first width * height values of an array as a plane, without copying them.
+     */
+    static Plane wrap(float[] values, int width, int height) {
+        return new Plane(width, height, Math.max(height, 1), new FloatBuffer[] {FloatBuffer.wrap(values) });
+    }
+
+    /*
+     * Maps the little-endian floats of a plane that start at the given position of a file read-only, in chunks of
+     * whole rows of at most PlaneArena.MAX_CHUNK_BYTES. The mapping stays valid after the channel is closed.
+     */
+    static Plane map(FileChannel channel, long position, int width, int height) throws IOException {
+        long rowBytes = 4L * width;
+        int rowsPerChunk = (int) Math.min(PlaneArena.MAX_CHUNK_BYTES / Math.max(rowBytes, 1), Math.max(height, 1));
+        int count = (height + rowsPerChunk - 1) / rowsPerChunk;
+        ByteBuffer[] chunks = new ByteBuffer[count];
+
+        for (int i = 0; i < count; i++) {
+            int rows = Math.min(rowsPerChunk, height - i * rowsPerChunk);
+
+            chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, position + i * rowsPerChunk * rowBytes,
+                    rows * rowBytes).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        return new Plane(width, height, rowsPerChunk, chunks);
+    }
+
+    int getWidth() {
+        return width;
+    }
+
+    int getHeight() {
+        return height;
+    }
+
+    /*
+     * A view of the chunk holding row y, positioned at the start of the row. Views are not shared between threads.
+     */
+    private FloatBuffer row(int y) {
+        FloatBuffer view = chunks[y / rowsPerChunk].duplicate();
+        view.position((y % rowsPerChunk) * width);
+
+        return view;
+    }
+
+    /*
+     * Copies row y into dst[offset, offset + width).
+     */
+    void getRow(int y, float[] dst, int offset) {
+        row(y).get(dst, offset, width);
+    }
+
+    /*
+     * Copies src[offset, offset + width) into row y.
+     */
+    void setRow(int y, float[] src, int offset) {
+        row(y).put(src, offset, width);
+    }
+
+    float get(int x, int y) {
+        return chunks[y / rowsPerChunk].get((y % rowsPerChunk) * width + x);
+    }
+
+}
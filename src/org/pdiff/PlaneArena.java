@@ -0,0 +1,224 @@
+/*
+ * Plane Arena
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.pdiff;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/*
+ * Allocates the Planes of one comparison outside the Java heap, either in direct memory or in a temporary file that is
+ * memory-mapped, and releases them all at once when closed rather than when the garbage collector gets round to their
+ * buffers.
+ *
+ * Each plane is split into chunks of whole rows of at most MAX_CHUNK_BYTES, since a buffer is indexed by int. Direct
+ * and mapped buffers are freed with the cleaner of the JVM, through sun.misc.Unsafe.invokeCleaner on Java 9 and later
+ * and through the buffer's own cleaner on Java 8; if neither is accessible they are left to the garbage collector.
+ */
+final class PlaneArena implements AutoCloseable {
+
+    private static final Logger LOGGER = Logger.getLogger(PlaneArena.class.getName());
+
+    static final int MAX_CHUNK_BYTES = 1 << 30;
+
+    private interface Cleaner {
+        void clean(ByteBuffer buffer) throws ReflectiveOperationException;
+    }
+
+    private static final Cleaner CLEANER = cleaner();
+
+    private static Cleaner cleaner() {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            Object unsafe = theUnsafe.get(null);
+
+            return buffer -> invokeCleaner.invoke(unsafe, buffer);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            LOGGER.log(Level.FINE, "Unsafe.invokeCleaner unavailable: " + e);
+        }
+
+        try {
+            Method cleanerMethod = ByteBuffer.allocateDirect(1).getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Method clean = cleanerMethod.getReturnType().getMethod("clean");
+            clean.setAccessible(true);
+
+            return buffer -> {
+                Object cleaner = cleanerMethod.invoke(buffer);
+
+                if (cleaner != null) {
+                    clean.invoke(cleaner);
+                }
+            };
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            LOGGER.log(Level.CONFIG, "Off-heap planes will be freed by the garbage collector: " + e);
+
+            return null;
+        }
+    }
+
+    private final File file;
+
+    private final FileChannel channel;
+
+    private final int maxChunkBytes;
+
+    private final List<ByteBuffer> buffers = new ArrayList<>();
+
+    private long bytes;
+
+    private boolean closed;
+
+    /*
+     * Creates an arena in direct memory if directory is null, or else in a temporary file in that directory.
+     */
+    PlaneArena(File directory) throws IOException {
+        this(directory, MAX_CHUNK_BYTES);
+    }
+
+    /*
+     * Creates an arena whose chunks hold at most maxChunkBytes, which tests make small.
+     */
+    PlaneArena(File directory, int maxChunkBytes) throws IOException {
+        this.maxChunkBytes = maxChunkBytes;
+
+        if (directory == null) {
+            file = null;
+            channel = null;
+        } else {
+            file = File.createTempFile("pdiff-planes", ".tmp", directory);
+            file.deleteOnExit();
+            channel = new RandomAccessFile(file, "rw").getChannel();
+        }
+    }
+
+    /*
+     * Allocates a plane, whose values are zero.
+     */
+    synchronized Plane allocate(int width, int height) {
+        if (closed) {
+            throw new IllegalStateException("the arena is closed");
+        }
+
+        long rowBytes = 4L * width;
+
+        if (rowBytes > maxChunkBytes) {
+            throw new IllegalArgumentException("a row of " + width + " floats does not fit in a chunk");
+        }
+
+        int rowsPerChunk = (int) Math.min(maxChunkBytes / rowBytes, Math.max(height, 1));
+        int count = (height + rowsPerChunk - 1) / rowsPerChunk;
+        ByteBuffer[] chunks = new ByteBuffer[count];
+
+        for (int i = 0; i < count; i++) {
+            int rows = Math.min(rowsPerChunk, height - i * rowsPerChunk);
+            chunks[i] = chunk((int) (rows * rowBytes));
+        }
+
+        return new Plane(width, height, rowsPerChunk, chunks);
+    }
+
+    private ByteBuffer chunk(int size) {
+        ByteBuffer buffer;
+
+        if (channel == null) {
+            buffer = ByteBuffer.allocateDirect(size);
+        } else {
+            try {
+                // Mapping beyond the end of the file extends it with zeros
+                buffer = channel.map(FileChannel.MapMode.READ_WRITE, bytes, size);
+            } catch (IOException e) {
+                throw new UncheckedIOException("failed to map " + size + " bytes of " + file, e);
+            }
+        }
+
+        buffer.order(ByteOrder.nativeOrder());
+        buffers.add(buffer);
+        bytes += size;
+
+        return buffer;
+    }
+
+    /*
+     * The number of bytes allocated so far.
+     */
+    synchronized long getBytes() {
+        return bytes;
+    }
+
+    /*
+     * Frees every plane and deletes the file, if any. No plane of the arena may be used afterwards, or the JVM may
+     * crash, so a comparison that fails part way, whose other bands may still be running, calls abandon instead.
+     */
+    @Override
+    public synchronized void close() {
+        release(true);
+    }
+
+    /*
+     * Deletes the file, if any, but leaves the planes to the garbage collector.
+     */
+    synchronized void abandon() {
+        release(false);
+    }
+
+    private void release(boolean free) {
+        if (closed) {
+            return;
+        }
+
+        closed = true;
+
+        if (free && CLEANER != null) {
+            for (ByteBuffer buffer : buffers) {
+                try {
+                    CLEANER.clean(buffer);
+                } catch (ReflectiveOperationException e) {
+                    LOGGER.log(Level.FINE, "failed to free a plane: " + e);
+                }
+            }
+        }
+
+        buffers.clear();
+
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "failed to close " + file + ": " + e);
+            }
+
+            if (!file.delete()) {
+                LOGGER.log(Level.FINE, "failed to delete " + file);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,442 @@
+/*
+ * PNG Source
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.pdiff;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import javax.imageio.ImageTypeSpecifier;
+
+/*
+ * Decodes a PNG a row at a time straight into packed ARGB ints, without ImageIO. A file is memory-mapped, and the
+ * IDAT chunks are inflated into a buffer of two rows, which are unfiltered and converted in place, so that memory use
+ * is proportional to the width of the image.
+ *
+ * Non-interlaced images with 8 bits per sample are supported: grey, grey with alpha, RGB, RGBA and palette colour
+ * types, with a palette's tRNS alphas. open returns null for anything else, i.e. other bit depths, interlacing and
+ * colour key transparency, whose treatment by ImageIO differs between Java versions, so that the caller can fall back
+ * to ImageIO. The ARGB values are those of BufferedImage.getRGB on the image ImageIO would have returned, including its
+ * conversion of grey from the linear grey colour space. Like ImageIO, embedded ICC profiles and gamma are ignored.
+ */
+final class PngSource implements ScanlineSource {
+
+    private static final long SIGNATURE = 0x89504E470D0A1A0AL;
+
+    private static final int IHDR = 0x49484452;
+
+    private static final int PLTE = 0x504C5445;
+
+    private static final int TRNS = 0x74524E53;
+
+    private static final int IDAT = 0x49444154;
+
+    private static final int IEND = 0x49454E44;
+
+    private static final int GREY = 0;
+
+    private static final int RGB = 2;
+
+    private static final int PALETTE = 3;
+
+    private static final int GREY_ALPHA = 4;
+
+    private static final int RGBA = 6;
+
+    // The most compressed bytes passed to the inflater at a time
+    private static final int INPUT_BYTES = 1 << 16;
+
+    private static final int[] GREY_TO_RGB = greyToRgb();
+
+    private final ByteBuffer data;
+
+    private final int width;
+
+    private final int height;
+
+    private final int colourType;
+
+    private final int bytesPerPixel;
+
+    private final int[] palette;
+
+    private final Inflater inflater = new Inflater();
+
+    private final byte[] input = new byte[INPUT_BYTES];
+
+    private final byte[] filter = new byte[1];
+
+    // The current and previous rows of filtered bytes, each preceded by bytesPerPixel zeros
+    private byte[] row;
+
+    private byte[] previous;
+
+    // The position and remaining length of the IDAT chunk being inflated
+    private int chunkPosition;
+
+    private int chunkRemaining;
+
+    private PngSource(ByteBuffer data, int width, int height, int colourType, int[] palette,
+            int firstIdat) {
+        this.data = data;
+        this.width = width;
+        this.height = height;
+        this.colourType = colourType;
+        this.palette = palette;
+        this.bytesPerPixel = colourType == RGBA ? 4 : colourType == RGB ? 3 : colourType == GREY_ALPHA ? 2 : 1;
+        this.chunkPosition = firstIdat;
+
+        row = new byte[bytesPerPixel + width * bytesPerPixel];
+        previous = new byte[row.length];
+    }
+
+    /*
+     * The ARGB value of each grey level, as converted by getRGB from the grey colour space of ImageIO's grey images.
+     */
+    private static int[] greyToRgb() {
+        BufferedImage image = ImageTypeSpecifier.createGrayscale(8, DataBuffer.TYPE_BYTE, false)
+                .createBufferedImage(256, 1);
+
+        for (int grey = 0; grey < 256; grey++) {
+            image.getRaster().setSample(grey, 0, 0, grey);
+        }
+
+        return image.getRGB(0, 0, 256, 1, null, 0, 256);
+    }
+
+    /*
+     * Opens a PNG file, or returns null if it is not a PNG file or is a kind of PNG that is not supported.
+     */
+    static PngSource open(File file) throws IOException {
+        MappedByteBuffer data;
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                return null;
+            }
+
+            data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        return open(data, file.getName());
+    }
+
+    /*
+     * Opens a PNG held in the buffer, from its position to its limit, or returns null if it is not a PNG or is a kind
+     * of PNG that is not supported. The buffer must not be changed until the source is closed.
+     */
+    static PngSource open(ByteBuffer buffer, String name) throws IOException {
+        ByteBuffer data = buffer.slice().order(ByteOrder.BIG_ENDIAN);
+
+        if (data.limit() < 8 + 25) {
+            return null;
+        }
+
+
+        if (data.getLong(0) != SIGNATURE || data.getInt(12) != IHDR || data.getInt(8) != 13) {
+            return null;
+        }
+
+        long width = data.getInt(16) & 0xFFFFFFFFL;
+        long height = data.getInt(20) & 0xFFFFFFFFL;
+        int bitDepth = data.get(24);
+        int colourType = data.get(25);
+        int interlace = data.get(28);
+
+        if (width == 0 || height == 0 || width * height > Integer.MAX_VALUE || width * 4 + 9 > Integer.MAX_VALUE) {
+            throw new IOException("invalid PNG dimensions " + width + "x" + height + " in " + name);
+        }
+
+        if (bitDepth != 8 || interlace != 0 || (colourType != GREY && colourType != RGB && colourType != PALETTE
+                && colourType != GREY_ALPHA && colourType != RGBA)) {
+            return null;
+        }
+
+        int[] palette = null;
+        int firstIdat = -1;
+        int position = 8 + 25;
+
+        // Find the palette and the first IDAT chunk, which must be followed by the others
+        while (firstIdat < 0) {
+            if (position + 12 > data.limit()) {
+                throw new IOException("truncated PNG " + name);
+            }
+
+            int length = data.getInt(position);
+            int type = data.getInt(position + 4);
+
+            if (length < 0 || position + 12L + length > data.limit()) {
+                throw new IOException("truncated PNG " + name);
+            }
+
+            if (type == PLTE && colourType == PALETTE) {
+                palette = new int[256];
+
+                // ImageIO reads indices beyond the end of the palette as opaque black
+                Arrays.fill(palette, 0xFF000000);
+
+                for (int i = 0; i < length / 3 && i < 256; i++) {
+                    int p = position + 8 + i * 3;
+                    palette[i] = 0xFF000000 | (data.get(p) & 0xFF) << 16 | (data.get(p + 1) & 0xFF) << 8
+                            | data.get(p + 2) & 0xFF;
+                }
+            } else if (type == TRNS) {
+                if (colourType != PALETTE || palette == null) {
+                    return null;
+                }
+
+                for (int i = 0; i < length && i < 256; i++) {
+                    palette[i] = (data.get(position + 8 + i) & 0xFF) << 24 | palette[i] & 0xFFFFFF;
+                }
+            } else if (type == IDAT) {
+                firstIdat = position;
+            } else if (type == IEND) {
+                throw new IOException("PNG has no image data " + name);
+            }
+
+            position += 12 + length;
+        }
+
+        if (colourType == PALETTE && palette == null) {
+            throw new IOException("PNG has no palette " + name);
+        }
+
+        return new PngSource(data, (int) width, (int) height, colourType, palette, firstIdat);
+    }
+
+    /*
+     * Reads a whole PNG file, or returns null if it is not a PNG file or is a kind of PNG that is not supported.
+     */
+    static RGBAImage read(File file) throws IOException {
+        return read(open(file), file.getName());
+    }
+
+    /*
+     * Reads a whole PNG held in the buffer, or returns null if it is not a PNG or is a kind of PNG that is not
+     * supported.
+     */
+    static RGBAImage read(ByteBuffer buffer, String name) throws IOException {
+        return read(open(buffer, name), name);
+    }
+
+    private static RGBAImage read(PngSource source, String name) throws IOException {
+        if (source == null) {
+            return null;
+        }
+
+        try {
+            RGBAImage image = new RGBAImage(source.width, source.height, name);
+            int[] pixels = image.getPixels();
+
+            for (int y = 0; y < source.height; y++) {
+                source.nextRow(pixels, y * source.width);
+            }
+
+            return image;
+        } finally {
+            source.close();
+        }
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public void nextRow(int[] dst) throws IOException {
+        nextRow(dst, 0);
+    }
+
+    private void nextRow(int[] dst, int offset) throws IOException {
+        byte[] swap = previous;
+        previous = row;
+        row = swap;
+
+        inflate(filter, 0, 1);
+        inflate(row, bytesPerPixel, row.length - bytesPerPixel);
+        unfilter(filter[0]);
+        convert(dst, offset);
+    }
+
+    /*
+     * Inflates exactly length bytes into b[offset, offset + length), feeding the inflater from the IDAT chunks.
+     */
+    private void inflate(byte[] b, int offset, int length) throws IOException {
+        try {
+            int done = 0;
+
+            while (done < length) {
+                int n = inflater.inflate(b, offset + done, length - done);
+
+                done += n;
+
+                if (n == 0) {
+                    if (inflater.finished() || inflater.needsDictionary()) {
+                        throw new IOException("PNG image data is truncated");
+                    }
+
+                    if (inflater.needsInput()) {
+                        feed();
+                    }
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("PNG image data is corrupt", e);
+        }
+    }
+
+    /*
+     * Passes the inflater the next part of the current IDAT chunk, moving on to the next chunk once it is used up.
+     */
+    private void feed() throws IOException {
+        while (chunkRemaining == 0) {
+            if (chunkPosition + 12 > data.limit() || data.getInt(chunkPosition + 4) != IDAT) {
+                throw new IOException("PNG image data is truncated");
+            }
+
+            chunkRemaining = data.getInt(chunkPosition);
+
+            if (chunkRemaining < 0 || chunkPosition + 12L + chunkRemaining > data.limit()) {
+                throw new IOException("PNG image data is truncated");
+            }
+
+            chunkPosition += 8;
+
+            if (chunkRemaining == 0) {
+                chunkPosition += 4;
+            }
+        }
+
+        int n = Math.min(chunkRemaining, input.length);
+
+        data.position(chunkPosition);
+        data.get(input, 0, n);
+        inflater.setInput(input, 0, n);
+
+        chunkPosition += n;
+        chunkRemaining -= n;
+
+        if (chunkRemaining == 0) {
+            // Skip the CRC
+            chunkPosition += 4;
+        }
+    }
+
+    /*
+     * Reverses the filter of the current row against the previous row. The bytesPerPixel bytes before the pixels of
+     * both rows are zero, so that the first pixel needs no special case.
+     */
+    private void unfilter(int type) throws IOException {
+        byte[] r = row;
+        byte[] p = previous;
+        int bpp = bytesPerPixel;
+        int from = bpp;
+        int end = r.length;
+
+        switch (type) {
+            case 0:
+                break;
+            case 1:
+                for (int i = from; i < end; i++) {
+                    r[i] += r[i - bpp];
+                }
+                break;
+            case 2:
+                for (int i = from; i < end; i++) {
+                    r[i] += p[i];
+                }
+                break;
+            case 3:
+                for (int i = from; i < end; i++) {
+                    r[i] += ((r[i - bpp] & 0xFF) + (p[i] & 0xFF)) >>> 1;
+                }
+                break;
+            case 4:
+                for (int i = from; i < end; i++) {
+                    int a = r[i - bpp] & 0xFF;
+                    int b = p[i] & 0xFF;
+                    int c = p[i - bpp] & 0xFF;
+                    int pa = Math.abs(b - c);
+                    int pb = Math.abs(a - c);
+                    int pc = Math.abs(a + b - c - c);
+
+                    r[i] += (pa <= pb && pa <= pc) ? a : (pb <= pc ? b : c);
+                }
+                break;
+            default:
+                throw new IOException("invalid PNG filter type " + type);
+        }
+    }
+
+    /*
+     * Converts the unfiltered row to packed ARGB in dst[offset, offset + width).
+     */
+    private void convert(int[] dst, int offset) {
+        byte[] r = row;
+        int from = bytesPerPixel;
+
+        switch (colourType) {
+            case RGBA:
+                for (int x = 0, i = from; x < width; x++, i += 4) {
+                    dst[offset + x] = (r[i + 3] & 0xFF) << 24 | (r[i] & 0xFF) << 16 | (r[i + 1] & 0xFF) << 8
+                            | r[i + 2] & 0xFF;
+                }
+                break;
+            case RGB:
+                for (int x = 0, i = from; x < width; x++, i += 3) {
+                    dst[offset + x] = 0xFF000000 | (r[i] & 0xFF) << 16 | (r[i + 1] & 0xFF) << 8 | r[i + 2] & 0xFF;
+                }
+                break;
+            case GREY_ALPHA:
+                for (int x = 0, i = from; x < width; x++, i += 2) {
+                    dst[offset + x] = (r[i + 1] & 0xFF) << 24 | GREY_TO_RGB[r[i] & 0xFF] & 0xFFFFFF;
+                }
+                break;
+            case GREY:
+                for (int x = 0, i = from; x < width; x++, i++) {
+                    dst[offset + x] = GREY_TO_RGB[r[i] & 0xFF];
+                }
+                break;
+            default:
+                for (int x = 0, i = from; x < width; x++, i++) {
+                    dst[offset + x] = palette[r[i] & 0xFF];
+                }
+                break;
+        }
+    }
+
+    @Override
+    public void close() {
+        inflater.end();
+    }
+
+}
@@ -0,0 +1,351 @@
+/*
+ * Prepared Reference
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.pdiff;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * The reference side of a comparison, i.e. its luminance pyramid, its Lab chroma planes and a hash of its pixels,
+ * computed once so that many candidates can be compared against it with MetricImpl. It can be saved to a file and
+ * loaded again by memory-mapping it, without decoding or converting the reference image.
+ * <p>
+ * The file holds only what cannot be rebuilt cheaply: the luminance and the Lab a and b planes, and in decimated
+ * pyramid mode the decimated levels, which add only a third to the luminance. That is 12 bytes per pixel, three times
+ * the decoded image, or about 13.3 in decimated mode. A load maps the planes read-only and the comparisons read their
+ * rows from the mapping, so a load reads only the header. The full-resolution blurred levels are not stored: they are
+ * built from the mapped luminance by the first comparison against a loaded reference, outside the heap, and kept for
+ * the comparisons after it.
+ * <p>
+ * The file is little-endian: the magic number "PDIFFREF", a version, the width and height, flags (bit 0 for the
+ * decimated pyramid), the gamma, the luminance and the pixel hash, followed by the luminance, the Lab a plane, the Lab
+ * b plane and in decimated mode pyramid levels 1 up, each preceded by its length in floats.
+ * @author Paul Parlett
+ */
+public final class PreparedReference {
+
+    private static final long MAGIC = 0x5044494646524546L;
+
+    private static final int VERSION = 2;
+
+    private static final int HEADER_BYTES = 56;
+
+    private static final int FLAG_DECIMATED = 1;
+
+    // The most floats written at a time
+    private static final int CHUNK_FLOATS = 1 << 20;
+
+    final int width;
+
+    final int height;
+
+    final double gamma;
+
+    final double luminance;
+
+    final boolean decimated;
+
+    final PixelHash pixelHash;
+
+    final Plane labA;
+
+    final Plane labB;
+
+    private final int[] levelWidth = new int[LPyramid.MAX_PYR_LEVELS];
+
+    private final int[] levelHeight = new int[LPyramid.MAX_PYR_LEVELS];
+
+    private final int[] levelShift = new int[LPyramid.MAX_PYR_LEVELS];
+
+    // The pyramid levels, of which the full-resolution blurred ones of a loaded reference are null until built
+    private Plane[] levels;
+
+    /*
+     * Wraps the planes of a reference, whose levels above 0 may be null if they are full-resolution.
+     */
+    PreparedReference(int width, int height, double gamma, double luminance, boolean decimated, PixelHash pixelHash,
+            Plane[] levels, Plane labA, Plane labB) {
+        this.width = width;
+        this.height = height;
+        this.gamma = gamma;
+        this.luminance = luminance;
+        this.decimated = decimated;
+        this.pixelHash = pixelHash;
+        this.levels = levels;
+        this.labA = labA;
+        this.labB = labB;
+
+        LPyramid.shape(width, height, decimated, levelWidth, levelHeight, levelShift);
+    }
+
+    /*
+     * Wraps the planes of a reference prepared on the heap, without copying them.
+     */
+    static PreparedReference wrap(int width, int height, double gamma, double luminance, boolean decimated,
+            PixelHash pixelHash, LPyramid pyramid, float[] labA, float[] labB) {
+        int[] levelWidth = new int[LPyramid.MAX_PYR_LEVELS];
+        int[] levelHeight = new int[LPyramid.MAX_PYR_LEVELS];
+        LPyramid.shape(width, height, decimated, levelWidth, levelHeight, new int[LPyramid.MAX_PYR_LEVELS]);
+
+        Plane[] levels = new Plane[LPyramid.MAX_PYR_LEVELS];
+
+        for (int level = 0; level < LPyramid.MAX_PYR_LEVELS; level++) {
+            levels[level] = Plane.wrap(pyramid.getLevel(level), levelWidth[level], levelHeight[level]);
+        }
+
+        return new PreparedReference(width, height, gamma, luminance, decimated, pixelHash, levels,
+                Plane.wrap(labA, width, height), Plane.wrap(labB, width, height));
+    }
+
+    /*
+     * Checks that the parameters that went into the prepared planes are the ones being compared with.
+     */
+    void checkParameters(PerceptualDiffParameters params) {
+        checkSupported(params);
+
+        if (params.gamma != gamma || params.luminance != luminance || params.decimatedPyramid != decimated) {
+            throw new IllegalArgumentException(
+                    "reference was prepared with a different gamma, luminance or pyramid mode");
+        }
+    }
+
+    /*
+     * Checks that the parameters do not ask for down-sampling or scaling, which prepared references do not support.
+     */
+    static void checkSupported(PerceptualDiffParameters params) {
+        if (params.downSample > 0 || params.scale) {
+            throw new IllegalArgumentException("prepared references do not support down-sampling or scaling");
+        }
+    }
+
+    /*
+     * Returns the pyramid levels, first building the full-resolution blurred levels of a loaded reference from its
+     * luminance, in an arena of direct memory that is freed with the reference, in bands of rows on the given pool
+     * (null for serial).
+     */
+    synchronized Plane[] levels(ForkJoinPool pool) {
+        if (levels[LPyramid.MAX_PYR_LEVELS - 1] == null) {
+            PlaneArena arena;
+
+            try {
+                arena = new PlaneArena(null);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+
+            levels = LPyramid.levels(levels[0], arena, pool);
+        }
+
+        return levels;
+    }
+
+    /*
+     * Copies row y of each of the given levels into rows[level][0, width), sampling decimated levels at the coarse
+     * pixel nearest to each pixel as LPyramid.rows does, through a scratch row of at least width floats.
+     */
+    void rows(Plane[] levels, int y, float[][] rows, float[] scratch) {
+        for (int level = 0; level < LPyramid.MAX_PYR_LEVELS; level++) {
+            if (!decimated) {
+                levels[level].getRow(y, rows[level], 0);
+            } else {
+                int shift = levelShift[level];
+
+                levels[level].getRow(LPyramid.sourceRow(y, shift, levelHeight[level]), scratch, 0);
+                LPyramid.sampleRow(scratch, 0, levelWidth[level], shift, rows[level], width);
+            }
+        }
+    }
+
+    /**
+     * Saves the prepared reference to a file.
+     * @param file The file to write
+     * @throws IOException Thrown if there is an error writing the file
+     */
+    public void save(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+
+            header.putLong(MAGIC);
+            header.putInt(VERSION);
+            header.putInt(width);
+            header.putInt(height);
+            header.putInt(decimated ? FLAG_DECIMATED : 0);
+            header.putDouble(gamma);
+            header.putDouble(luminance);
+            header.putLong(pixelHash.high);
+            header.putLong(pixelHash.low);
+            header.flip();
+
+            writeFully(channel, header);
+
+            ByteBuffer buffer = ByteBuffer.allocateDirect(CHUNK_FLOATS * 4).order(ByteOrder.LITTLE_ENDIAN);
+
+            writePlane(channel, buffer, levels[0]);
+            writePlane(channel, buffer, labA);
+            writePlane(channel, buffer, labB);
+
+            if (decimated) {
+                for (int level = 1; level < LPyramid.MAX_PYR_LEVELS; level++) {
+                    writePlane(channel, buffer, levels[level]);
+                }
+            }
+        }
+    }
+
+    private static void writePlane(FileChannel channel, ByteBuffer buffer, Plane plane) throws IOException {
+        int w = plane.getWidth();
+        float[] row = new float[w];
+
+        buffer.clear();
+        buffer.putLong((long) w * plane.getHeight());
+
+        for (int y = 0; y < plane.getHeight(); y++) {
+            plane.getRow(y, row, 0);
+
+            for (int from = 0; from < w;) {
+                if (buffer.remaining() < 4) {
+                    buffer.flip();
+                    writeFully(channel, buffer);
+                    buffer.clear();
+                }
+
+                int count = Math.min(w - from, buffer.remaining() / 4);
+
+                buffer.asFloatBuffer().put(row, from, count);
+                buffer.position(buffer.position() + count * 4);
+                from += count;
+            }
+        }
+
+        buffer.flip();
+        writeFully(channel, buffer);
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Loads a prepared reference saved by {@link #save(File)}, memory-mapping its planes read-only rather than reading
+     * them. The file must not be changed while the reference is in use.
+     * @param file The file to read
+     * @return The prepared reference
+     * @throws IOException Thrown if the file cannot be read or is not a prepared reference
+     */
+    public static PreparedReference load(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_BYTES) {
+                throw new IOException("not a prepared reference: " + file);
+            }
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, header, 0);
+            header.flip();
+
+            if (header.getLong() != MAGIC || header.getInt() != VERSION) {
+                throw new IOException("not a prepared reference: " + file);
+            }
+
+            int width = header.getInt();
+            int height = header.getInt();
+            boolean decimated = (header.getInt() & FLAG_DECIMATED) != 0;
+            double gamma = header.getDouble();
+            double luminance = header.getDouble();
+            PixelHash pixelHash = new PixelHash(header.getLong(), header.getLong());
+
+            if (width < 1 || height < 1 || (long) width * height > Integer.MAX_VALUE) {
+                throw new IOException("prepared reference has invalid dimensions " + width + "x" + height);
+            }
+
+            int[] levelWidth = new int[LPyramid.MAX_PYR_LEVELS];
+            int[] levelHeight = new int[LPyramid.MAX_PYR_LEVELS];
+            LPyramid.shape(width, height, decimated, levelWidth, levelHeight, new int[LPyramid.MAX_PYR_LEVELS]);
+
+            long[] position = {HEADER_BYTES };
+
+            Plane[] levels = new Plane[LPyramid.MAX_PYR_LEVELS];
+            levels[0] = mapPlane(channel, position, width, height);
+
+            Plane labA = mapPlane(channel, position, width, height);
+            Plane labB = mapPlane(channel, position, width, height);
+
+            if (decimated) {
+                for (int level = 1; level < LPyramid.MAX_PYR_LEVELS; level++) {
+                    levels[level] = mapPlane(channel, position, levelWidth[level], levelHeight[level]);
+                }
+            }
+
+            if (position[0] != channel.size()) {
+                throw new IOException("prepared reference has " + (channel.size() - position[0]) + " trailing bytes");
+            }
+
+            return new PreparedReference(width, height, gamma, luminance, decimated, pixelHash, levels, labA, labB);
+        }
+    }
+
+    /*
+     * Maps the plane at the given position, which must be width * height floats long, and moves the position past it.
+     */
+    private static Plane mapPlane(FileChannel channel, long[] position, int width, int height) throws IOException {
+        long expected = (long) width * height;
+
+        if (position[0] + 8 > channel.size()) {
+            throw new IOException("prepared reference is truncated");
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, buffer, position[0]);
+        buffer.flip();
+
+        long length = buffer.getLong();
+
+        if (length != expected) {
+            throw new IOException("prepared reference has a plane of " + length + " floats where " + expected
+                    + " were expected");
+        }
+
+        position[0] += 8;
+
+        if (position[0] + length * 4 > channel.size()) {
+            throw new IOException("prepared reference is truncated");
+        }
+
+        Plane plane = Plane.map(channel, position[0], width, height);
+
+        position[0] += length * 4;
+
+        return plane;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("prepared reference is truncated");
+            }
+        }
+    }
+
+}
@@ -18,48 +18,127 @@
  */
 package org.pdiff;
 
-import java.awt.Color;
 import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import javax.imageio.ImageIO;
 
+/*
+ * An image held as packed non-premultiplied ARGB ints, one per pixel in row-major order, as returned by
+ * BufferedImage.getRGB.
+ */
 class RGBAImage {
 
     private final String name;
 
-    private final BufferedImage bufferedImage;
+    private final int[] pixels;
 
     private final int width;
 
     private final int height;
 
+    /*
+     * Reads an image file, decoding common PNG files directly and anything else with ImageIO.
+     */
     RGBAImage(File file) throws IOException {
-        super();
-        this.name = file.getName();
-        this.bufferedImage = ImageIO.read(file);
+        this(read(file));
+    }
 
-        if ((bufferedImage == null) || (bufferedImage.getType() != BufferedImage.TYPE_4BYTE_ABGR)) {
-            throw new IOException("failed to read image from file, unsupported image format");
-        }
+    /*
+     * Decodes an image file held in part of an array without copying it, decoding common PNG files directly and
+     * anything else with ImageIO.
+     */
+    RGBAImage(byte[] data, int offset, int length, String name) throws IOException {
+        this(read(data, offset, length, name));
+    }
+
+    /*
+     * Shares the pixels of another image.
+     */
+    private RGBAImage(RGBAImage image) {
+        super();
+        this.name = image.name;
+        this.width = image.width;
+        this.height = image.height;
+        this.pixels = image.pixels;
+    }
 
+    /*
+     * Unpacks an image of any type with a single bulk conversion to packed ARGB.
+     */
+    RGBAImage(BufferedImage bufferedImage, String name) {
+        super();
+        this.name = name;
         this.width = bufferedImage.getWidth();
         this.height = bufferedImage.getHeight();
+        this.pixels = bufferedImage.getRGB(0, 0, width, height, null, 0, width);
     }
 
     RGBAImage(int width, int height, String name) {
         super();
         this.width = width;
         this.height = height;
-        this.bufferedImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        this.pixels = new int[width * height];
         this.name = name;
     }
 
+    /*
+     * Copies the given rectangle of the image into a new image.
+     */
+    RGBAImage crop(int x, int y, int cropWidth, int cropHeight) {
+        RGBAImage image = new RGBAImage(cropWidth, cropHeight, name);
+
+        for (int row = 0; row < cropHeight; row++) {
+            System.arraycopy(pixels, (y + row) * width + x, image.pixels, row * cropWidth, cropWidth);
+        }
+
+        return image;
+    }
+
+    private static RGBAImage read(File file) throws IOException {
+        RGBAImage image = PngSource.read(file);
+
+        if (image != null) {
+            return image;
+        }
+
+        BufferedImage bufferedImage = ImageIO.read(file);
+
+        if (bufferedImage == null) {
+            throw new IOException("failed to read image from file, unsupported image format");
+        }
+
+        return new RGBAImage(bufferedImage, file.getName());
+    }
+
+    private static RGBAImage read(byte[] data, int offset, int length, String name) throws IOException {
+        RGBAImage image = PngSource.read(ByteBuffer.wrap(data, offset, length), name);
+
+        if (image != null) {
+            return image;
+        }
+
+        BufferedImage bufferedImage = ImageIO.read(new ByteArrayInputStream(data, offset, length));
+
+        if (bufferedImage == null) {
+            throw new IOException("failed to read image " + name + ", unsupported image format");
+        }
+
+        return new RGBAImage(bufferedImage, name);
+    }
+
     void dumpImage() {
         for (int y = 0; y < height; y++) {
             for (int x = 0; x < width; x++) {
-                System.out.printf("%9d", bufferedImage.getRGB(x, y));
+                System.out.printf("%9d", get(x, y));
             }
             System.out.printf("\n");
         }
@@ -96,12 +175,7 @@ class RGBAImage {
     }
 
     void set(int r, int g, int b, int a, int i) {
-        Color c = new Color(r, g, b, a);
-
-        int x = i % width;
-        int y = i / width;
-
-        bufferedImage.setRGB(x, y, c.getRGB());
+        pixels[i] = (a << 24) | (r << 16) | (g << 8) | b;
     }
 
     int getWidth() {
@@ -113,14 +187,18 @@ class RGBAImage {
     }
 
     int get(int x, int y) {
-        return bufferedImage.getRGB(x, y);
+        return pixels[x + y * width];
     }
 
     int get(int i) {
-        int x = i % width;
-        int y = i / width;
+        return pixels[i];
+    }
 
-        return bufferedImage.getRGB(x, y);
+    /*
+     * The packed ARGB pixels themselves, not a copy.
+     */
+    int[] getPixels() {
+        return pixels;
     }
 
     String getName() {
@@ -128,7 +206,18 @@ class RGBAImage {
     }
 
     void writeToFile() throws IOException {
-        ImageIO.write(bufferedImage, "PNG", new File(name + ".PNG"));
+        ImageIO.write(toBufferedImage(), "PNG", new File(name + ".PNG"));
+    }
+
+    /*
+     * Wraps the pixels, without copying them, in an image equivalent to TYPE_INT_ARGB.
+     */
+    BufferedImage toBufferedImage() {
+        DirectColorModel colorModel = (DirectColorModel) ColorModel.getRGBdefault();
+        WritableRaster raster = Raster.createPackedRaster(new DataBufferInt(pixels, pixels.length), width, height, width,
+                colorModel.getMasks(), null);
+
+        return new BufferedImage(colorModel, raster, false, null);
     }
 
 }
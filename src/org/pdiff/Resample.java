@@ -0,0 +1,232 @@
+/*
+ * Resample
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.pdiff;
+
+import java.util.Arrays;
+
+/*
+ * The down-sampling and scaling of images before they are compared, as with the --down-sample and --scale options of
+ * the C++ program. Down-sampling averages 2x2 blocks channel by channel, truncating, like the original DownSample of
+ * the C++ program; later versions of that program resample with FreeImage instead, whose results differ slightly.
+ */
+final class Resample {
+
+    /*
+     * Down-samples and scales the images as the parameters ask, returning them unchanged if they ask for neither.
+     */
+    static RGBAImage[] apply(RGBAImage imageA, RGBAImage imageB, PerceptualDiffParameters params) {
+        RGBAImage a = downSample(imageA, params.downSample);
+        RGBAImage b = downSample(imageB, params.downSample);
+
+        if (params.scale && (a.getWidth() != b.getWidth() || a.getHeight() != b.getHeight())) {
+            int width = Math.min(a.getWidth(), b.getWidth());
+            int height = Math.min(a.getHeight(), b.getHeight());
+
+            a = scale(a, width, height);
+            b = scale(b, width, height);
+        }
+
+        return new RGBAImage[] {a, b };
+    }
+
+    /*
+     * Returns the width and height of an image of the given size down-sampled the given number of times, and the
+     * number of times it is actually halved.
+     */
+    static int[] downSampledSize(int width, int height, int steps) {
+        int levels = 0;
+
+        while (levels < steps && width > 1 && height > 1) {
+            width /= 2;
+            height /= 2;
+            levels++;
+        }
+
+        return new int[] {width, height, levels };
+    }
+
+    /*
+     * Halves the image the given number of times, or until it is a single pixel wide or high. All the steps are done
+     * in one pass over the image, a row of the result at a time, through a pair of row buffers per intermediate step,
+     * so the intermediate images are never built.
+     */
+    static RGBAImage downSample(RGBAImage image, int steps) {
+        int[] size = downSampledSize(image.getWidth(), image.getHeight(), steps);
+        int levels = size[2];
+        int width = size[0];
+        int height = size[1];
+
+        if (levels == 0) {
+            return image;
+        }
+
+        RGBAImage result = new RGBAImage(width, height, image.getName());
+
+        int[][][] rows = new int[levels][2][];
+
+        for (int level = 1; level < levels; level++) {
+            rows[level][0] = new int[width << (levels - level)];
+            rows[level][1] = new int[width << (levels - level)];
+        }
+
+        for (int y = 0; y < height; y++) {
+            downSampleRow(image, levels, y, width, result.getPixels(), y * width, rows);
+        }
+
+        return result;
+    }
+
+    /*
+     * Computes row y, width pixels wide, of the image halved level times into dst[offset, offset + width).
+     */
+    private static void downSampleRow(RGBAImage image, int level, int y, int width, int[] dst, int offset,
+            int[][][] rows) {
+        int[] top;
+        int[] bottom;
+        int topOffset;
+        int bottomOffset;
+
+        if (level == 1) {
+            top = image.getPixels();
+            bottom = top;
+            topOffset = 2 * y * image.getWidth();
+            bottomOffset = topOffset + image.getWidth();
+        } else {
+            top = rows[level - 1][0];
+            bottom = rows[level - 1][1];
+            topOffset = 0;
+            bottomOffset = 0;
+
+            downSampleRow(image, level - 1, 2 * y, 2 * width, top, 0, rows);
+            downSampleRow(image, level - 1, 2 * y + 1, 2 * width, bottom, 0, rows);
+        }
+
+        for (int x = 0; x < width; x++) {
+            dst[offset + x] = average(top[topOffset + 2 * x], top[topOffset + 2 * x + 1], bottom[bottomOffset + 2 * x],
+                    bottom[bottomOffset + 2 * x + 1]);
+        }
+    }
+
+    /*
+     * The truncated mean of four packed pixels, channel by channel, summing two channels at a time in 16-bit lanes.
+     */
+    private static int average(int p0, int p1, int p2, int p3) {
+        int even = (p0 & 0x00FF00FF) + (p1 & 0x00FF00FF) + (p2 & 0x00FF00FF) + (p3 & 0x00FF00FF);
+        int odd = ((p0 >>> 8) & 0x00FF00FF) + ((p1 >>> 8) & 0x00FF00FF) + ((p2 >>> 8) & 0x00FF00FF)
+                + ((p3 >>> 8) & 0x00FF00FF);
+
+        return ((even >>> 2) & 0x00FF00FF) | (((odd >>> 2) & 0x00FF00FF) << 8);
+    }
+
+    /*
+     * Scales the image down to the given size, no larger than it, by averaging the source area under each pixel of the
+     * result, channel by channel, with fractional weights at the edges, rounding to the nearest level. It makes one
+     * pass over the image, accumulating the rows under each row of the result.
+     */
+    static RGBAImage scale(RGBAImage image, int width, int height) {
+        int sourceWidth = image.getWidth();
+        int sourceHeight = image.getHeight();
+
+        if (width == sourceWidth && height == sourceHeight) {
+            return image;
+        }
+
+        RGBAImage result = new RGBAImage(width, height, image.getName());
+        int[] pixels = image.getPixels();
+        int[] dst = result.getPixels();
+
+        double[][] weightsX = new double[width][];
+        int[] firstX = spans(sourceWidth, width, weightsX);
+        double[][] weightsY = new double[height][];
+        int[] firstY = spans(sourceHeight, height, weightsY);
+
+        // The four channels of the source row, weighted and summed over the rows under a row of the result
+        double[] sums = new double[4 * sourceWidth];
+
+        for (int y = 0; y < height; y++) {
+            Arrays.fill(sums, 0.0);
+
+            for (int j = 0; j < weightsY[y].length; j++) {
+                double weight = weightsY[y][j];
+                int row = (firstY[y] + j) * sourceWidth;
+
+                for (int x = 0; x < sourceWidth; x++) {
+                    int p = pixels[row + x];
+
+                    sums[4 * x] += weight * (p >>> 24);
+                    sums[4 * x + 1] += weight * ((p >> 16) & 0xFF);
+                    sums[4 * x + 2] += weight * ((p >> 8) & 0xFF);
+                    sums[4 * x + 3] += weight * (p & 0xFF);
+                }
+            }
+
+            for (int x = 0; x < width; x++) {
+                double a = 0.0;
+                double r = 0.0;
+                double g = 0.0;
+                double b = 0.0;
+
+                for (int i = 0; i < weightsX[x].length; i++) {
+                    double weight = weightsX[x][i];
+                    int s = 4 * (firstX[x] + i);
+
+                    a += weight * sums[s];
+                    r += weight * sums[s + 1];
+                    g += weight * sums[s + 2];
+                    b += weight * sums[s + 3];
+                }
+
+                dst[y * width + x] = level(a) << 24 | level(r) << 16 | level(g) << 8 | level(b);
+            }
+        }
+
+        return result;
+    }
+
+    private static int level(double value) {
+        return Math.min(Math.max((int) (value + 0.5), 0), 255);
+    }
+
+    /*
+     * For each of the size pixels that cover the sourceSize pixels, finds the first source pixel under it and the
+     * weights, summing to one, of the source pixels under it.
+     */
+    private static int[] spans(int sourceSize, int size, double[][] weights) {
+        int[] first = new int[size];
+        double ratio = (double) sourceSize / size;
+
+        for (int i = 0; i < size; i++) {
+            double start = i * ratio;
+            double end = (i + 1) * ratio;
+            int from = (int) start;
+            int to = Math.min((int) Math.ceil(end), sourceSize);
+
+            first[i] = from;
+            weights[i] = new double[to - from];
+
+            for (int s = from; s < to; s++) {
+                weights[i][s - from] = (Math.min(end, s + 1) - Math.max(start, s)) / ratio;
+            }
+        }
+
+        return first;
+    }
+
+    private Resample() {
+        // prevent instantiation
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Rolling Comparison
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.pdiff;
+
+/*
+ * Compares two images fed to it a row at a time, keeping the colour planes and pyramid levels in rolling row buffers.
+ *
+ * Level n of the pyramid needs two rows of level n - 1 either side of it, so a row can be tested once the rows
+ * 2 * (MAX_PYR_LEVELS - 1) below it have been pushed. Row y of every plane is kept at offset slot(y). Rows are summed in
+ * the same bands as MetricImpl, so a complete comparison gives exactly the same pixelsFailed and errorSum.
+ *
+ * If a failure limit is given the comparison is decided, and pushing can stop, as soon as that many pixels have
+ * failed.
+ */
+final class RollingComparison {
+
+    /*
+     * Rows held by each rolling buffer. Producing level n row y needs level n - 1 rows y - 2 to y + 2, and testing
+     * row y needs every level at row y, so no buffer is ever asked for a row more than 2 * MAX_PYR_LEVELS rows older
+     * than the newest row it holds.
+     */
+    private static final int WINDOW_ROWS = 32;
+
+    private final int width;
+
+    private final int height;
+
+    private final double[] linear;
+
+    private final double luminance;
+
+    private final boolean luminanceOnly;
+
+    private final ColourSpace colourSpace;
+
+    private final float[][] la = new float[LPyramid.MAX_PYR_LEVELS][];
+
+    private final float[][] lb = new float[LPyramid.MAX_PYR_LEVELS][];
+
+    // The number of rows of each level computed so far
+    private final int[] produced = new int[LPyramid.MAX_PYR_LEVELS];
+
+    private final double[] row;
+
+    private final PixelTest pixelTest;
+
+    private final PixelTest.Scratch scratch;
+
+    private final FailureMask failureMask;
+
+    private final long failureLimit;
+
+    private PixelTest.Sums sums;
+
+    private int tested;
+
+    private int pixelsFailed;
+
+    private double errorSum;
+
+    /*
+     * Prepares to compare two images of the given size, stopping once failureLimit pixels have failed.
+     */
+    RollingComparison(int width, int height, PerceptualDiffParameters params, long failureLimit) {
+        this.width = width;
+        this.height = height;
+        this.failureMask = new FailureMask(width, height, params.recordErrors);
+        this.failureLimit = failureLimit;
+
+        linear = ColourSpace.linearTable(params.gamma);
+        luminance = params.luminance;
+
+        luminanceOnly = params.luminanceOnly;
+        colourSpace = new ColourSpace(WINDOW_ROWS * width, !luminanceOnly);
+
+        la[0] = colourSpace.aLum;
+        lb[0] = colourSpace.bLum;
+
+        for (int level = 1; level < LPyramid.MAX_PYR_LEVELS; level++) {
+            la[level] = new float[WINDOW_ROWS * width];
+            lb[level] = new float[WINDOW_ROWS * width];
+        }
+
+        row = new double[width + 4];
+        pixelTest = new PixelTest(params, width);
+        scratch = new PixelTest.Scratch(width);
+    }
+
+    private int slot(int y) {
+        return (y % WINDOW_ROWS) * width;
+    }
+
+    /*
+     * Converts the next row of both images, which start at pixelsA[fromA] and pixelsB[fromB], and then computes and
+     * tests every row that has become available.
+     */
+    void push(int[] pixelsA, int fromA, int[] pixelsB, int fromB) {
+        int y = produced[0]++;
+
+        if (luminanceOnly) {
+            ColourSpace.convert(pixelsA, fromA, linear, luminance, colourSpace.aLum, slot(y), width);
+            ColourSpace.convert(pixelsB, fromB, linear, luminance, colourSpace.bLum, slot(y), width);
+        } else {
+            ColourSpace.convert(pixelsA, fromA, linear, luminance, colourSpace.aLum, colourSpace.aA, colourSpace.aB,
+                    slot(y), width);
+            ColourSpace.convert(pixelsB, fromB, linear, luminance, colourSpace.bLum, colourSpace.bA, colourSpace.bB,
+                    slot(y), width);
+        }
+
+        for (int level = 1; level < LPyramid.MAX_PYR_LEVELS; level++) {
+            while (produced[level] < height && produced[level - 1] >= Math.min(produced[level] + 3, height)) {
+                blur(level, produced[level]++);
+            }
+        }
+
+        while (tested < produced[LPyramid.MAX_PYR_LEVELS - 1] && !isDecided()) {
+            test(tested++);
+        }
+    }
+
+    private void blur(int level, int y) {
+        if (width * height <= 1) {
+            System.arraycopy(la[level - 1], slot(y), la[level], slot(y), width);
+            System.arraycopy(lb[level - 1], slot(y), lb[level], slot(y), width);
+            return;
+        }
+
+        int r0 = slot(LPyramid.mirror(y - 2, height));
+        int r1 = slot(LPyramid.mirror(y - 1, height));
+        int r2 = slot(y);
+        int r3 = slot(LPyramid.mirror(y + 1, height));
+        int r4 = slot(LPyramid.mirror(y + 2, height));
+
+        LPyramid.blurRow(la[level], r2, la[level - 1], r0, r1, r2, r3, r4, width, row);
+        LPyramid.blurRow(lb[level], r2, lb[level - 1], r0, r1, r2, r3, r4, width, row);
+    }
+
+    /*
+     * Tests row y, summing the rows of each band separately and then adding the band totals in order.
+     */
+    private void test(int y) {
+        if (y % RowBands.BAND_HEIGHT == 0) {
+            sums = new PixelTest.Sums();
+        }
+
+        pixelTest.testRow(la, lb, slot(y), colourSpace, slot(y), width, failureMask, 0, y, sums, scratch);
+
+        if ((y + 1) % RowBands.BAND_HEIGHT == 0 || y == height - 1) {
+            pixelsFailed += sums.pixelsFailed;
+            errorSum += sums.errorSum;
+            sums = null;
+        }
+    }
+
+    /*
+     * True once enough pixels have failed that the rest of the image cannot change the verdict.
+     */
+    boolean isDecided() {
+        return pixelsFailed + (sums == null ? 0 : sums.pixelsFailed) >= failureLimit;
+    }
+
+    /*
+     * True if every row has been tested.
+     */
+    boolean isComplete() {
+        return tested == height;
+    }
+
+    int getPixelsFailed() {
+        return pixelsFailed + (sums == null ? 0 : sums.pixelsFailed);
+    }
+
+    double getErrorSum() {
+        return errorSum + (sums == null ? 0.0 : sums.errorSum);
+    }
+
+    FailureMask getFailureMask() {
+        return failureMask;
+    }
+
+    long getPixelsExamined() {
+        return (long) tested * width;
+    }
+
+}
@@ -0,0 +1,92 @@
+/*
+ * Row Bands
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.pdiff;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/*
+ * Splits an image into bands of BAND_HEIGHT rows and runs a task over each band, either in order on the calling
+ * thread or concurrently on a ForkJoinPool.
+ *
+ * The band boundaries depend only on the image height, never on the pool, so any per-band partial results that are
+ * reduced in band index order give the same answer whether or not the work was done in parallel.
+ */
+final class RowBands {
+
+    static final int BAND_HEIGHT = 32;
+
+    interface Band {
+        void run(int band, int y0, int y1);
+    }
+
+    static int count(int height) {
+        return (height + BAND_HEIGHT - 1) / BAND_HEIGHT;
+    }
+
+    /*
+     * Runs the task over every band of rows in [0, height). A null pool means run serially on the calling thread.
+     */
+    static void run(ForkJoinPool pool, int height, Band task) {
+        int bands = count(height);
+
+        if (pool == null || bands <= 1) {
+            for (int band = 0; band < bands; band++) {
+                task.run(band, band * BAND_HEIGHT, Math.min(height, (band + 1) * BAND_HEIGHT));
+            }
+
+            return;
+        }
+
+        final List<RecursiveAction> actions = new ArrayList<>(bands);
+
+        for (int band = 0; band < bands; band++) {
+            final int index = band;
+            final int y0 = band * BAND_HEIGHT;
+            final int y1 = Math.min(height, (band + 1) * BAND_HEIGHT);
+
+            actions.add(new RecursiveAction() {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected void compute() {
+                    task.run(index, y0, y1);
+                }
+            });
+        }
+
+        if (ForkJoinTask.inForkJoinPool() && ForkJoinTask.getPool() == pool) {
+            ForkJoinTask.invokeAll(actions);
+        } else {
+            pool.invoke(new RecursiveAction() {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected void compute() {
+                    invokeAll(actions);
+                }
+            });
+        }
+    }
+
+    private RowBands() {
+        // prevent instantiation
+    }
+}
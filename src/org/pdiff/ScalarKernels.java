@@ -0,0 +1,110 @@
+/*
+ * Scalar Kernels
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.pdiff;
+
+/*
+ * The scalar backend, which is always available. Its loops take a starting pixel so that the SIMD backend can use
+ * them for the pixels left over after its last full vector.
+ */
+final class ScalarKernels extends Kernels {
+
+    @Override
+    void blurColumns(float[] b, int r0, int r1, int r2, int r3, int r4, int width, double[] row) {
+        blurColumns(b, r0, r1, r2, r3, r4, 0, width, row);
+    }
+
+    static void blurColumns(float[] b, int r0, int r1, int r2, int r3, int r4, int from, int width, double[] row) {
+        for (int x = from; x < width; x++) {
+            row[x + 2] = LPyramid.K0 * (b[r0 + x] + b[r4 + x]) + LPyramid.K1 * (b[r1 + x] + b[r3 + x])
+                    + LPyramid.K2 * b[r2 + x];
+        }
+    }
+
+    @Override
+    void blurRow(double[] row, float[] a, int dst, int width) {
+        blurRow(row, a, dst, 0, width);
+    }
+
+    static void blurRow(double[] row, float[] a, int dst, int from, int width) {
+        for (int x = from; x < width; x++) {
+            a[dst + x] = (float) (LPyramid.K0 * (row[x] + row[x + 4]) + LPyramid.K1 * (row[x + 1] + row[x + 3])
+                    + LPyramid.K2 * row[x + 2]);
+        }
+    }
+
+    @Override
+    void contrast(float[][] la, float[][] lb, int offset, int w, int adaptationLevel, double[] adapt,
+            double[][] contrast, double[] delta) {
+        contrast(la, lb, offset, 0, w, adaptationLevel, adapt, contrast, delta);
+    }
+
+    /*
+     * Runs a level at a time across the row, so that each loop reads a few rows with their arrays loaded once.
+     */
+    static void contrast(float[][] la, float[][] lb, int offset, int from, int w, int adaptationLevel, double[] adapt,
+            double[][] contrast, double[] delta) {
+        float[] adaptA = la[adaptationLevel];
+        float[] adaptB = lb[adaptationLevel];
+
+        for (int x = from; x < w; x++) {
+            int index = offset + x;
+
+            adapt[x] = Math.max(((double) adaptA[index] + adaptB[index]) * 0.5, 1e-5);
+        }
+
+        for (int i = 0; i < LPyramid.MAX_PYR_LEVELS - 2; i++) {
+            float[] a0 = la[i];
+            float[] a1 = la[i + 1];
+            float[] a2 = la[i + 2];
+            float[] b0 = lb[i];
+            float[] b1 = lb[i + 1];
+            float[] b2 = lb[i + 2];
+            double[] c = contrast[i];
+
+            for (int x = from; x < w; x++) {
+                int index = offset + x;
+
+                double n1 = Math.abs((double) a0[index] - a1[index]);
+                double n2 = Math.abs((double) b0[index] - b1[index]);
+
+                double numerator = Math.max(n1, n2);
+
+                double d1 = Math.abs(a2[index]);
+                double d2 = Math.abs(b2[index]);
+
+                double denominator = Math.max(Math.max(d1, d2), 1e-5);
+
+                c[x] = numerator / denominator;
+            }
+        }
+
+        float[] a0 = la[0];
+        float[] b0 = lb[0];
+
+        for (int x = from; x < w; x++) {
+            int index = offset + x;
+
+            delta[x] = Math.abs((double) a0[index] - b0[index]);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "scalar kernels";
+    }
+
+}
@@ -0,0 +1,36 @@
+/*
+ * Scanline Source
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.pdiff;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/*
+ * Supplies the rows of an image from top to bottom as packed ARGB ints, in the same form as RGBAImage.getPixels.
+ */
+interface ScanlineSource extends Closeable {
+
+    int getWidth();
+
+    int getHeight();
+
+    /*
+     * Reads the next row into dst[0, width).
+     */
+    void nextRow(int[] dst) throws IOException;
+
+}
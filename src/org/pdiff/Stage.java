@@ -0,0 +1,38 @@
+/*
+ * Stage
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.pdiff;
+
+/**
+ * The stages of a comparison that are timed and reported to ComparisonListeners.
+ * @author Paul Parlett
+ */
+public enum Stage {
+    /** Waiting to be admitted by a scheduler; not part of the compute time. */
+    QUEUE,
+    /** Reading and decoding the image files. */
+    DECODE,
+    /** Down-sampling and scaling the images. */
+    RESAMPLE,
+    /** Converting the pixels to luminance and Lab chroma. */
+    COLOUR,
+    /** Building the Laplacian pyramids. */
+    PYRAMID,
+    /** The per-pixel perceptual test. */
+    TEST,
+    /** Rendering and writing the difference image. */
+    DIFFERENCE_WRITE
+}
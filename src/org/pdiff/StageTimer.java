@@ -0,0 +1,144 @@
+/*
+ * Stage Timer
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.pdiff;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import org.pdiff.Metric.ComparisonResult;
+
+/*
+ * Times the stages of one comparison, notifies the listeners registered when it was created and fills in the timings
+ * of the result.
+ *
+ * A stage is either started and stopped once, or, when it is interleaved with another stage, resumed and paused many
+ * times and then reported once. Each start and stop, or resume and pause, must happen on the same thread, although
+ * different stages may run on different threads one after another.
+ */
+final class StageTimer {
+
+    private static final com.sun.management.ThreadMXBean THREADS = threads();
+
+    private final ComparisonListener[] listeners = Instrumentation.listeners();
+
+    private final StageTimings timings = new StageTimings();
+
+    private final long[] startNanos = new long[Stage.values().length];
+
+    private final long[] startBytes = new long[Stage.values().length];
+
+    private final long[] pausedNanos = new long[Stage.values().length];
+
+    private int width;
+
+    private int height;
+
+    private static com.sun.management.ThreadMXBean threads() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean hotSpotThreads = (com.sun.management.ThreadMXBean) threads;
+
+            if (hotSpotThreads.isThreadAllocatedMemorySupported() && hotSpotThreads.isThreadAllocatedMemoryEnabled()) {
+                return hotSpotThreads;
+            }
+        }
+
+        return null;
+    }
+
+    private static long allocatedBytes() {
+        return THREADS == null ? -1 : THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    void size(int imageWidth, int imageHeight) {
+        width = imageWidth;
+        height = imageHeight;
+    }
+
+    void start(Stage stage) {
+        for (ComparisonListener listener : listeners) {
+            listener.stageStarted(stage, width, height);
+        }
+
+        resume(stage);
+    }
+
+    void stop(Stage stage) {
+        long nanos = pause(stage);
+
+        for (ComparisonListener listener : listeners) {
+            listener.stageCompleted(stage, width, height, nanos);
+        }
+    }
+
+    void resume(Stage stage) {
+        startBytes[stage.ordinal()] = allocatedBytes();
+        startNanos[stage.ordinal()] = System.nanoTime();
+    }
+
+    /*
+     * Adds the time since the stage was resumed to its timings and returns it.
+     */
+    long pause(Stage stage) {
+        long nanos = System.nanoTime() - startNanos[stage.ordinal()];
+        long bytes = startBytes[stage.ordinal()] < 0 ? -1 : allocatedBytes() - startBytes[stage.ordinal()];
+
+        timings.add(stage, nanos, bytes);
+        pausedNanos[stage.ordinal()] += nanos;
+
+        return nanos;
+    }
+
+    /*
+     * Adds a stage that was timed elsewhere, e.g. across threads, and reports it.
+     */
+    void record(Stage stage, long nanos) {
+        timings.add(stage, nanos, -1);
+
+        for (ComparisonListener listener : listeners) {
+            listener.stageCompleted(stage, width, height, nanos);
+        }
+    }
+
+    /*
+     * Reports the total time of a stage that was resumed and paused, if it ran at all.
+     */
+    void report(Stage stage) {
+        long nanos = pausedNanos[stage.ordinal()];
+
+        if (nanos > 0) {
+            for (ComparisonListener listener : listeners) {
+                listener.stageCompleted(stage, width, height, nanos);
+            }
+        }
+    }
+
+    /*
+     * Gives the result the timings of the stages and notifies the listeners that the comparison is complete.
+     */
+    ComparisonResult finish(ComparisonResult result) {
+        result.timings = timings;
+
+        for (ComparisonListener listener : listeners) {
+            listener.comparisonCompleted(width, height, result.passed, result.pixelsFailed, timings);
+        }
+
+        return result;
+    }
+
+}
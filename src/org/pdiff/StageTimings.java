@@ -0,0 +1,84 @@
+/*
+ * Stage Timings
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.pdiff;
+
+import java.util.Locale;
+
+/**
+ * The time spent in each stage of a comparison and the bytes allocated while the stages ran.
+ * <p>
+ * Allocation is measured per thread, on the threads that ran the stages, so with a ForkJoinPool the allocations of
+ * the pool's workers are not included. It is -1 if the JVM cannot measure thread allocation.
+ * @author Paul Parlett
+ */
+public final class StageTimings {
+
+    private final long[] nanos = new long[Stage.values().length];
+
+    private long bytesAllocated = -1;
+
+    void add(Stage stage, long stageNanos, long stageBytes) {
+        nanos[stage.ordinal()] += stageNanos;
+
+        if (stageBytes >= 0) {
+            bytesAllocated = Math.max(bytesAllocated, 0) + stageBytes;
+        }
+    }
+
+    /**
+     * @param stage The stage
+     * @return The nanoseconds spent in the stage, zero if it did not run
+     */
+    public long getNanos(Stage stage) {
+        return nanos[stage.ordinal()];
+    }
+
+    /**
+     * @return The nanoseconds spent in all stages except waiting in the queue, i.e. the compute time
+     */
+    public long getTotalNanos() {
+        long total = 0;
+
+        for (Stage stage : Stage.values()) {
+            if (stage != Stage.QUEUE) {
+                total += nanos[stage.ordinal()];
+            }
+        }
+
+        return total;
+    }
+
+    /**
+     * @return The bytes allocated by the threads that ran the stages, or -1 if not measured
+     */
+    public long getBytesAllocated() {
+        return bytesAllocated;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+
+        for (Stage stage : Stage.values()) {
+            sb.append(stage.name().toLowerCase(Locale.ROOT)).append('=')
+                    .append(String.format(Locale.ROOT, "%.3fms", nanos[stage.ordinal()] / 1e6)).append(' ');
+        }
+
+        return sb.append("bytesAllocated=").append(bytesAllocated).toString();
+    }
+
+}
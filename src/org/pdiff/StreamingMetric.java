@@ -0,0 +1,115 @@
+/*
+ * Streaming Metric
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.pdiff;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.pdiff.Metric.ComparisonResult;
+
+/**
+ * Compares two image files with Yee's method while holding only a window of rows in memory.
+ * <p>
+ * The images are read a row at a time, or a band of rows for formats other than common PNGs, and each row is pushed
+ * through the colour conversion and the pyramid blurs into rolling row buffers. Level n of the pyramid needs two rows
+ * of level n - 1 either side of it, so a row can be tested once the rows 2 * (MAX_PYR_LEVELS - 1) below it have been
+ * read. Peak memory is proportional to the image width rather than its area, and the result is identical to that of
+ * MetricImpl for the same parameters, including the verdict-only mode, in which reading stops once the images are known
+ * to differ. The decimated pyramid mode, down-sampling, scaling and the difference image are not supported. Since
+ * reading the rows is interleaved with testing them, the decode and test stages are each reported to
+ * ComparisonListeners once, with their total time, when the comparison ends; the colour conversion and pyramids are
+ * timed as part of the test.
+ * @author Paul Parlett
+ */
+public final class StreamingMetric {
+
+    /**
+     * Compares two image files.
+     * @param fileA The first image to compare
+     * @param fileB The second image to compare
+     * @param params The parameters for the comparison algorithm
+     * @return The result of the comparison as a ComparisonResult
+     * @throws IOException Thrown if there is an error reading either image file
+     */
+    public ComparisonResult compare(File fileA, File fileB, PerceptualDiffParameters params) throws IOException {
+        try (ScanlineSource sourceA = open(fileA); ScanlineSource sourceB = open(fileB)) {
+            return compare(sourceA, sourceB, params);
+        }
+    }
+
+    /*
+     * Reads common PNG files a row at a time directly, and anything else in bands through ImageIO.
+     */
+    private static ScanlineSource open(File file) throws IOException {
+        ScanlineSource source = PngSource.open(file);
+
+        return source != null ? source : new ImageReaderSource(file);
+    }
+
+    ComparisonResult compare(ScanlineSource sourceA, ScanlineSource sourceB, PerceptualDiffParameters params)
+            throws IOException {
+        if (params.decimatedPyramid) {
+            throw new IllegalArgumentException("the streaming metric does not support decimated pyramids");
+        }
+
+        if (params.downSample > 0 || params.scale) {
+            throw new IllegalArgumentException("the streaming metric does not support down-sampling or scaling");
+        }
+
+        StageTimer timer = new StageTimer();
+
+        if ((sourceA.getWidth() != sourceB.getWidth()) || (sourceA.getHeight() != sourceB.getHeight())) {
+            return timer.finish(new ComparisonResult(false, "Image dimensions do not match"));
+        }
+
+        int w = sourceA.getWidth();
+        int h = sourceA.getHeight();
+
+        timer.size(w, h);
+
+        RollingComparison comparison = new RollingComparison(w, h, params, MetricImpl.failureLimit(params));
+
+        int[] rowA = new int[w];
+        int[] rowB = new int[w];
+
+        boolean identical = true;
+
+        for (int y = 0; y < h && !comparison.isDecided(); y++) {
+            timer.resume(Stage.DECODE);
+            sourceA.nextRow(rowA);
+            sourceB.nextRow(rowB);
+            timer.pause(Stage.DECODE);
+
+            identical &= Arrays.equals(rowA, rowB);
+
+            timer.resume(Stage.TEST);
+            comparison.push(rowA, 0, rowB, 0);
+            timer.pause(Stage.TEST);
+        }
+
+        timer.report(Stage.DECODE);
+        timer.report(Stage.TEST);
+
+        if (identical && comparison.isComplete()) {
+            return timer.finish(new ComparisonResult(true, "Images are binary identical"));
+        }
+
+        return timer.finish(MetricImpl.result(comparison, params, null));
+    }
+
+}
@@ -0,0 +1,127 @@
+package org.pdiff;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class AdmissionSchedulerTest {
+
+    @Test
+    public void pixelsFromHeader() {
+        assertEquals(393 * 501, AdmissionScheduler.pixels(new File("data/fish1.png")));
+        assertEquals(640 * 480, AdmissionScheduler.pixels(new File("data/alpha1.png")));
+        assertEquals(-1, AdmissionScheduler.pixels(new File("data/missing.png")));
+    }
+
+    @Test
+    public void footprint() {
+        PerceptualDiffParameters params = new PerceptualDiffParameters();
+
+        assertEquals(72 * 1000, AdmissionScheduler.footprint(1000, 1000, params));
+
+        params.decimatedPyramid = true;
+
+        assertTrue(AdmissionScheduler.footprint(1000, 1000, params) < 40 * 1000);
+
+        params.decimatedPyramid = false;
+        params.downSample = 1;
+
+        assertEquals(8 * 1000 + 72 * 250, AdmissionScheduler.footprint(1000, 1000, params));
+    }
+
+    @Test
+    public void smallJobsOvertakeLargeOne() {
+        AdmissionScheduler scheduler = new AdmissionScheduler(100, 10);
+        List<String> started = new ArrayList<>();
+
+        scheduler.submit(60, wait -> started.add("a"));
+        scheduler.submit(80, wait -> started.add("large"));
+        scheduler.submit(30, wait -> started.add("b"));
+        scheduler.submit(30, wait -> started.add("c"));
+
+        // The large job does not fit beside the first, but the next small one does
+        assertEquals(Arrays.asList("a", "b"), started);
+        assertEquals(90, scheduler.getUsedBytes());
+
+        scheduler.release(60);
+
+        assertEquals(Arrays.asList("a", "b", "c"), started);
+
+        scheduler.release(30);
+        scheduler.release(30);
+
+        assertEquals(Arrays.asList("a", "b", "c", "large"), started);
+    }
+
+    @Test
+    public void largeJobIsNotStarved() {
+        AdmissionScheduler scheduler = new AdmissionScheduler(100, 10);
+        List<String> started = new ArrayList<>();
+
+        scheduler.submit(50, wait -> started.add("first"));
+        scheduler.submit(80, wait -> started.add("large"));
+
+        // A stream of small jobs, each of which finishes before the next arrives
+        for (int i = 0; i < 2 * AdmissionScheduler.MAX_BYPASSED; i++) {
+            int before = started.size();
+
+            scheduler.submit(10, wait -> started.add("small"));
+
+            if (started.size() > before) {
+                scheduler.release(10);
+            }
+        }
+
+        // Once the large job had been overtaken often enough, the small jobs behind it waited for it
+        assertEquals(AdmissionScheduler.MAX_BYPASSED + 1, started.size());
+
+        scheduler.release(50);
+
+        // The large job is followed by the two small ones that fit beside it
+        assertEquals("large", started.get(AdmissionScheduler.MAX_BYPASSED + 1));
+        assertEquals(AdmissionScheduler.MAX_BYPASSED + 4, started.size());
+    }
+
+    @Test
+    public void oversizedJobRunsAlone() {
+        AdmissionScheduler scheduler = new AdmissionScheduler(100, 10);
+        List<String> started = new ArrayList<>();
+
+        scheduler.submit(500, wait -> started.add("huge"));
+        scheduler.submit(10, wait -> started.add("small"));
+
+        assertEquals(Arrays.asList("huge"), started);
+
+        scheduler.release(500);
+
+        assertEquals(Arrays.asList("huge", "small"), started);
+    }
+
+    @Test
+    public void countLimit() throws InterruptedException {
+        AdmissionScheduler scheduler = new AdmissionScheduler(Long.MAX_VALUE, 2);
+        long[] waits = new long[3];
+
+        for (int i = 0; i < 3; i++) {
+            int index = i;
+            scheduler.submit(1, wait -> waits[index] = wait + 1);
+        }
+
+        assertEquals(0, waits[2]);
+
+        scheduler.release(1);
+
+        assertTrue(waits[2] > 0);
+
+        scheduler.release(1);
+        scheduler.release(1);
+        scheduler.awaitIdle();
+    }
+
+}
@@ -0,0 +1,119 @@
+package org.pdiff;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+public class BatchRunnerTest {
+
+    private static List<BatchRunner.Pair> pairs() {
+        return Arrays.asList(new BatchRunner.Pair(new File("data/alpha1.png"), new File("data/alpha2.png"), null),
+                new BatchRunner.Pair(new File("data/fish1.png"), new File("data/fish2.png"), null),
+                new BatchRunner.Pair(new File("data/Aqsis_vase_ref.png"), new File("data/Aqsis_vase.png"), null),
+                new BatchRunner.Pair(new File("data/fish1.png"), new File("data/missing.png"), null));
+    }
+
+    @Test
+    public void runJsonLines() throws IOException, InterruptedException {
+        ForkJoinPool pool = new ForkJoinPool(2);
+
+        try {
+            StringWriter out = new StringWriter();
+
+            int failures = new BatchRunner(2, pool, 2).run(pairs(), new PerceptualDiffParameters(), out,
+                    BatchRunner.Format.JSON_LINES);
+
+            String results = out.toString();
+
+            assertEquals(4, failures);
+            assertEquals(4, results.split("\n").length);
+            assertTrue(results.contains("\"fileB\":\"data/alpha2.png\",\"status\":\"FAIL\",\"pixelsFailed\":1278,"));
+            assertTrue(results.contains("\"fileB\":\"data/fish2.png\",\"status\":\"FAIL\",\"pixelsFailed\":20109,"));
+            assertTrue(results.contains("\"fileB\":\"data/Aqsis_vase.png\",\"status\":\"FAIL\",\"pixelsFailed\":104,"));
+            assertTrue(results.contains("\"fileB\":\"data/missing.png\",\"status\":\"ERROR\","));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void runCsvFromManifest() throws IOException, InterruptedException {
+        File manifest = File.createTempFile("pdiff", ".txt");
+        File difference = File.createTempFile("pdiff", ".png");
+
+        try {
+            String data = new File("data").getAbsolutePath();
+
+            Files.write(manifest.toPath(), Arrays.asList("# first\tsecond\tdifference",
+                    data + "/alpha1.png\t" + data + "/alpha2.png\t" + difference.getName(),
+                    data + "/fish1.png\t" + data + "/fish1.png"), StandardCharsets.UTF_8);
+
+            List<BatchRunner.Pair> pairs = BatchRunner.readManifest(manifest);
+
+            assertEquals(2, pairs.size());
+
+            StringWriter out = new StringWriter();
+
+            int failures = new BatchRunner(1, ForkJoinPool.commonPool(), 1).run(pairs, new PerceptualDiffParameters(),
+                    out, BatchRunner.Format.CSV);
+
+            String[] lines = out.toString().split("\n");
+
+            assertEquals(1, failures);
+            assertEquals("fileA,fileB,status,pixelsFailed,errorSum,message,queueNanos,computeNanos", lines[0]);
+            assertTrue(lines[1].contains(",FAIL,1278,"));
+            assertTrue(lines[2].contains(",PASS,-1,"));
+            assertEquals(1278, countRed(new RGBAImage(difference)));
+        } finally {
+            manifest.delete();
+            difference.delete();
+        }
+    }
+
+    @Test
+    public void runWithinMemoryBudget() throws IOException, InterruptedException {
+        ForkJoinPool pool = new ForkJoinPool(2);
+
+        try {
+            StringWriter out = new StringWriter();
+
+            // Room for one pair at a time; the missing image needs no memory
+            int failures = new BatchRunner(2, pool, 4, 30000000).run(pairs(), new PerceptualDiffParameters(), out,
+                    BatchRunner.Format.JSON_LINES);
+
+            String results = out.toString();
+
+            assertEquals(4, failures);
+            assertEquals(4, results.split("\n").length);
+            assertTrue(results.contains("\"fileB\":\"data/alpha2.png\",\"status\":\"FAIL\",\"pixelsFailed\":1278,"));
+            assertTrue(results.contains("\"fileB\":\"data/fish2.png\",\"status\":\"FAIL\",\"pixelsFailed\":20109,"));
+            assertTrue(results.contains("\"queueNanos\":"));
+            assertTrue(results.contains("\"computeNanos\":"));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static int countRed(RGBAImage image) {
+        int red = 0;
+
+        for (int pixel : image.getPixels()) {
+            if ((pixel & 0xFFFFFF) == 0xFF0000) {
+                red++;
+            }
+        }
+
+        return red;
+    }
+
+}
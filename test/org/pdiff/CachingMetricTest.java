@@ -0,0 +1,175 @@
+package org.pdiff;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.pdiff.Metric.ComparisonResult;
+
+public class CachingMetricTest {
+
+    private static final class CountingMetric implements Metric {
+        final AtomicInteger comparisons = new AtomicInteger();
+
+        @Override
+        public ComparisonResult yeeCompare(RGBAImage imageA, RGBAImage imageB, PerceptualDiffParameters params,
+                RGBAImage imageDifference) {
+            comparisons.incrementAndGet();
+
+            return new MetricImpl().yeeCompare(imageA, imageB, params, imageDifference);
+        }
+    }
+
+    private static void assertSameResult(ComparisonResult expected, ComparisonResult actual) {
+        assertEquals(expected.passed, actual.passed);
+        assertEquals(expected.pixelsFailed, actual.pixelsFailed);
+        assertEquals(expected.errorSum, actual.errorSum, 0.0);
+        assertEquals(expected.reason, actual.reason);
+        assertEquals(expected.failureMask.cardinality(), actual.failureMask.cardinality());
+    }
+
+    @Test
+    public void hitsInMemory() throws IOException {
+        RGBAImage imageA = new RGBAImage(new File("data/alpha1.png"));
+        RGBAImage imageB = new RGBAImage(new File("data/alpha2.png"));
+        PerceptualDiffParameters params = new PerceptualDiffParameters();
+
+        CountingMetric counting = new CountingMetric();
+        CachingMetric cache = new CachingMetric(counting, 1 << 20, null);
+
+        RGBAImage differenceMiss = new RGBAImage(imageA.getWidth(), imageA.getHeight(), "miss");
+        RGBAImage differenceHit = new RGBAImage(imageA.getWidth(), imageA.getHeight(), "hit");
+
+        ComparisonResult miss = cache.yeeCompare(imageA, imageB, params, differenceMiss);
+        ComparisonResult hit = cache.yeeCompare(imageA, new RGBAImage(new File("data/alpha2.png")), params,
+                differenceHit);
+
+        assertEquals(1278, miss.pixelsFailed);
+        assertSameResult(miss, hit);
+        assertArrayEquals(differenceMiss.getPixels(), differenceHit.getPixels());
+        assertEquals(1, counting.comparisons.get());
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.getMemoryHits());
+
+        params.thresholdPixels = 2000;
+
+        ComparisonResult other = cache.yeeCompare(imageA, imageB, params, null);
+
+        assertEquals(true, other.passed);
+        assertEquals(2, counting.comparisons.get());
+    }
+
+    @Test
+    public void hitsOnDisk() throws IOException {
+        File directory = Files.createTempDirectory("pdiff-cache").toFile();
+
+        try {
+            RGBAImage imageA = new RGBAImage(new File("data/fish1.png"));
+            RGBAImage imageB = new RGBAImage(new File("data/fish2.png"));
+            PerceptualDiffParameters params = new PerceptualDiffParameters();
+            params.recordErrors = true;
+
+            ComparisonResult miss = new CachingMetric(new MetricImpl(), 1 << 20, directory).yeeCompare(imageA,
+                    imageB, params, null);
+
+            CountingMetric counting = new CountingMetric();
+            CachingMetric cache = new CachingMetric(counting, 1 << 20, directory);
+
+            ComparisonResult hit = cache.yeeCompare(imageA, imageB, params, null);
+
+            assertEquals(20109, hit.pixelsFailed);
+            assertSameResult(miss, hit);
+            assertArrayEquals(miss.failureMask.toHeatMap().getRGB(0, 0, 393, 501, null, 0, 393),
+                    hit.failureMask.toHeatMap().getRGB(0, 0, 393, 501, null, 0, 393));
+            assertEquals(0, counting.comparisons.get());
+            assertEquals(1, cache.getDiskHits());
+
+            // Now in memory too
+            cache.yeeCompare(imageA, imageB, params, null);
+
+            assertEquals(1, cache.getMemoryHits());
+        } finally {
+            for (File file : directory.listFiles()) {
+                file.delete();
+            }
+
+            directory.delete();
+        }
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() throws IOException {
+        RGBAImage alphaA = new RGBAImage(new File("data/alpha1.png"));
+        RGBAImage alphaB = new RGBAImage(new File("data/alpha2.png"));
+        RGBAImage vaseA = new RGBAImage(new File("data/Aqsis_vase_ref.png"));
+        RGBAImage vaseB = new RGBAImage(new File("data/Aqsis_vase.png"));
+        PerceptualDiffParameters params = new PerceptualDiffParameters();
+
+        CountingMetric counting = new CountingMetric();
+        CachingMetric cache = new CachingMetric(counting, 1, null);
+
+        cache.yeeCompare(alphaA, alphaB, params, null);
+        cache.yeeCompare(vaseA, vaseB, params, null);
+        cache.yeeCompare(alphaA, alphaB, params, null);
+
+        assertEquals(3, counting.comparisons.get());
+        assertEquals(3, cache.getEvictions());
+        assertEquals(0, cache.getBytes());
+    }
+
+    @Test
+    public void checksDownSampledDifferenceSize() throws IOException {
+        RGBAImage imageA = new RGBAImage(new File("data/alpha1.png"));
+        RGBAImage imageB = new RGBAImage(new File("data/alpha2.png"));
+        PerceptualDiffParameters params = new PerceptualDiffParameters();
+        params.downSample = 1;
+
+        CountingMetric counting = new CountingMetric();
+        CachingMetric cache = new CachingMetric(counting, 1 << 20, null);
+
+        int w = imageA.getWidth() / 2;
+        int h = imageA.getHeight() / 2;
+
+        RGBAImage differenceMiss = new RGBAImage(w, h, "miss");
+        RGBAImage differenceHit = new RGBAImage(w, h, "hit");
+
+        ComparisonResult miss = cache.yeeCompare(imageA, imageB, params, differenceMiss);
+        ComparisonResult hit = cache.yeeCompare(imageA, imageB, params, differenceHit);
+
+        assertSameResult(miss, hit);
+        assertArrayEquals(differenceMiss.getPixels(), differenceHit.getPixels());
+        assertEquals(1, counting.comparisons.get());
+
+        // A full-size difference image is rejected on a hit, as it is on a miss
+        try {
+            cache.yeeCompare(imageA, imageB, params, new RGBAImage(imageA.getWidth(), imageA.getHeight(), "full"));
+
+            fail("expected an IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        assertEquals(1, counting.comparisons.get());
+    }
+
+    @Test
+    public void passesDifferentSizesThrough() throws IOException {
+        CountingMetric counting = new CountingMetric();
+        CachingMetric cache = new CachingMetric(counting, 1 << 20, null);
+
+        ComparisonResult result = cache.yeeCompare(new RGBAImage(new File("data/alpha1.png")),
+                new RGBAImage(new File("data/fish1.png")), new PerceptualDiffParameters(), null);
+
+        assertNull(result.failureMask);
+        assertEquals(1, counting.comparisons.get());
+        assertEquals(0, cache.getMisses());
+    }
+
+}
@@ -0,0 +1,27 @@
+package org.pdiff;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+public class ColourSpaceTest {
+
+    @Test
+    public void linearTablesAreLeastRecentlyUsed() {
+        double[] kept = ColourSpace.linearTable(2.2);
+        double[] dropped = ColourSpace.linearTable(1.9);
+
+        // Many other gammas, as from the clients of a comparison server, while one table stays in use
+        for (int i = 0; i < 4 * ColourSpace.MAX_CACHED_LINEAR; i++) {
+            ColourSpace.linearTable(1.0 + i / 100.0);
+
+            assertSame(kept, ColourSpace.linearTable(2.2));
+        }
+
+        assertNotSame(dropped, ColourSpace.linearTable(1.9));
+        assertEquals(Math.pow(128 / 255.0, 1.9), ColourSpace.linearTable(1.9)[(128 << 8) | 255], 1e-12);
+    }
+
+}
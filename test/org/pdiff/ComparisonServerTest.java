@@ -0,0 +1,243 @@
+package org.pdiff;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class ComparisonServerTest {
+
+    private static ComparisonServer server;
+
+    @BeforeClass
+    public static void startServer() throws IOException, InterruptedException {
+        server = new ComparisonServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 2, 4, 60000,
+                new File("data"), 1);
+        server.start();
+
+        for (int i = 0; i < 600 && !server.isReady(); i++) {
+            Thread.sleep(100);
+        }
+    }
+
+    @AfterClass
+    public static void stopServer() {
+        server.stop();
+    }
+
+    private static String[] request(String method, String pathAndQuery, byte[] body) throws IOException {
+        return request(server, method, pathAndQuery, body);
+    }
+
+    private static String[] request(ComparisonServer server, String method, String pathAndQuery, byte[] body)
+            throws IOException {
+        URL url = new URL("http://127.0.0.1:" + server.getPort() + pathAndQuery);
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+
+        connection.setRequestMethod(method);
+
+        if (body != null) {
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", "application/octet-stream");
+
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(body);
+            }
+        }
+
+        int status = connection.getResponseCode();
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+
+        try (InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream()) {
+            byte[] buffer = new byte[4096];
+
+            for (int n; (n = in.read(buffer)) > 0;) {
+                response.write(buffer, 0, n);
+            }
+        }
+
+        return new String[] {Integer.toString(status), new String(response.toByteArray(), StandardCharsets.UTF_8) };
+    }
+
+    @Test
+    public void ready() throws IOException {
+        String[] response = request("GET", "/ready", null);
+
+        assertEquals("200", response[0]);
+        assertTrue(response[1], response[1].contains("\"ready\":true,\"warmUpRounds\":1"));
+    }
+
+    @Test
+    public void notReadyWithoutWarmUpPairs() throws IOException, InterruptedException {
+        ComparisonServer cold = new ComparisonServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1, 1,
+                60000, new File("data/missing"), 1);
+        cold.start();
+
+        try {
+            for (int i = 0; i < 600 && !cold.isWarmUpFailed(); i++) {
+                Thread.sleep(100);
+            }
+
+            String[] response = request(cold, "GET", "/ready", null);
+
+            assertEquals("503", response[0]);
+            assertTrue(response[1], response[1].contains("\"ready\":false,\"warmUpRounds\":0"));
+            assertTrue(response[1], response[1].contains("\"warmUpFailed\":true"));
+            assertFalse(cold.isReady());
+        } finally {
+            cold.stop();
+        }
+    }
+
+    @Test
+    public void compareFiles() throws IOException {
+        String[] response = request("POST", "/compare?a=data/alpha1.png&b=data/alpha2.png", new byte[0]);
+
+        assertEquals("200", response[0]);
+        assertTrue(response[1], response[1].startsWith("{\"status\":\"FAIL\",\"pixelsFailed\":1278,"));
+    }
+
+    @Test
+    public void compareUpload() throws IOException {
+        byte[] a = Files.readAllBytes(new File("data/fish1.png").toPath());
+        byte[] b = Files.readAllBytes(new File("data/fish2.png").toPath());
+        byte[] body = new byte[a.length + b.length];
+
+        System.arraycopy(a, 0, body, 0, a.length);
+        System.arraycopy(b, 0, body, a.length, b.length);
+
+        String[] response = request("POST", "/compare?lengthA=" + a.length, body);
+
+        assertEquals("200", response[0]);
+        assertTrue(response[1], response[1].startsWith("{\"status\":\"FAIL\",\"pixelsFailed\":20109,"));
+    }
+
+    @Test
+    public void compareWithParameters() throws IOException {
+        String[] response = request("POST",
+                "/compare?a=data/Aqsis_vase_ref.png&b=data/Aqsis_vase.png&thresholdPixels=1000", new byte[0]);
+
+        assertEquals("200", response[0]);
+        assertTrue(response[1], response[1].startsWith("{\"status\":\"PASS\",\"pixelsFailed\":104,"));
+    }
+
+    /*
+     * Sends the headers of an upload declaring the given length and as much of the body as given, without waiting.
+     */
+    private static Socket startUpload(ComparisonServer server, int contentLength, byte[] body) throws IOException {
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort());
+        socket.setSoTimeout(10000);
+
+        OutputStream out = socket.getOutputStream();
+
+        out.write(("POST /compare?lengthA=0 HTTP/1.1\r\nHost: localhost\r\nContent-Length: " + contentLength
+                + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+        out.write(body);
+        out.flush();
+
+        return socket;
+    }
+
+    private static String statusLine(Socket socket) throws IOException {
+        InputStream in = socket.getInputStream();
+        StringBuilder line = new StringBuilder();
+
+        for (int c; (c = in.read()) >= 0 && c != '\r';) {
+            line.append((char) c);
+        }
+
+        return line.toString();
+    }
+
+    @Test
+    public void refusesUploadBeforeReadingIt() throws IOException, InterruptedException {
+        ComparisonServer full = new ComparisonServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1, 0,
+                60000, new File("data"), 0);
+        full.start();
+
+        Socket stalled = null;
+
+        try {
+            // A stalled upload holds the only place once a small complete request is refused. A probe may take the
+            // place first, in which case the stalled upload is refused itself and another is started
+            String status = "";
+
+            for (int i = 0; i < 1000 && !status.contains(" 503 "); i++) {
+                if (stalled == null || stalled.getInputStream().available() > 0) {
+                    if (stalled != null) {
+                        stalled.close();
+                    }
+
+                    stalled = startUpload(full, 1000, new byte[10]);
+                    Thread.sleep(10);
+                }
+
+                try (Socket probe = startUpload(full, 1, new byte[1])) {
+                    status = statusLine(probe);
+                }
+            }
+
+            assertTrue(status, status.contains(" 503 "));
+
+            // The body of this one is never sent, so it can only be answered without reading it
+            try (Socket large = startUpload(full, 200 << 20, new byte[0])) {
+                assertTrue(statusLine(large).contains(" 503 "));
+            }
+        } finally {
+            if (stalled != null) {
+                stalled.close();
+            }
+
+            full.stop();
+        }
+    }
+
+    @Test
+    public void freesPlaceOfAbandonedUpload() throws IOException, InterruptedException {
+        ComparisonServer single = new ComparisonServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1,
+                0, 60000, new File("data"), 0);
+        single.start();
+
+        try {
+            startUpload(single, 1000, new byte[10]).close();
+
+            String status = "";
+
+            for (int i = 0; i < 100 && !status.equals("200"); i++) {
+                status = request(single, "POST", "/compare?a=data/alpha1.png&b=data/alpha2.png", new byte[0])[0];
+                Thread.sleep(10);
+            }
+
+            assertEquals("200", status);
+        } finally {
+            single.stop();
+        }
+    }
+
+    @Test
+    public void rejectsBadRequests() throws IOException {
+        assertEquals("405", request("GET", "/compare?a=data/alpha1.png&b=data/alpha2.png", null)[0]);
+        assertEquals("400", request("POST", "/compare?a=data/alpha1.png", new byte[0])[0]);
+        assertEquals("400", request("POST", "/compare?a=data/alpha1.png&b=data/none.png", new byte[0])[0]);
+        assertEquals("400", request("POST", "/compare?a=data/alpha1.png&b=data/alpha2.png&gamma=x", new byte[0])[0]);
+        assertEquals("400", request("POST", "/compare?lengthA=10", new byte[5])[0]);
+        assertEquals("400", request("POST", "/compare?lengthA=0", new byte[5])[0]);
+    }
+
+}
@@ -0,0 +1,199 @@
+package org.pdiff;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assume;
+import org.junit.Test;
+import org.pdiff.Metric.ComparisonResult;
+
+public class ComparisonWorkspaceTest {
+
+    private static final String[][] PAIRS = {
+        {"data/fish1.png", "data/fish2.png" }, {"data/Aqsis_vase_ref.png", "data/Aqsis_vase.png" },
+        {"data/fish1.png", "data/fish2.png" } };
+
+    private static void assertSameResult(ComparisonResult expected, ComparisonResult actual) {
+        assertEquals(expected.pixelsFailed, actual.pixelsFailed);
+        assertEquals(expected.errorSum, actual.errorSum, 0.0);
+    }
+
+    @Test
+    public void reuseAcrossSizes() throws IOException {
+        ComparisonWorkspace workspace = new ComparisonWorkspace();
+        ForkJoinPool pool = new ForkJoinPool(3);
+
+        try {
+            for (boolean decimated : new boolean[] {false, true }) {
+                for (String[] pair : PAIRS) {
+                    RGBAImage imageA = new RGBAImage(new File(pair[0]));
+                    RGBAImage imageB = new RGBAImage(new File(pair[1]));
+                    int w = imageA.getWidth();
+                    int h = imageA.getHeight();
+
+                    PerceptualDiffParameters params = new PerceptualDiffParameters();
+                    params.decimatedPyramid = decimated;
+
+                    RGBAImage expectedDifference = new RGBAImage(w, h, "expected");
+                    ComparisonResult expected = new MetricImpl().yeeCompare(imageA, imageB, params,
+                            expectedDifference);
+
+                    // The fish pair follows the smaller Aqsis pair, whose values are left in the buffers
+                    RGBAImage actualDifference = new RGBAImage(w, h, "actual");
+                    ComparisonResult actual = new MetricImpl(pool).yeeCompare(imageA, imageB, params,
+                            actualDifference, workspace);
+
+                    assertSameResult(expected, actual);
+                    assertArrayEquals(expectedDifference.getPixels(), actualDifference.getPixels());
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+
+        assertTrue(workspace.getBytes() > 0);
+
+        workspace.clear();
+
+        assertEquals(0, workspace.getBytes());
+    }
+
+    @Test
+    public void steadyStateAllocatesLittle() throws IOException {
+        RGBAImage imageA = new RGBAImage(new File("data/fish1.png"));
+        RGBAImage imageB = new RGBAImage(new File("data/fish2.png"));
+        PerceptualDiffParameters params = new PerceptualDiffParameters();
+        MetricImpl metric = new MetricImpl(null, ComparisonWorkspace.threadLocal());
+
+        metric.yeeCompare(imageA, imageB, params, null);
+
+        ComparisonResult fresh = new MetricImpl().yeeCompare(imageA, imageB, params, null);
+        ComparisonResult reused = metric.yeeCompare(imageA, imageB, params, null);
+
+        Assume.assumeTrue(fresh.timings.getBytesAllocated() >= 0);
+
+        assertSameResult(fresh, reused);
+        assertTrue(reused.timings.getBytesAllocated() + " bytes allocated",
+                reused.timings.getBytesAllocated() < fresh.timings.getBytesAllocated() / 50);
+    }
+
+    @Test
+    public void preparedReferenceWithPool() throws IOException {
+        RGBAImage imageA = new RGBAImage(new File("data/fish1.png"));
+        RGBAImage imageB = new RGBAImage(new File("data/fish2.png"));
+        PerceptualDiffParameters params = new PerceptualDiffParameters();
+        MetricImpl metric = new MetricImpl(null, ComparisonWorkspace.shared(1));
+
+        PreparedReference reference = metric.prepare(imageA, params);
+
+        ComparisonResult expected = new MetricImpl().yeeCompare(imageA, imageB, params, null);
+
+        assertSameResult(expected, metric.yeeCompare(reference, imageB, params, null));
+        assertSameResult(expected, metric.yeeCompare(reference, imageB, params, null));
+    }
+
+    @Test
+    public void sharedPoolKeepsIdleWorkspaces() {
+        ComparisonWorkspace.Pool pool = ComparisonWorkspace.shared(1);
+
+        ComparisonWorkspace first = pool.acquire();
+        ComparisonWorkspace second = pool.acquire();
+
+        assertNotSame(first, second);
+
+        pool.release(first);
+        pool.release(second);
+
+        assertSame(first, pool.acquire());
+        assertNotSame(second, pool.acquire());
+    }
+
+    @Test
+    public void threadLocalPoolAvoidsWorkspaceInUse() {
+        ComparisonWorkspace.Pool pool = ComparisonWorkspace.threadLocal();
+        ComparisonWorkspace workspace = pool.acquire();
+
+        assertSame(workspace, pool.acquire());
+
+        workspace.begin();
+
+        try {
+            assertNotSame(workspace, pool.acquire());
+        } finally {
+            workspace.end();
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void concurrentUseIsRefused() {
+        ComparisonWorkspace workspace = new ComparisonWorkspace();
+
+        workspace.begin();
+        workspace.begin();
+    }
+
+    @Test
+    public void workspaceInUseIsReleased() throws IOException {
+        RGBAImage image = new RGBAImage(new File("data/alpha1.png"));
+        PerceptualDiffParameters params = new PerceptualDiffParameters();
+
+        ComparisonWorkspace busy = new ComparisonWorkspace();
+        AtomicInteger released = new AtomicInteger();
+
+        // A faulty pool that hands out a workspace another comparison is using
+        MetricImpl metric = new MetricImpl(null, new ComparisonWorkspace.Pool() {
+            @Override
+            public ComparisonWorkspace acquire() {
+                return busy;
+            }
+
+            @Override
+            public void release(ComparisonWorkspace workspace) {
+                released.incrementAndGet();
+            }
+        });
+
+        PreparedReference reference = new MetricImpl().prepare(image, params);
+
+        busy.begin();
+
+        try {
+            for (int i = 0; i < 2; i++) {
+                try {
+                    if (i == 0) {
+                        metric.yeeCompare(image, image, params, null);
+                    } else {
+                        metric.yeeCompare(reference, image, params, null);
+                    }
+
+                    fail("expected an IllegalStateException");
+                } catch (IllegalStateException e) {
+                    // expected
+                }
+            }
+
+            assertEquals(2, released.get());
+
+            // The comparison using the workspace still holds it
+            try {
+                busy.clear();
+
+                fail("expected an IllegalStateException");
+            } catch (IllegalStateException e) {
+                // expected
+            }
+        } finally {
+            busy.end();
+        }
+    }
+
+}
@@ -0,0 +1,88 @@
+package org.pdiff;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.Test;
+import org.pdiff.Metric.ComparisonResult;
+
+public class DirtyRegionsTest {
+
+    /*
+     * Copies the image with the colour of the pixels in the given rectangles changed.
+     */
+    private static RGBAImage change(RGBAImage imageA, int[][] rectangles) {
+        RGBAImage image = imageA.crop(0, 0, imageA.getWidth(), imageA.getHeight());
+        int w = image.getWidth();
+
+        for (int[] r : rectangles) {
+            for (int y = r[1]; y < r[1] + r[3]; y++) {
+                for (int x = r[0]; x < r[0] + r[2]; x++) {
+                    image.getPixels()[y * w + x] ^= 0x00604020;
+                }
+            }
+        }
+
+        return image;
+    }
+
+    private static void assertMatchesWholeImage(int[]... rectangles) throws IOException {
+        RGBAImage imageA = new RGBAImage(new File("data/fish1.png"));
+        RGBAImage imageB = change(imageA, rectangles);
+
+        int w = imageA.getWidth();
+        int h = imageA.getHeight();
+        PerceptualDiffParameters params = new PerceptualDiffParameters();
+
+        List<DirtyRegions.Region> regions = DirtyRegions.find(imageA, imageB);
+
+        assertNotNull(regions);
+
+        RGBAImage differenceRegions = new RGBAImage(w, h, "regions");
+        ComparisonResult dirty = DirtyRegions.compare(regions, imageA, imageB, params, differenceRegions, null,
+                new StageTimer());
+
+        RGBAImage differenceWhole = new RGBAImage(w, h, "whole");
+        ColourSpace colourSpace = new ColourSpace(imageA, imageB, params.gamma, params.luminance);
+        LPyramid[] pyramids = LPyramid.pair(colourSpace.aLum, colourSpace.bLum, w, h, false, null);
+        ComparisonResult whole = MetricImpl.test(pyramids[0], pyramids[1], colourSpace, params, differenceWhole, w, h,
+                null);
+
+        assertEquals(whole.pixelsFailed, dirty.pixelsFailed);
+        assertEquals(whole.errorSum, dirty.errorSum, 0.0);
+        assertArrayEquals(differenceWhole.getPixels(), differenceRegions.getPixels());
+    }
+
+    @Test
+    public void compareSmallChange() throws IOException {
+        assertMatchesWholeImage(new int[] {100, 90, 20, 20 });
+    }
+
+    @Test
+    public void compareChangesAtCorners() throws IOException {
+        assertMatchesWholeImage(new int[] {0, 0, 12, 9 }, new int[] {380, 490, 13, 11 });
+    }
+
+    @Test
+    public void compareNearbyChanges() throws IOException {
+        assertMatchesWholeImage(new int[] {40, 40, 5, 5 }, new int[] {75, 50, 5, 5 }, new int[] {60, 90, 30, 3 });
+    }
+
+    @Test
+    public void compareChangesSideBySide() throws IOException {
+        assertMatchesWholeImage(new int[] {20, 300, 10, 10 }, new int[] {300, 305, 10, 10 });
+    }
+
+    @Test
+    public void findLargeChange() throws IOException {
+        assertNull(DirtyRegions.find(new RGBAImage(new File("data/fish1.png")),
+                new RGBAImage(new File("data/fish2.png"))));
+    }
+
+}
@@ -0,0 +1,91 @@
+package org.pdiff;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Test;
+import org.pdiff.Metric.ComparisonResult;
+
+public class FailureMaskTest {
+
+    @Test
+    public void maskMatchesDifferenceImage() throws IOException {
+        RGBAImage imageA = new RGBAImage(new File("data/fish1.png"));
+        RGBAImage imageB = new RGBAImage(new File("data/fish2.png"));
+        RGBAImage imageDifference = new RGBAImage(imageA.getWidth(), imageA.getHeight(), "image_difference");
+
+        ComparisonResult result = new MetricImpl().yeeCompare(imageA, imageB, new PerceptualDiffParameters(),
+                imageDifference);
+
+        assertEquals(20109, result.failureMask.cardinality());
+
+        BufferedImage rendered = result.failureMask.toImage();
+        int[] pixels = rendered.getRGB(0, 0, rendered.getWidth(), rendered.getHeight(), null, 0, rendered.getWidth());
+
+        assertArrayEquals(imageDifference.getPixels(), pixels);
+
+        int failed = 0;
+
+        for (int y = 0; y < imageA.getHeight(); y++) {
+            for (int x = 0; x < imageA.getWidth(); x++) {
+                boolean red = imageDifference.get(x, y) == 0xFFFF0000;
+
+                assertEquals(red, result.failureMask.isFailed(x, y));
+
+                failed += red ? 1 : 0;
+            }
+        }
+
+        assertEquals(20109, failed);
+    }
+
+    @Test
+    public void streamingMaskMatches() throws IOException {
+        ComparisonResult inMemory = new MetricImpl().yeeCompare(new RGBAImage(new File("data/alpha1.png")),
+                new RGBAImage(new File("data/alpha2.png")), new PerceptualDiffParameters(), null);
+
+        ComparisonResult streamed = new StreamingMetric().compare(new File("data/alpha1.png"),
+                new File("data/alpha2.png"), new PerceptualDiffParameters());
+
+        BufferedImage a = inMemory.failureMask.toImage();
+        BufferedImage b = streamed.failureMask.toImage();
+
+        assertArrayEquals(a.getRGB(0, 0, a.getWidth(), a.getHeight(), null, 0, a.getWidth()),
+                b.getRGB(0, 0, b.getWidth(), b.getHeight(), null, 0, b.getWidth()));
+    }
+
+    @Test
+    public void identicalImagesHaveNoMask() throws IOException {
+        RGBAImage image = new RGBAImage(new File("data/alpha1.png"));
+
+        assertNull(new MetricImpl().yeeCompare(image, image, new PerceptualDiffParameters(), null).failureMask);
+    }
+
+    @Test
+    public void heatMap() throws IOException {
+        PerceptualDiffParameters params = new PerceptualDiffParameters();
+        params.recordErrors = true;
+
+        ComparisonResult result = new MetricImpl().yeeCompare(new RGBAImage(new File("data/Aqsis_vase_ref.png")),
+                new RGBAImage(new File("data/Aqsis_vase.png")), params, null);
+
+        BufferedImage heatMap = result.failureMask.toHeatMap();
+
+        assertEquals(result.failureMask.getWidth(), heatMap.getWidth());
+        assertEquals(result.failureMask.getHeight(), heatMap.getHeight());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void heatMapNeedsErrors() throws IOException {
+        ComparisonResult result = new MetricImpl().yeeCompare(new RGBAImage(new File("data/alpha1.png")),
+                new RGBAImage(new File("data/alpha2.png")), new PerceptualDiffParameters(), null);
+
+        result.failureMask.toHeatMap();
+    }
+
+}
@@ -0,0 +1,243 @@
+package org.pdiff;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+import org.pdiff.FrameSequence.Frame;
+import org.pdiff.FrameSequence.Kind;
+import org.pdiff.FrameSequence.Summary;
+import org.pdiff.Metric.ComparisonResult;
+
+public class FrameSequenceTest {
+
+    private static RGBAImage copy(RGBAImage image) {
+        RGBAImage copy = new RGBAImage(image.getWidth(), image.getHeight(), image.getName());
+        System.arraycopy(image.getPixels(), 0, copy.getPixels(), 0, image.getPixels().length);
+
+        return copy;
+    }
+
+    /*
+     * Paints a square of the given colour, as a moving object in an animation.
+     */
+    private static RGBAImage paint(RGBAImage image, int x0, int y0, int size, int colour) {
+        RGBAImage painted = copy(image);
+        int w = painted.getWidth();
+
+        for (int y = y0; y < Math.min(y0 + size, painted.getHeight()); y++) {
+            for (int x = x0; x < Math.min(x0 + size, w); x++) {
+                painted.getPixels()[y * w + x] = colour;
+            }
+        }
+
+        return painted;
+    }
+
+    private static FrameSequence.Source source(List<RGBAImage> frames) {
+        Iterator<RGBAImage> it = frames.iterator();
+
+        return () -> it.hasNext() ? it.next() : null;
+    }
+
+    /*
+     * An animation of the fish pair, in which a square moves across the first image and then over both, with a
+     * repeated frame, a frame in which the images are identical and a frame that changes everywhere.
+     */
+    private static List<RGBAImage[]> animation() throws IOException {
+        RGBAImage fish1 = new RGBAImage(new File("data/fish1.png"));
+        RGBAImage fish2 = new RGBAImage(new File("data/fish2.png"));
+
+        List<RGBAImage[]> frames = new ArrayList<>();
+
+        for (int i = 0; i < 4; i++) {
+            frames.add(new RGBAImage[] {paint(fish1, 10 + 15 * i, 20, 24, 0xFF2040C0), fish2 });
+        }
+
+        frames.add(frames.get(frames.size() - 1).clone());
+
+        for (int i = 0; i < 3; i++) {
+            int colour = 0xFF000000 | (0x30 * i);
+
+            frames.add(new RGBAImage[] {paint(fish1, 100, 30 + 10 * i, 40, colour), paint(fish2, 100, 30 + 10 * i, 40,
+                    colour) });
+        }
+
+        frames.add(new RGBAImage[] {copy(fish2), copy(fish2) });
+        frames.add(new RGBAImage[] {paint(fish1, 50, 50, 16, 0xFFFFFFFF), fish2 });
+        frames.add(new RGBAImage[] {fish2, fish1 });
+
+        return frames;
+    }
+
+    private static List<Frame> assertMatchesMetric(PerceptualDiffParameters params, ForkJoinPool pool)
+            throws IOException {
+        List<RGBAImage[]> frames = animation();
+        List<RGBAImage> framesA = new ArrayList<>();
+        List<RGBAImage> framesB = new ArrayList<>();
+
+        for (RGBAImage[] frame : frames) {
+            framesA.add(frame[0]);
+            framesB.add(frame[1]);
+        }
+
+        List<Frame> results = new ArrayList<>();
+
+        Summary summary = new FrameSequence(pool).compare(source(framesA), source(framesB), params, results::add);
+
+        assertEquals(frames.size(), summary.getFrames());
+        assertEquals(frames.size(), results.size());
+        assertTrue(summary.isLengthsMatch());
+
+        long pixelsFailed = 0;
+        int framesFailed = 0;
+
+        for (int i = 0; i < frames.size(); i++) {
+            ComparisonResult expected = new MetricImpl().yeeCompare(frames.get(i)[0], frames.get(i)[1], params,
+                    null);
+            ComparisonResult actual = results.get(i).getResult();
+
+            assertEquals(i, results.get(i).getIndex());
+            assertEquals("frame " + i, expected.passed, actual.passed);
+            assertEquals("frame " + i, expected.pixelsFailed, actual.pixelsFailed);
+            assertEquals("frame " + i, expected.errorSum, actual.errorSum, 0.0);
+            assertEquals("frame " + i, expected.lowerBound, actual.lowerBound);
+
+            if (expected.failureMask != null) {
+                // The masks are the size of the resampled images
+                int w = expected.failureMask.getWidth();
+                int h = expected.failureMask.getHeight();
+
+                RGBAImage expectedDifference = new RGBAImage(w, h, "expected");
+                RGBAImage actualDifference = new RGBAImage(w, h, "actual");
+                expected.failureMask.render(expectedDifference);
+                actual.failureMask.render(actualDifference);
+
+                assertArrayEquals("frame " + i, expectedDifference.getPixels(), actualDifference.getPixels());
+            }
+
+            pixelsFailed += Math.max(expected.pixelsFailed, 0);
+            framesFailed += expected.passed ? 0 : 1;
+        }
+
+        assertEquals(pixelsFailed, summary.getPixelsFailed());
+        assertEquals(framesFailed, summary.getFramesFailed());
+
+        return results;
+    }
+
+    @Test
+    public void matchesMetric() throws IOException {
+        List<Frame> frames = assertMatchesMetric(new PerceptualDiffParameters(), null);
+
+        assertEquals(Kind.FULL, frames.get(0).getKind());
+        assertEquals(Kind.INCREMENTAL, frames.get(1).getKind());
+        assertEquals(Kind.SKIPPED, frames.get(4).getKind());
+        assertEquals(0, frames.get(4).getPixelsRetested());
+        assertSame(frames.get(3).getResult().failureMask, frames.get(4).getResult().failureMask);
+        assertEquals(Kind.FULL, frames.get(frames.size() - 1).getKind());
+
+        long pixels = (long) frames.get(0).getResult().failureMask.getWidth()
+                * frames.get(0).getResult().failureMask.getHeight();
+
+        assertTrue(frames.get(1).getPixelsRetested() < pixels / 2);
+    }
+
+    @Test
+    public void matchesMetricWithOptions() throws IOException {
+        ForkJoinPool pool = new ForkJoinPool(3);
+
+        try {
+            PerceptualDiffParameters params = new PerceptualDiffParameters();
+            params.luminanceOnly = true;
+            params.recordErrors = true;
+
+            assertMatchesMetric(params, pool);
+
+            params = new PerceptualDiffParameters();
+            params.downSample = 1;
+
+            assertMatchesMetric(params, pool);
+
+            params = new PerceptualDiffParameters();
+            params.decimatedPyramid = true;
+
+            for (Frame frame : assertMatchesMetric(params, pool)) {
+                assertFalse(frame.getKind() == Kind.INCREMENTAL);
+            }
+
+            params = new PerceptualDiffParameters();
+            params.verdictOnly = true;
+
+            for (Frame frame : assertMatchesMetric(params, pool)) {
+                assertFalse(frame.getKind() == Kind.INCREMENTAL);
+            }
+
+            params = new PerceptualDiffParameters();
+            params.offHeap = true;
+
+            for (Frame frame : assertMatchesMetric(params, pool)) {
+                assertFalse(frame.getKind() == Kind.INCREMENTAL);
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void reportsLengthMismatch() throws IOException {
+        RGBAImage fish1 = new RGBAImage(new File("data/fish1.png"));
+        RGBAImage fish2 = new RGBAImage(new File("data/fish2.png"));
+
+        Summary summary = new FrameSequence(null).compare(source(Arrays.asList(fish1, fish1, fish1)),
+                source(Arrays.asList(fish1, fish2)), new PerceptualDiffParameters(), null);
+
+        assertEquals(2, summary.getFrames());
+        assertFalse(summary.isLengthsMatch());
+        assertFalse(summary.isPassed());
+        assertEquals(1, summary.getWorstFrame());
+    }
+
+    @Test
+    public void filesAreDecodedInOrder() throws IOException {
+        List<File> files = Arrays.asList(new File("data/fish1.png"), new File("data/fish2.png"));
+        List<Frame> frames = new ArrayList<>();
+
+        Summary summary = new FrameSequence(null).compare(FrameSequence.files(files),
+                FrameSequence.files(Arrays.asList(files.get(0), files.get(0))), new PerceptualDiffParameters(),
+                frames::add);
+
+        assertEquals(2, summary.getFrames());
+        assertTrue(frames.get(0).getResult().passed);
+        assertEquals(-1, frames.get(0).getResult().pixelsFailed);
+        assertFalse(frames.get(1).getResult().passed);
+        assertTrue(summary.getDecodeNanos() > 0);
+    }
+
+    @Test
+    public void decodeFailureIsThrown() throws IOException {
+        List<File> files = Arrays.asList(new File("data/fish1.png"), new File("data/missing.png"));
+
+        try {
+            new FrameSequence(null).compare(FrameSequence.files(files), FrameSequence.files(files),
+                    new PerceptualDiffParameters(), null);
+
+            fail("expected an IOException");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+}
@@ -0,0 +1,92 @@
+package org.pdiff;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+import org.pdiff.Metric.ComparisonResult;
+
+public class InstrumentationTest {
+
+    private static final class RecordingListener implements ComparisonListener {
+        final List<String> events = Collections.synchronizedList(new ArrayList<>());
+
+        @Override
+        public void stageStarted(Stage stage, int width, int height) {
+            events.add("start " + stage);
+        }
+
+        @Override
+        public void stageCompleted(Stage stage, int width, int height, long nanos) {
+            events.add("stop " + stage + " " + width + "x" + height);
+        }
+
+        @Override
+        public void comparisonCompleted(int width, int height, boolean passed, int pixelsFailed,
+                StageTimings timings) {
+            events.add("done " + passed + " " + pixelsFailed);
+        }
+    }
+
+    @Test
+    public void reportsEachStage() throws IOException {
+        RecordingListener listener = new RecordingListener();
+
+        Instrumentation.addListener(listener);
+
+        try {
+            ComparisonResult result = new MetricImpl().yeeCompare(new RGBAImage(new File("data/fish1.png")),
+                    new RGBAImage(new File("data/fish2.png")), new PerceptualDiffParameters(), null);
+
+            assertEquals(20109, result.pixelsFailed);
+            assertEquals("[start COLOUR, stop COLOUR 393x501, start PYRAMID, stop PYRAMID 393x501, start TEST, "
+                    + "stop TEST 393x501, done false 20109]", listener.events.toString());
+
+            assertTrue(result.timings.getNanos(Stage.COLOUR) > 0);
+            assertTrue(result.timings.getNanos(Stage.PYRAMID) > 0);
+            assertTrue(result.timings.getNanos(Stage.TEST) > 0);
+            assertEquals(0, result.timings.getNanos(Stage.DECODE));
+            assertEquals(result.timings.getNanos(Stage.COLOUR) + result.timings.getNanos(Stage.PYRAMID)
+                    + result.timings.getNanos(Stage.TEST), result.timings.getTotalNanos());
+        } finally {
+            Instrumentation.removeListener(listener);
+        }
+    }
+
+    @Test
+    public void reportsStreamedStagesOnce() throws IOException {
+        RecordingListener listener = new RecordingListener();
+
+        Instrumentation.addListener(listener);
+
+        try {
+            ComparisonResult result = new StreamingMetric().compare(new File("data/alpha1.png"),
+                    new File("data/alpha2.png"), new PerceptualDiffParameters());
+
+            assertEquals(1278, result.pixelsFailed);
+            assertEquals("[stop DECODE 640x480, stop TEST 640x480, done false 1278]",
+                    listener.events.toString());
+            assertTrue(result.timings.getNanos(Stage.DECODE) > 0);
+            assertTrue(result.timings.getNanos(Stage.TEST) > 0);
+        } finally {
+            Instrumentation.removeListener(listener);
+        }
+    }
+
+    @Test
+    public void identicalImagesHaveNoStages() throws IOException {
+        RGBAImage image = new RGBAImage(new File("data/alpha1.png"));
+
+        ComparisonResult result = new MetricImpl().yeeCompare(image, image, new PerceptualDiffParameters(), null);
+
+        assertTrue(result.passed);
+        assertEquals(0, result.timings.getTotalNanos());
+    }
+
+}
@@ -0,0 +1,70 @@
+package org.pdiff;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+import org.pdiff.Metric.ComparisonResult;
+
+public class KernelsTest {
+
+    private static void assertVectorMatchesScalar(RGBAImage imageA, RGBAImage imageB) {
+        Kernels vector = Kernels.vector();
+
+        assumeTrue(vector != null);
+
+        Kernels saved = Kernels.current;
+
+        try {
+            Kernels.current = new ScalarKernels();
+
+            ComparisonResult scalarResult = new MetricImpl().yeeCompare(imageA, imageB,
+                    new PerceptualDiffParameters(), null);
+
+            Kernels.current = vector;
+
+            ComparisonResult vectorResult = new MetricImpl().yeeCompare(imageA, imageB,
+                    new PerceptualDiffParameters(), null);
+
+            assertEquals(scalarResult.pixelsFailed, vectorResult.pixelsFailed);
+            assertEquals(scalarResult.errorSum, vectorResult.errorSum, 0.0);
+        } finally {
+            Kernels.current = saved;
+        }
+    }
+
+    private static void assertVectorMatchesScalar(String fileA, String fileB) throws IOException {
+        assertVectorMatchesScalar(new RGBAImage(new File(fileA)), new RGBAImage(new File(fileB)));
+    }
+
+    @Test
+    public void vectorMatchesScalarAlpha() throws IOException {
+        assertVectorMatchesScalar("data/alpha1.png", "data/alpha2.png");
+    }
+
+    @Test
+    public void vectorMatchesScalarFish() throws IOException {
+        assertVectorMatchesScalar("data/fish1.png", "data/fish2.png");
+    }
+
+    @Test
+    public void vectorMatchesScalarAqsisVase() throws IOException {
+        assertVectorMatchesScalar("data/Aqsis_vase_ref.png", "data/Aqsis_vase.png");
+    }
+
+    @Test
+    public void vectorMatchesScalarOddWidth() throws IOException {
+        // A width that is not a multiple of any vector length exercises the scalar tail of every kernel
+        BufferedImage imageA = ImageIO.read(new File("data/fish1.png")).getSubimage(3, 5, 203, 157);
+        BufferedImage imageB = ImageIO.read(new File("data/fish2.png")).getSubimage(3, 5, 203, 157);
+
+        assertVectorMatchesScalar(new RGBAImage(imageA, "a"), new RGBAImage(imageB, "b"));
+    }
+
+}
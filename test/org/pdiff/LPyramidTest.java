@@ -0,0 +1,227 @@
+package org.pdiff;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+import org.pdiff.Metric.ComparisonResult;
+
+public class LPyramidTest {
+
+    private static final double TOLERANCE = 1e-6;
+
+    /*
+     * The direct 5x5 convolution that the separable blur replaced.
+     */
+    private static float[] convolve(float[] b, int width, int height) {
+        double[] kernel = {0.05, 0.25, 0.4, 0.25, 0.05 };
+        float[] a = new float[width * height];
+
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                double result = 0.0f;
+
+                for (int i = -2; i <= 2; i++) {
+                    for (int j = -2; j <= 2; j++) {
+                        int nx = Math.abs(x + i);
+                        int ny = Math.abs(y + j);
+
+                        if (nx >= width) {
+                            nx = 2 * width - nx - 1;
+                        }
+
+                        if (ny >= height) {
+                            ny = 2 * height - ny - 1;
+                        }
+
+                        result += kernel[i + 2] * kernel[j + 2] * b[ny * width + nx];
+                    }
+                }
+
+                a[y * width + x] = (float) result;
+            }
+        }
+
+        return a;
+    }
+
+    private static void assertMatchesDirectConvolution(String file) throws IOException {
+        RGBAImage image = new RGBAImage(new File(file));
+        int w = image.getWidth();
+        int h = image.getHeight();
+
+        ColourSpace colourSpace = new ColourSpace(image, image, 2.2, 100.0);
+
+        LPyramid pyramid = new LPyramid(colourSpace.aLum, w, h, false, null);
+
+        float[] expected = colourSpace.aLum;
+
+        for (int level = 1; level < LPyramid.MAX_PYR_LEVELS; level++) {
+            expected = convolve(expected, w, h);
+
+            for (int y = 0; y < h; y++) {
+                for (int x = 0; x < w; x++) {
+                    double e = expected[x + y * w];
+                    double error = Math.abs(pyramid.getValue(x, y, level) - e);
+
+                    assertTrue(file + " level " + level + " at " + x + "," + y, error <= TOLERANCE * Math.max(Math.abs(e), 1.0));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void separableBlurMatchesDirectConvolution() throws IOException {
+        assertMatchesDirectConvolution("data/alpha1.png");
+        assertMatchesDirectConvolution("data/fish1.png");
+        assertMatchesDirectConvolution("data/Aqsis_vase.png");
+    }
+
+    private static void assertShape(int width, int height, int[] levelWidth, int[] levelHeight, int[] levelShift) {
+        int[] actualWidth = new int[LPyramid.MAX_PYR_LEVELS];
+        int[] actualHeight = new int[LPyramid.MAX_PYR_LEVELS];
+        int[] actualShift = new int[LPyramid.MAX_PYR_LEVELS];
+
+        LPyramid.shape(width, height, true, actualWidth, actualHeight, actualShift);
+
+        assertArrayEquals(levelWidth, actualWidth);
+        assertArrayEquals(levelHeight, actualHeight);
+        assertArrayEquals(levelShift, actualShift);
+    }
+
+    @Test
+    public void decimatedLevelsRoundUpAndStopAtOnePixel() {
+        assertShape(7, 5, new int[] {7, 4, 2, 1, 1, 1, 1, 1 }, new int[] {5, 3, 2, 1, 1, 1, 1, 1 },
+                new int[] {0, 1, 2, 3, 3, 3, 3, 3 });
+        assertShape(1, 9, new int[] {1, 1, 1, 1, 1, 1, 1, 1 }, new int[] {9, 5, 3, 2, 1, 1, 1, 1 },
+                new int[] {0, 1, 2, 3, 4, 4, 4, 4 });
+        assertShape(1, 1, new int[] {1, 1, 1, 1, 1, 1, 1, 1 }, new int[] {1, 1, 1, 1, 1, 1, 1, 1 },
+                new int[] {0, 0, 0, 0, 0, 0, 0, 0 });
+        assertShape(393, 501, new int[] {393, 197, 99, 50, 25, 13, 7, 4 }, new int[] {501, 251, 126, 63, 32, 16, 8, 4 },
+                new int[] {0, 1, 2, 3, 4, 5, 6, 7 });
+    }
+
+    @Test
+    public void singlePixelLevelsAreShared() {
+        float[] image = new float[3 * 3];
+
+        for (int i = 0; i < image.length; i++) {
+            image[i] = i;
+        }
+
+        LPyramid decimated = new LPyramid(image, 3, 3, true, null);
+
+        // 3x3, 2x2 and then 1x1 from level 2 on
+        assertEquals(1, decimated.getLevel(2).length);
+
+        for (int level = 3; level < LPyramid.MAX_PYR_LEVELS; level++) {
+            assertSame(decimated.getLevel(2), decimated.getLevel(level));
+        }
+
+        LPyramid pixel = new LPyramid(new float[] {0.5f }, 1, 1, false, null);
+
+        for (int level = 1; level < LPyramid.MAX_PYR_LEVELS; level++) {
+            assertSame(pixel.getLevel(0), pixel.getLevel(level));
+        }
+    }
+
+    private static float[] luminance(String file) throws IOException {
+        RGBAImage image = new RGBAImage(new File(file));
+
+        return new ColourSpace(image, image, 2.2, 100.0).aLum;
+    }
+
+    private static void assertRowsMatchGetValue(float[] lum, int w, int h, boolean decimated) {
+        LPyramid pyramid = new LPyramid(lum, w, h, decimated, null);
+
+        float[][] rows = new float[LPyramid.MAX_PYR_LEVELS][];
+        float[][] copies = new float[LPyramid.MAX_PYR_LEVELS][w];
+
+        for (int y = 0; y < h; y++) {
+            int offset = pyramid.rows(y, rows);
+
+            pyramid.copyRows(y, copies);
+
+            for (int level = 0; level < LPyramid.MAX_PYR_LEVELS; level++) {
+                for (int x = 0; x < w; x++) {
+                    float expected = (float) pyramid.getValue(x, y, level);
+
+                    assertEquals(expected, rows[level][offset + x], 0.0f);
+                    assertEquals(expected, copies[level][x], 0.0f);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void rowsSampleAsGetValue() throws IOException {
+        // Fish has odd width and height, so the last coarse pixel of each decimated level covers fewer fine ones
+        float[] lum = luminance("data/fish1.png");
+
+        assertRowsMatchGetValue(lum, 393, 501, false);
+        assertRowsMatchGetValue(lum, 393, 501, true);
+    }
+
+    @Test
+    public void bandedBuildMatchesSerial() throws IOException {
+        float[] lum = luminance("data/fish1.png");
+        ForkJoinPool pool = new ForkJoinPool(4);
+
+        try {
+            for (boolean decimated : new boolean[] {false, true }) {
+                LPyramid serial = new LPyramid(lum, 393, 501, decimated, null);
+                LPyramid banded = new LPyramid(lum, 393, 501, decimated, pool);
+
+                for (int level = 0; level < LPyramid.MAX_PYR_LEVELS; level++) {
+                    assertArrayEquals(serial.getLevel(level), banded.getLevel(level), 0.0f);
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /*
+     * Compares a pair in both pyramid modes and checks the figures of the table in the README.
+     */
+    private static void assertDecimatedAccuracy(String fileA, String fileB, int reference, int decimated, int both,
+            boolean sameVerdict) throws IOException {
+        RGBAImage imageA = new RGBAImage(new File(fileA));
+        RGBAImage imageB = new RGBAImage(new File(fileB));
+
+        PerceptualDiffParameters params = new PerceptualDiffParameters();
+        ComparisonResult full = new MetricImpl().yeeCompare(imageA, imageB, params, null);
+
+        params.decimatedPyramid = true;
+        ComparisonResult coarse = new MetricImpl().yeeCompare(imageA, imageB, params, null);
+
+        int failingInBoth = 0;
+
+        for (int y = 0; y < imageA.getHeight(); y++) {
+            for (int x = 0; x < imageA.getWidth(); x++) {
+                if (full.failureMask.isFailed(x, y) && coarse.failureMask.isFailed(x, y)) {
+                    failingInBoth++;
+                }
+            }
+        }
+
+        assertEquals(reference, full.pixelsFailed);
+        assertEquals(decimated, coarse.pixelsFailed);
+        assertEquals(both, failingInBoth);
+        assertEquals(sameVerdict, full.passed == coarse.passed);
+    }
+
+    @Test
+    public void decimatedAccuracyMatchesReadme() throws IOException {
+        assertDecimatedAccuracy("data/alpha1.png", "data/alpha2.png", 1278, 2406, 1278, true);
+        assertDecimatedAccuracy("data/fish1.png", "data/fish2.png", 20109, 10947, 9074, true);
+        assertDecimatedAccuracy("data/Aqsis_vase_ref.png", "data/Aqsis_vase.png", 104, 88, 88, false);
+    }
+
+}
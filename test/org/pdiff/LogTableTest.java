@@ -0,0 +1,81 @@
+package org.pdiff;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import java.util.function.DoubleUnaryOperator;
+
+import org.junit.Test;
+
+public class LogTableTest {
+
+    /*
+     * The largest relative error of the table over arguments spread evenly in log from min to max.
+     */
+    private static double maxRelativeError(DoubleUnaryOperator function, LogTable table, double min, double max) {
+        Random random = new Random(1);
+        double logMin = Math.log(min);
+        double logMax = Math.log(max);
+        double maxError = 0.0;
+
+        for (int i = 0; i < 200000; i++) {
+            double x = Math.exp(logMin + (logMax - logMin) * random.nextDouble());
+            double expected = function.applyAsDouble(x);
+
+            maxError = Math.max(maxError, Math.abs(table.get(x) - expected) / Math.abs(expected));
+        }
+
+        return maxError;
+    }
+
+    @Test
+    public void tviTable() {
+        LogTable table = new LogTable(PixelTest::tvi, 1e-5, 1e6, Math.pow(10.0, -3.94), Math.pow(10.0, -1.44),
+                Math.pow(10.0, -0.0184), Math.pow(10.0, 1.9));
+
+        assertTrue(maxRelativeError(PixelTest::tvi, table, 1e-5, 1e6) < 2e-8);
+    }
+
+    @Test
+    public void maskTable() {
+        LogTable table = new LogTable(PixelTest::mask, 0x1p-30, 0x1p30);
+
+        assertTrue(maxRelativeError(PixelTest::mask, table, 0x1p-30, 0x1p30) < 5e-8);
+    }
+
+    @Test
+    public void csfTable() {
+        for (double cpd : new double[] {0.5, 2.0, 8.0 }) {
+            LogTable table = new LogTable(lum -> PixelTest.csf(cpd, lum), 1e-5, 1e6);
+
+            assertTrue(maxRelativeError(lum -> PixelTest.csf(cpd, lum), table, 1e-5, 1e6) < 3e-7);
+        }
+    }
+
+    @Test
+    public void csfTablesAreLeastRecentlyUsed() {
+        LogTable kept = PixelTest.csfTable(3.0);
+        LogTable dropped = PixelTest.csfTable(5.0);
+
+        // Many other frequencies, as from a mix of image widths, while one table stays in use
+        for (int i = 0; i < 2 * PixelTest.MAX_CACHED_CSF; i++) {
+            PixelTest.csfTable(100.0 + i);
+
+            assertSame(kept, PixelTest.csfTable(3.0));
+        }
+
+        assertNotSame(dropped, PixelTest.csfTable(5.0));
+    }
+
+    @Test
+    public void outsideRangeIsDirect() {
+        LogTable table = new LogTable(PixelTest::mask, 0x1p-30, 0x1p30);
+
+        assertEquals(PixelTest.mask(0.0), table.get(0.0), 0.0);
+        assertEquals(PixelTest.mask(0x1p40), table.get(0x1p40), 0.0);
+    }
+
+}
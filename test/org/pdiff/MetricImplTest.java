@@ -1,9 +1,15 @@
 package org.pdiff;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
+import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+
+import javax.imageio.ImageIO;
 
 import org.junit.Test;
 import org.pdiff.MetricImpl;
@@ -52,4 +58,113 @@ public class MetricImplTest {
         assertEquals(104, result.pixelsFailed);
     }
 
+    @Test
+    public void yeeCompareDecimated() throws IOException {
+        PerceptualDiffParameters params = new PerceptualDiffParameters();
+        params.decimatedPyramid = true;
+
+        assertDecimated(params, "data/alpha1.png", "data/alpha2.png", 2406);
+        assertDecimated(params, "data/fish1.png", "data/fish2.png", 10947);
+        assertDecimated(params, "data/Aqsis_vase_ref.png", "data/Aqsis_vase.png", 88);
+    }
+
+    private static void assertDecimated(PerceptualDiffParameters params, String fileA, String fileB, int expected)
+            throws IOException {
+        RGBAImage imageA = new RGBAImage(new File(fileA));
+
+        RGBAImage imageB = new RGBAImage(new File(fileB));
+
+        ComparisonResult result = new MetricImpl().yeeCompare(imageA, imageB, params, null);
+
+        assertEquals(expected, result.pixelsFailed);
+    }
+
+    @Test
+    public void yeeCompareAcceptsAnyImageType() throws IOException {
+        MetricImpl impl = new MetricImpl();
+
+        BufferedImage abgr = ImageIO.read(new File("data/alpha1.png"));
+        BufferedImage argb = new BufferedImage(abgr.getWidth(), abgr.getHeight(), BufferedImage.TYPE_INT_ARGB);
+        argb.getGraphics().drawImage(abgr, 0, 0, null);
+
+        RGBAImage imageA = new RGBAImage(argb, "alpha1");
+
+        RGBAImage imageB = new RGBAImage(new File("data/alpha2.png"));
+
+        ComparisonResult result = impl.yeeCompare(imageA, imageB, new PerceptualDiffParameters(), null);
+
+        assertEquals(1278, result.pixelsFailed);
+    }
+
+    @Test
+    public void yeeCompareVerdictOnlyStopsEarly() throws IOException {
+        MetricImpl impl = new MetricImpl();
+
+        RGBAImage imageA = new RGBAImage(new File("data/fish1.png"));
+
+        RGBAImage imageB = new RGBAImage(new File("data/fish2.png"));
+
+        PerceptualDiffParameters params = new PerceptualDiffParameters();
+        params.verdictOnly = true;
+
+        ComparisonResult result = impl.yeeCompare(imageA, imageB, params, null);
+
+        assertFalse(result.passed);
+        assertTrue(result.lowerBound);
+        assertTrue(result.pixelsFailed >= params.thresholdPixels);
+        assertTrue(result.pixelsExamined < imageA.getWidth() * imageA.getHeight());
+    }
+
+    @Test
+    public void yeeCompareVerdictOnlyCompletesWhenUndecided() throws IOException {
+        MetricImpl impl = new MetricImpl();
+
+        RGBAImage imageA = new RGBAImage(new File("data/fish1.png"));
+
+        RGBAImage imageB = new RGBAImage(new File("data/fish2.png"));
+
+        PerceptualDiffParameters params = new PerceptualDiffParameters();
+        params.thresholdPixels = 30000;
+
+        ComparisonResult full = impl.yeeCompare(imageA, imageB, params, null);
+
+        params.verdictOnly = true;
+
+        ComparisonResult verdict = impl.yeeCompare(imageA, imageB, params, null);
+
+        assertTrue(verdict.passed);
+        assertFalse(verdict.lowerBound);
+        assertEquals(20109, verdict.pixelsFailed);
+        assertEquals(full.errorSum, verdict.errorSum, 0.0);
+        assertEquals(imageA.getWidth() * imageA.getHeight(), verdict.pixelsExamined);
+    }
+
+    @Test
+    public void yeeCompareParallelMatchesSerial() throws IOException {
+        ForkJoinPool pool = new ForkJoinPool(4);
+
+        try {
+            assertParallelMatchesSerial(pool, "data/alpha1.png", "data/alpha2.png", 1278);
+            assertParallelMatchesSerial(pool, "data/fish1.png", "data/fish2.png", 20109);
+            assertParallelMatchesSerial(pool, "data/Aqsis_vase_ref.png", "data/Aqsis_vase.png", 104);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static void assertParallelMatchesSerial(ForkJoinPool pool, String fileA, String fileB, int expected)
+            throws IOException {
+        RGBAImage imageA = new RGBAImage(new File(fileA));
+
+        RGBAImage imageB = new RGBAImage(new File(fileB));
+
+        ComparisonResult serial = new MetricImpl().yeeCompare(imageA, imageB, new PerceptualDiffParameters(), null);
+
+        ComparisonResult parallel = new MetricImpl(pool).yeeCompare(imageA, imageB, new PerceptualDiffParameters(), null);
+
+        assertEquals(expected, parallel.pixelsFailed);
+        assertEquals(serial.pixelsFailed, parallel.pixelsFailed);
+        assertEquals(serial.errorSum, parallel.errorSum, 0.0);
+    }
+
 }
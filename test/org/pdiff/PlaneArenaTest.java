@@ -0,0 +1,111 @@
+package org.pdiff;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+import org.pdiff.Metric.ComparisonResult;
+
+public class PlaneArenaTest {
+
+    private static void assertRoundTrip(PlaneArena arena) {
+        int w = 37;
+        int h = 23;
+        Plane plane = arena.allocate(w, h);
+        float[] row = new float[w + 3];
+
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                row[x + 3] = y * 1000 + x;
+            }
+
+            plane.setRow(y, row, 3);
+        }
+
+        for (int y = h - 1; y >= 0; y--) {
+            float[] read = new float[w];
+            plane.getRow(y, read, 0);
+
+            for (int x = 0; x < w; x++) {
+                assertEquals(y * 1000 + x, read[x], 0.0f);
+                assertEquals(y * 1000 + x, plane.get(x, y), 0.0f);
+            }
+        }
+    }
+
+    @Test
+    public void rowsCrossChunks() throws IOException {
+        // Five rows of 37 floats per chunk, so the plane spans five chunks
+        try (PlaneArena arena = new PlaneArena(null, 5 * 37 * 4 + 7)) {
+            assertRoundTrip(arena);
+            assertEquals(23 * 37 * 4, arena.getBytes());
+        }
+    }
+
+    @Test
+    public void mappedFileIsDeleted() throws IOException {
+        File directory = Files.createTempDirectory("pdiff-arena").toFile();
+
+        try (PlaneArena arena = new PlaneArena(directory, 3 * 37 * 4)) {
+            assertRoundTrip(arena);
+            assertEquals(1, directory.list().length);
+        }
+
+        assertEquals(0, directory.list().length);
+        directory.delete();
+    }
+
+    private static void assertMatchesHeap(String fileA, String fileB, File directory, ForkJoinPool pool,
+            boolean luminanceOnly) throws IOException {
+        RGBAImage imageA = new RGBAImage(new File(fileA));
+        RGBAImage imageB = new RGBAImage(new File(fileB));
+        int w = imageA.getWidth();
+        int h = imageA.getHeight();
+
+        PerceptualDiffParameters params = new PerceptualDiffParameters();
+        params.luminanceOnly = luminanceOnly;
+
+        RGBAImage differenceHeap = new RGBAImage(w, h, "heap");
+        ComparisonResult heap = new MetricImpl(pool).yeeCompare(imageA, imageB, params, differenceHeap);
+
+        params.offHeap = true;
+        params.planeDirectory = directory;
+
+        RGBAImage differenceOffHeap = new RGBAImage(w, h, "offHeap");
+        ComparisonResult offHeap = new MetricImpl(pool).yeeCompare(imageA, imageB, params, differenceOffHeap);
+
+        assertEquals(heap.pixelsFailed, offHeap.pixelsFailed);
+        assertEquals(heap.errorSum, offHeap.errorSum, 0.0);
+        assertArrayEquals(differenceHeap.getPixels(), differenceOffHeap.getPixels());
+    }
+
+    @Test
+    public void offHeapMatchesHeap() throws IOException {
+        // The alpha pair differs only in small regions, which are compared on the heap
+        assertMatchesHeap("data/fish1.png", "data/fish2.png", null, null, false);
+        assertMatchesHeap("data/fish1.png", "data/fish2.png", null, null, true);
+        assertMatchesHeap("data/Aqsis_vase_ref.png", "data/Aqsis_vase.png", null, null, true);
+    }
+
+    @Test
+    public void mappedMatchesHeapInParallel() throws IOException {
+        File directory = Files.createTempDirectory("pdiff-planes").toFile();
+        ForkJoinPool pool = new ForkJoinPool(4);
+
+        try {
+            assertMatchesHeap("data/fish1.png", "data/fish2.png", directory, pool, false);
+            assertMatchesHeap("data/Aqsis_vase_ref.png", "data/Aqsis_vase.png", directory, pool, false);
+        } finally {
+            pool.shutdown();
+        }
+
+        assertEquals(0, directory.list().length);
+        directory.delete();
+    }
+
+}
@@ -0,0 +1,104 @@
+package org.pdiff;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+
+public class PngSourceTest {
+
+    private static int[] imageIO(File file) throws IOException {
+        BufferedImage image = ImageIO.read(file);
+
+        return image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth());
+    }
+
+    private static void assertMatchesImageIO(int type) throws IOException {
+        Random random = new Random(type);
+        BufferedImage image = new BufferedImage(67, 45, type);
+
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                // Smooth areas and noise, so that the writer picks every filter type
+                int argb = x < 30 ? (x * 7 + y * 3) * 0x010203 : random.nextInt();
+                image.setRGB(x, y, argb);
+            }
+        }
+
+        File file = File.createTempFile("pdiff", ".png");
+
+        try {
+            ImageIO.write(image, "PNG", file);
+
+            RGBAImage png = PngSource.read(file);
+
+            assertArrayEquals(imageIO(file), png.getPixels());
+
+            try (PngSource source = PngSource.open(file)) {
+                int[] row = new int[source.getWidth()];
+
+                for (int y = 0; y < source.getHeight(); y++) {
+                    source.nextRow(row);
+
+                    for (int x = 0; x < row.length; x++) {
+                        assertEquals(png.get(x, y), row[x]);
+                    }
+                }
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void readRgba() throws IOException {
+        assertMatchesImageIO(BufferedImage.TYPE_INT_ARGB);
+    }
+
+    @Test
+    public void readRgb() throws IOException {
+        assertMatchesImageIO(BufferedImage.TYPE_3BYTE_BGR);
+    }
+
+    @Test
+    public void readGrey() throws IOException {
+        assertMatchesImageIO(BufferedImage.TYPE_BYTE_GRAY);
+    }
+
+    @Test
+    public void readPalette() throws IOException {
+        assertMatchesImageIO(BufferedImage.TYPE_BYTE_INDEXED);
+    }
+
+    @Test
+    public void readDataFiles() throws IOException {
+        for (String name : new String[] {"alpha1", "alpha2", "fish1", "fish2", "Aqsis_vase", "Aqsis_vase_ref" }) {
+            File file = new File("data/" + name + ".png");
+
+            assertArrayEquals(name, imageIO(file), PngSource.read(file).getPixels());
+        }
+    }
+
+    @Test
+    public void sixteenBitFallsBack() throws IOException {
+        File file = File.createTempFile("pdiff", ".png");
+
+        try {
+            ImageIO.write(new BufferedImage(8, 8, BufferedImage.TYPE_USHORT_GRAY), "PNG", file);
+
+            assertNull(PngSource.open(file));
+            assertEquals(64, new RGBAImage(file).getPixels().length);
+        } finally {
+            file.delete();
+        }
+    }
+
+}
@@ -0,0 +1,187 @@
+package org.pdiff;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.junit.Test;
+import org.pdiff.Metric.ComparisonResult;
+
+public class PreparedReferenceTest {
+
+    private static void assertMatchesMetricImpl(String fileA, String fileB, int expected) throws IOException {
+        assertMatchesMetricImpl(fileA, fileB, new PerceptualDiffParameters(), expected);
+    }
+
+    private static void assertMatchesMetricImpl(String fileA, String fileB, PerceptualDiffParameters params,
+            int expected) throws IOException {
+        MetricImpl metric = new MetricImpl();
+
+        RGBAImage imageA = new RGBAImage(new File(fileA));
+        RGBAImage imageB = new RGBAImage(new File(fileB));
+
+        ComparisonResult direct = metric.yeeCompare(imageA, imageB, params, null);
+
+        PreparedReference prepared = metric.prepare(imageA, params);
+
+        File file = File.createTempFile("pdiff", ".ref");
+
+        try {
+            prepared.save(file);
+
+            for (PreparedReference reference : new PreparedReference[] {prepared, PreparedReference.load(file) }) {
+                // Twice, so that a loaded reference is compared both while and after building its levels
+                for (int i = 0; i < 2; i++) {
+                    ComparisonResult result = metric.yeeCompare(reference, imageB, params, null);
+
+                    assertEquals(expected, result.pixelsFailed);
+                    assertEquals(direct.pixelsFailed, result.pixelsFailed);
+                    assertEquals(direct.errorSum, result.errorSum, 0.0);
+                    assertEquals(direct.passed, result.passed);
+                }
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void compareAlpha() throws IOException {
+        assertMatchesMetricImpl("data/alpha1.png", "data/alpha2.png", 1278);
+    }
+
+    @Test
+    public void compareFish() throws IOException {
+        assertMatchesMetricImpl("data/fish1.png", "data/fish2.png", 20109);
+    }
+
+    @Test
+    public void compareAqsisVase() throws IOException {
+        assertMatchesMetricImpl("data/Aqsis_vase_ref.png", "data/Aqsis_vase.png", 104);
+    }
+
+    @Test
+    public void compareFishDecimated() throws IOException {
+        PerceptualDiffParameters params = new PerceptualDiffParameters();
+        params.decimatedPyramid = true;
+
+        assertMatchesMetricImpl("data/fish1.png", "data/fish2.png", params, 10947);
+    }
+
+    @Test
+    public void compareFishLuminanceOnly() throws IOException {
+        PerceptualDiffParameters params = new PerceptualDiffParameters();
+        params.luminanceOnly = true;
+
+        assertMatchesMetricImpl("data/fish1.png", "data/fish2.png", params, 8261);
+    }
+
+    @Test
+    public void savedFileHoldsLevelZeroAndChroma() throws IOException {
+        PerceptualDiffParameters params = new PerceptualDiffParameters();
+
+        RGBAImage image = new RGBAImage(new File("data/fish1.png"));
+        PreparedReference prepared = new MetricImpl().prepare(image, params);
+
+        File file = File.createTempFile("pdiff", ".ref");
+
+        try {
+            prepared.save(file);
+
+            long pixels = (long) image.getWidth() * image.getHeight();
+
+            // The header, then level 0 and the two chroma planes, each preceded by its length
+            assertEquals(56 + 3 * (8 + 4 * pixels), file.length());
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void compareIdentical() throws IOException {
+        MetricImpl metric = new MetricImpl();
+        PerceptualDiffParameters params = new PerceptualDiffParameters();
+
+        RGBAImage image = new RGBAImage(new File("data/fish1.png"));
+
+        ComparisonResult result = metric.yeeCompare(metric.prepare(image, params), image, params, null);
+
+        assertTrue(result.passed);
+        assertEquals(-1, result.pixelsFailed);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void compareRejectsDifferentGamma() throws IOException {
+        MetricImpl metric = new MetricImpl();
+        PerceptualDiffParameters params = new PerceptualDiffParameters();
+
+        RGBAImage image = new RGBAImage(new File("data/alpha1.png"));
+        PreparedReference prepared = metric.prepare(image, params);
+
+        params.gamma = 1.8;
+
+        metric.yeeCompare(prepared, image, params, null);
+    }
+
+    @Test(expected = IOException.class)
+    public void loadRejectsTruncatedFile() throws IOException {
+        MetricImpl metric = new MetricImpl();
+        PerceptualDiffParameters params = new PerceptualDiffParameters();
+
+        PreparedReference prepared = metric.prepare(new RGBAImage(new File("data/alpha1.png")), params);
+
+        File file = File.createTempFile("pdiff", ".ref");
+
+        try {
+            prepared.save(file);
+
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(raf.length() - 4);
+            }
+
+            PreparedReference.load(file);
+        } finally {
+            file.delete();
+        }
+    }
+
+    /*
+     * Saves a prepared reference, overwrites the int at the given offset of its header and loads it again.
+     */
+    private static void loadWithHeaderInt(int offset, int value) throws IOException {
+        PerceptualDiffParameters params = new PerceptualDiffParameters();
+        PreparedReference prepared = new MetricImpl().prepare(new RGBAImage(new File("data/alpha1.png")), params);
+
+        File file = File.createTempFile("pdiff", ".ref");
+
+        try {
+            prepared.save(file);
+
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.seek(offset);
+                raf.writeInt(Integer.reverseBytes(value));
+            }
+
+            PreparedReference.load(file);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void loadRejectsMismatchedWidth() throws IOException {
+        RGBAImage image = new RGBAImage(new File("data/alpha1.png"));
+
+        loadWithHeaderInt(12, image.getWidth() - 1);
+    }
+
+    @Test(expected = IOException.class)
+    public void loadRejectsMismatchedPyramidMode() throws IOException {
+        // The full-resolution levels are not the size of decimated ones
+        loadWithHeaderInt(20, 1);
+    }
+
+}
@@ -0,0 +1,136 @@
+package org.pdiff;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Test;
+import org.pdiff.Metric.ComparisonResult;
+
+public class ResampleTest {
+
+    /*
+     * The DownSample of the original C++ program, one step at a time.
+     */
+    private static RGBAImage downSampleOnce(RGBAImage image) {
+        int width = image.getWidth() / 2;
+        int height = image.getHeight() / 2;
+        RGBAImage result = new RGBAImage(width, height, image.getName());
+
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int[] d = {image.get(2 * x, 2 * y), image.get(2 * x + 1, 2 * y), image.get(2 * x, 2 * y + 1),
+                    image.get(2 * x + 1, 2 * y + 1) };
+                int rgba = 0;
+
+                for (int i = 0; i < 4; i++) {
+                    int c = (d[0] >> (8 * i)) & 0xFF;
+                    c += (d[1] >> (8 * i)) & 0xFF;
+                    c += (d[2] >> (8 * i)) & 0xFF;
+                    c += (d[3] >> (8 * i)) & 0xFF;
+                    c /= 4;
+                    rgba |= (c & 0xFF) << (8 * i);
+                }
+
+                result.getPixels()[y * width + x] = rgba;
+            }
+        }
+
+        return result;
+    }
+
+    private static RGBAImage random(int width, int height) {
+        Random random = new Random(width * 31 + height);
+        RGBAImage image = new RGBAImage(width, height, "random");
+
+        for (int i = 0; i < width * height; i++) {
+            image.getPixels()[i] = random.nextInt();
+        }
+
+        return image;
+    }
+
+    @Test
+    public void downSampleMatchesStepwise() {
+        RGBAImage image = random(203, 117);
+        RGBAImage expected = image;
+
+        for (int steps = 1; steps <= 4; steps++) {
+            expected = downSampleOnce(expected);
+
+            RGBAImage actual = Resample.downSample(image, steps);
+
+            assertEquals(expected.getWidth(), actual.getWidth());
+            assertEquals(expected.getHeight(), actual.getHeight());
+
+            for (int i = 0; i < expected.getPixels().length; i++) {
+                assertEquals(expected.get(i), actual.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void downSampleStopsAtOnePixel() {
+        RGBAImage image = random(40, 5);
+
+        assertEquals(10, Resample.downSample(image, 8).getWidth());
+        assertEquals(1, Resample.downSample(image, 8).getHeight());
+        assertSame(image, Resample.downSample(image, 0));
+    }
+
+    @Test
+    public void scaleAveragesArea() {
+        RGBAImage image = new RGBAImage(3, 1, "ramp");
+        image.getPixels()[0] = 0xFF000000;
+        image.getPixels()[1] = 0xFF000030;
+        image.getPixels()[2] = 0xFF000060;
+
+        RGBAImage scaled = Resample.scale(image, 2, 1);
+
+        // Each pixel covers one and a half source pixels
+        assertEquals(0xFF000010, scaled.get(0));
+        assertEquals(0xFF000050, scaled.get(1));
+
+        RGBAImage halved = Resample.scale(random(64, 48), 32, 24);
+
+        assertEquals(32 * 24, halved.getPixels().length);
+    }
+
+    @Test
+    public void compareDownSampled() throws IOException {
+        PerceptualDiffParameters params = new PerceptualDiffParameters();
+        params.downSample = 1;
+
+        RGBAImage imageA = new RGBAImage(new File("data/fish1.png"));
+        RGBAImage imageB = new RGBAImage(new File("data/fish2.png"));
+
+        ComparisonResult result = new MetricImpl().yeeCompare(imageA, imageB, params, null);
+        ComparisonResult expected = new MetricImpl().yeeCompare(downSampleOnce(imageA), downSampleOnce(imageB),
+                new PerceptualDiffParameters(), null);
+
+        assertEquals(expected.pixelsFailed, result.pixelsFailed);
+        assertEquals(expected.errorSum, result.errorSum, 0.0);
+        assertEquals(196, result.failureMask.getWidth());
+        assertEquals(250, result.failureMask.getHeight());
+    }
+
+    @Test
+    public void compareScaled() throws IOException {
+        PerceptualDiffParameters params = new PerceptualDiffParameters();
+        params.scale = true;
+
+        RGBAImage imageA = new RGBAImage(new File("data/alpha1.png"));
+        RGBAImage imageB = Resample.downSample(new RGBAImage(new File("data/alpha2.png")), 1);
+
+        ComparisonResult result = new MetricImpl().yeeCompare(imageA, imageB, params, null);
+
+        assertEquals(320, result.failureMask.getWidth());
+        assertEquals(240, result.failureMask.getHeight());
+        assertEquals("Image dimensions do not match",
+                new MetricImpl().yeeCompare(imageA, imageB, new PerceptualDiffParameters(), null).reason);
+    }
+
+}
@@ -0,0 +1,100 @@
+package org.pdiff;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+import org.pdiff.Metric.ComparisonResult;
+
+public class StreamingMetricTest {
+
+    private static void assertMatchesMetricImpl(String fileA, String fileB, int expected) throws IOException {
+        assertMatchesMetricImpl(fileA, fileB, new PerceptualDiffParameters(), expected);
+    }
+
+    private static void assertMatchesMetricImpl(String fileA, String fileB, PerceptualDiffParameters params,
+            int expected) throws IOException {
+        ComparisonResult inMemory = new MetricImpl().yeeCompare(new RGBAImage(new File(fileA)),
+                new RGBAImage(new File(fileB)), params, null);
+
+        ComparisonResult streamed = new StreamingMetric().compare(new File(fileA), new File(fileB), params);
+
+        assertEquals(expected, streamed.pixelsFailed);
+        assertEquals(inMemory.pixelsFailed, streamed.pixelsFailed);
+        assertEquals(inMemory.errorSum, streamed.errorSum, 0.0);
+        assertEquals(inMemory.passed, streamed.passed);
+    }
+
+    @Test
+    public void compareAlpha() throws IOException {
+        assertMatchesMetricImpl("data/alpha1.png", "data/alpha2.png", 1278);
+    }
+
+    @Test
+    public void compareFish() throws IOException {
+        assertMatchesMetricImpl("data/fish1.png", "data/fish2.png", 20109);
+    }
+
+    @Test
+    public void compareAqsisVase() throws IOException {
+        assertMatchesMetricImpl("data/Aqsis_vase_ref.png", "data/Aqsis_vase.png", 104);
+    }
+
+    @Test
+    public void compareFishLuminanceOnly() throws IOException {
+        // The row windows hold no chroma
+        PerceptualDiffParameters params = new PerceptualDiffParameters();
+        params.luminanceOnly = true;
+
+        assertMatchesMetricImpl("data/fish1.png", "data/fish2.png", params, 8261);
+    }
+
+    /*
+     * Writes a PNG as an opaque BMP, which the PNG decoder declines, so that it is streamed through an ImageReader.
+     */
+    private static File toBmp(String file, File directory) throws IOException {
+        BufferedImage png = ImageIO.read(new File(file));
+        BufferedImage bmp = new BufferedImage(png.getWidth(), png.getHeight(), BufferedImage.TYPE_3BYTE_BGR);
+
+        bmp.getGraphics().drawImage(png, 0, 0, null);
+
+        File result = new File(directory, new File(file).getName().replace(".png", ".bmp"));
+        assertTrue(ImageIO.write(bmp, "bmp", result));
+
+        return result;
+    }
+
+    @Test
+    public void compareFishBmp() throws IOException {
+        // Fish is 501 rows high, so the ImageReader source region reads it in two bands. Its pixels are drawn over
+        // black, as BMP has no alpha, so fewer fail than in the PNG pair
+        File directory = Files.createTempDirectory("pdiff").toFile();
+        File fileA = toBmp("data/fish1.png", directory);
+        File fileB = toBmp("data/fish2.png", directory);
+
+        try {
+            assertMatchesMetricImpl(fileA.getPath(), fileB.getPath(), 19886);
+        } finally {
+            fileA.delete();
+            fileB.delete();
+            directory.delete();
+        }
+    }
+
+    @Test
+    public void compareIdentical() throws IOException {
+        ComparisonResult result = new StreamingMetric().compare(new File("data/fish1.png"), new File("data/fish1.png"),
+                new PerceptualDiffParameters());
+
+        assertTrue(result.passed);
+        assertEquals(-1, result.pixelsFailed);
+    }
+
+}
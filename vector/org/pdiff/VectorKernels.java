@@ -0,0 +1,131 @@
+/*
+ * Vector Kernels
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.pdiff;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/*
+ * The SIMD backend, built on the jdk.incubator.vector API, which processes a preferred-width vector of doubles (4 on
+ * AVX2, 8 on AVX-512) per step. Floats are loaded from the planes at half that width and widened, so that every lane
+ * performs exactly the arithmetic of ScalarKernels. The pixels after the last full vector are left to ScalarKernels.
+ *
+ * This class needs Java 16 or later and is compiled separately from the rest of the library, with
+ * --add-modules jdk.incubator.vector.
+ */
+final class VectorKernels extends Kernels {
+
+    private static final VectorSpecies<Double> DOUBLES = DoubleVector.SPECIES_PREFERRED;
+
+    private static final VectorSpecies<Float> FLOATS = FloatVector.SPECIES_PREFERRED
+            .withShape(VectorShape.forBitSize(DOUBLES.vectorBitSize() / 2));
+
+    private static final int LANES = DOUBLES.length();
+
+    private static DoubleVector widen(FloatVector v) {
+        return (DoubleVector) v.convertShape(VectorOperators.F2D, DOUBLES, 0);
+    }
+
+    private static DoubleVector load(float[] a, int index) {
+        return widen(FloatVector.fromArray(FLOATS, a, index));
+    }
+
+    @Override
+    void blurColumns(float[] b, int r0, int r1, int r2, int r3, int r4, int width, double[] row) {
+        int bound = width - width % LANES;
+        int x = 0;
+
+        for (; x < bound; x += LANES) {
+            FloatVector s04 = FloatVector.fromArray(FLOATS, b, r0 + x).add(FloatVector.fromArray(FLOATS, b, r4 + x));
+            FloatVector s13 = FloatVector.fromArray(FLOATS, b, r1 + x).add(FloatVector.fromArray(FLOATS, b, r3 + x));
+
+            widen(s04).mul(LPyramid.K0)
+                    .add(widen(s13).mul(LPyramid.K1))
+                    .add(load(b, r2 + x).mul(LPyramid.K2))
+                    .intoArray(row, x + 2);
+        }
+
+        ScalarKernels.blurColumns(b, r0, r1, r2, r3, r4, x, width, row);
+    }
+
+    @Override
+    void blurRow(double[] row, float[] a, int dst, int width) {
+        int bound = width - width % LANES;
+        int x = 0;
+
+        for (; x < bound; x += LANES) {
+            DoubleVector s04 = DoubleVector.fromArray(DOUBLES, row, x).add(DoubleVector.fromArray(DOUBLES, row, x + 4));
+            DoubleVector s13 = DoubleVector.fromArray(DOUBLES, row, x + 1)
+                    .add(DoubleVector.fromArray(DOUBLES, row, x + 3));
+
+            DoubleVector sum = s04.mul(LPyramid.K0)
+                    .add(s13.mul(LPyramid.K1))
+                    .add(DoubleVector.fromArray(DOUBLES, row, x + 2).mul(LPyramid.K2));
+
+            ((FloatVector) sum.convertShape(VectorOperators.D2F, FLOATS, 0)).intoArray(a, dst + x);
+        }
+
+        ScalarKernels.blurRow(row, a, dst, x, width);
+    }
+
+    @Override
+    void contrast(float[][] la, float[][] lb, int offset, int w, int adaptationLevel, double[] adapt,
+            double[][] contrast, double[] delta) {
+        int bound = w - w % LANES;
+
+        for (int x = 0; x < bound; x += LANES) {
+            int index = offset + x;
+
+            load(la[adaptationLevel], index).add(load(lb[adaptationLevel], index)).mul(0.5).max(1e-5)
+                    .intoArray(adapt, x);
+
+            load(la[0], index).sub(load(lb[0], index)).abs().intoArray(delta, x);
+        }
+
+        for (int i = 0; i < LPyramid.MAX_PYR_LEVELS - 2; i++) {
+            float[] a0 = la[i];
+            float[] a1 = la[i + 1];
+            float[] a2 = la[i + 2];
+            float[] b0 = lb[i];
+            float[] b1 = lb[i + 1];
+            float[] b2 = lb[i + 2];
+            double[] c = contrast[i];
+
+            for (int x = 0; x < bound; x += LANES) {
+                int index = offset + x;
+
+                DoubleVector numerator = load(a0, index).sub(load(a1, index)).abs()
+                        .max(load(b0, index).sub(load(b1, index)).abs());
+
+                DoubleVector denominator = load(a2, index).abs().max(load(b2, index).abs()).max(1e-5);
+
+                numerator.div(denominator).intoArray(c, x);
+            }
+        }
+
+        ScalarKernels.contrast(la, lb, offset, bound, w, adaptationLevel, adapt, contrast, delta);
+    }
+
+    @Override
+    public String toString() {
+        return "vector kernels (" + DOUBLES + ")";
+    }
+
+}